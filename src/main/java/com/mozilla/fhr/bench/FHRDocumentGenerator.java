@@ -0,0 +1,501 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.cli.OptionFactory;
+
+/**
+ * Generates synthetic FHR payloads for load and scale testing. Version 1 documents
+ * keep their per-day measurements under dataPoints, version 2 documents under
+ * data.days with the current environment in data.last, using the same field names
+ * the Pig UDFs read.
+ *
+ * Profiles vary in age, how often they are used, sessions per day, searches, crashes,
+ * addons and version upgrades. A small fraction are heavy profiles with years of
+ * history and dozens of sessions a day, which produce the multi-megabyte long tail.
+ * The same seed always produces the same documents.
+ */
+public class FHRDocumentGenerator {
+
+    private static final Logger LOG = Logger.getLogger(FHRDocumentGenerator.class);
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // a new major version ships every six weeks
+    private static final int RELEASE_CYCLE_DAYS = 42;
+
+    private static final String[] CHANNELS = { "release", "beta", "aurora", "nightly", "esr" };
+    private static final double[] CHANNEL_WEIGHTS = { 0.85, 0.08, 0.03, 0.02, 0.02 };
+    private static final String[] OS_NAMES = { "WINNT", "Darwin", "Linux" };
+    private static final double[] OS_WEIGHTS = { 0.88, 0.08, 0.04 };
+    private static final String[][] OS_VERSIONS = { { "5.1", "6.0", "6.1", "6.2" },
+                                                    { "10.8.0", "11.4.2", "12.3.0" },
+                                                    { "3.2.0-4-amd64", "3.5.0-27-generic", "3.8.4-102.fc17.x86_64" } };
+    private static final double[][] OS_VERSION_WEIGHTS = { { 0.25, 0.08, 0.55, 0.12 },
+                                                           { 0.2, 0.4, 0.4 },
+                                                           { 0.3, 0.5, 0.2 } };
+    private static final String[] ENGINES = { "google", "yahoo", "bing", "amazondotcom", "duckduckgo", "other" };
+    private static final double[] ENGINE_WEIGHTS = { 0.7, 0.1, 0.1, 0.05, 0.02, 0.03 };
+    private static final String[] SEARCH_CONTEXTS = { "searchbar", "urlbar", "abouthome", "contextmenu" };
+    private static final double[] SEARCH_CONTEXT_WEIGHTS = { 0.55, 0.3, 0.1, 0.05 };
+    private static final String[] LOCALES = { "en-US", "de", "fr", "es-ES", "ru", "pt-BR", "ja", "pl", "it", "zh-CN" };
+
+    private final Random random;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final long pingTime;
+    // the major release version on the ping date
+    private final int releaseVersion;
+
+    private double v1Rate = 0.1;
+    private double heavyProfileRate = 0.005;
+
+    public FHRDocumentGenerator(long seed, long pingTime, int releaseVersion) {
+        this.random = new Random(seed);
+        this.pingTime = pingTime - (pingTime % DAY_MILLIS);
+        this.releaseVersion = releaseVersion;
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param v1Rate the fraction of documents generated in the version 1 format
+     */
+    public void setV1Rate(double v1Rate) {
+        this.v1Rate = v1Rate;
+    }
+
+    /**
+     * @param heavyProfileRate the fraction of profiles with years of heavy use
+     */
+    public void setHeavyProfileRate(double heavyProfileRate) {
+        this.heavyProfileRate = heavyProfileRate;
+    }
+
+    private int choose(double[] weights) {
+        double r = random.nextDouble();
+        for (int i = 0; i < weights.length - 1; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private int logNormal(double median, double sigma) {
+        return (int)Math.round(median * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    private int poisson(double mean) {
+        // Knuth's method is fine for the small means used here
+        double limit = Math.exp(-mean);
+        double p = random.nextDouble();
+        int k = 0;
+        while (p > limit) {
+            p *= random.nextDouble();
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * The environment and usage pattern of one generated profile.
+     */
+    private class Profile {
+        final boolean heavy = random.nextDouble() < heavyProfileRate;
+        final int channel = choose(CHANNEL_WEIGHTS);
+        final int os = choose(OS_WEIGHTS);
+        final String osVersion = OS_VERSIONS[os][choose(OS_VERSION_WEIGHTS[os])];
+        final String locale = LOCALES[random.nextInt(LOCALES.length)];
+        final int ageDays = heavy ? 365 + random.nextInt(1500) : Math.max(1, Math.min(2000, logNormal(150, 1.2)));
+        // the chance the browser is used on any given day
+        final double usageRate = heavy ? 0.9 + random.nextDouble() * 0.1 : Math.min(1.0, 0.05 + random.nextDouble() * random.nextDouble());
+        final double sessionsPerDay = heavy ? Math.max(10, logNormal(40, 0.6)) : 1 + random.nextDouble() * 2.5;
+        final double searchesPerDay = random.nextDouble() < 0.3 ? 0.0 : Math.max(0.1, logNormal(2, 1.0));
+        final double crashRate = random.nextDouble() < 0.8 ? 0.01 : 0.15;
+        final int extensions = Math.max(0, logNormal(3, 1.0) - 1);
+        final int plugins = 2 + random.nextInt(10);
+        final long buildBase = 20130000000000L + random.nextInt(400) * 1000000L;
+
+        String getVersion(int daysAgo) {
+            int major = releaseVersion + (channel == 1 ? 1 : channel == 2 ? 2 : channel == 3 ? 3 : 0);
+            major -= daysAgo / RELEASE_CYCLE_DAYS;
+            if (channel == 4) {
+                // ESR only moves every seven releases
+                major = major - major % 7 + 3;
+            }
+            switch (channel) {
+            case 1: return major + ".0";
+            case 2: return major + ".0a2";
+            case 3: return major + ".0a1";
+            default: return major + ".0" + (daysAgo % RELEASE_CYCLE_DAYS > 20 ? ".1" : "");
+            }
+        }
+
+        String getBuildId(int daysAgo) {
+            return String.valueOf(buildBase + (ageDays - daysAgo) / RELEASE_CYCLE_DAYS * 1000000L);
+        }
+    }
+
+    public byte[] nextDocument() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        writeDocument(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the next document as UTF-8 JSON.
+     */
+    public void writeDocument(OutputStream out) throws IOException {
+        Profile profile = new Profile();
+        JsonGenerator g = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        try {
+            if (random.nextDouble() < v1Rate) {
+                writeV1(g, profile);
+            } else {
+                writeV2(g, profile);
+            }
+        } finally {
+            g.close();
+        }
+    }
+
+    private String formatDay(int daysAgo) {
+        return dayFormat.format(pingTime - daysAgo * DAY_MILLIS);
+    }
+
+    private void writeV1(JsonGenerator g, Profile profile) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("version", 1);
+        g.writeStringField("thisPingTime", formatDay(0));
+        g.writeNumberField("appProfileAge", profile.ageDays);
+        g.writeStringField("appName", "Firefox");
+        g.writeStringField("appVersion", profile.getVersion(0));
+        g.writeStringField("appBuildID", profile.getBuildId(0));
+        g.writeStringField("updateChannel", CHANNELS[profile.channel]);
+        g.writeStringField("OSName", OS_NAMES[profile.os]);
+        g.writeStringField("OSVersion", profile.osVersion);
+        g.writeStringField("locale", profile.locale);
+        g.writeFieldName("dataPoints");
+        writeDays(g, profile, 1);
+        g.writeEndObject();
+    }
+
+    private void writeV2(JsonGenerator g, Profile profile) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("version", 2);
+        g.writeStringField("thisPingDate", formatDay(0));
+        if (profile.ageDays > 1) {
+            g.writeStringField("lastPingDate", formatDay(1 + random.nextInt(Math.min(profile.ageDays - 1, 30))));
+        }
+        g.writeObjectFieldStart("data");
+        g.writeObjectFieldStart("last");
+
+        g.writeObjectFieldStart("org.mozilla.appInfo.appinfo");
+        g.writeNumberField("_v", 2);
+        g.writeStringField("vendor", "Mozilla");
+        g.writeStringField("name", "Firefox");
+        g.writeStringField("id", "{ec8030f7-c20a-464f-9b0e-13a3a9e97384}");
+        g.writeStringField("version", profile.getVersion(0));
+        g.writeStringField("appBuildID", profile.getBuildId(0));
+        g.writeStringField("platformVersion", profile.getVersion(0));
+        g.writeStringField("platformBuildID", profile.getBuildId(0));
+        g.writeStringField("os", OS_NAMES[profile.os]);
+        g.writeStringField("xpcomabi", "x86-msvc");
+        g.writeStringField("updateChannel", CHANNELS[profile.channel]);
+        g.writeStringField("locale", profile.locale);
+        g.writeNumberField("isDefaultBrowser", random.nextInt(2));
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("org.mozilla.sysinfo.sysinfo");
+        g.writeNumberField("_v", 1);
+        g.writeNumberField("cpuCount", 1 << random.nextInt(4));
+        g.writeNumberField("memoryMB", 512 << random.nextInt(5));
+        g.writeStringField("architecture", random.nextDouble() < 0.7 ? "x86" : "x86-64");
+        g.writeStringField("name", OS_NAMES[profile.os]);
+        g.writeStringField("version", profile.osVersion);
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("org.mozilla.profile.age");
+        g.writeNumberField("_v", 1);
+        g.writeNumberField("profileCreation", (int)(pingTime / DAY_MILLIS) - profile.ageDays);
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("org.mozilla.addons.active");
+        g.writeNumberField("_v", 1);
+        for (int i = 0; i < profile.extensions; i++) {
+            String id = "addon" + random.nextInt(5000) + "@example.com";
+            g.writeObjectFieldStart(id);
+            g.writeStringField("id", id);
+            g.writeBooleanField("userDisabled", random.nextDouble() < 0.1);
+            g.writeBooleanField("appDisabled", random.nextDouble() < 0.05);
+            g.writeStringField("version", (1 + random.nextInt(5)) + "." + random.nextInt(10));
+            g.writeStringField("type", "extension");
+            g.writeBooleanField("hasBinaryComponents", random.nextDouble() < 0.05);
+            String installDay = formatDay(random.nextInt(profile.ageDays));
+            g.writeStringField("installDate", installDay);
+            g.writeStringField("updateDate", installDay);
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+
+        g.writeEndObject();
+        g.writeFieldName("days");
+        writeDays(g, profile, 2);
+        g.writeEndObject();
+        g.writeEndObject();
+    }
+
+    private void writeDays(JsonGenerator g, Profile profile, int version) throws IOException {
+        g.writeStartObject();
+        String lastVersion = null;
+        for (int daysAgo = profile.ageDays - 1; daysAgo >= 0; daysAgo--) {
+            if (random.nextDouble() >= profile.usageRate && daysAgo > 0) {
+                continue;
+            }
+            g.writeObjectFieldStart(formatDay(daysAgo));
+
+            String appVersion = profile.getVersion(daysAgo);
+            if (!appVersion.equals(lastVersion)) {
+                writeVersions(g, profile, version, daysAgo, lastVersion, appVersion);
+                lastVersion = appVersion;
+            }
+
+            int sessions = Math.max(1, poisson(profile.sessionsPerDay));
+            writeSessions(g, sessions);
+
+            int searches = profile.searchesPerDay > 0 ? poisson(profile.searchesPerDay * sessions / profile.sessionsPerDay) : 0;
+            if (searches > 0) {
+                g.writeObjectFieldStart("org.mozilla.searches.counts");
+                g.writeNumberField("_v", 1);
+                int engine = choose(ENGINE_WEIGHTS);
+                while (searches > 0) {
+                    int count = 1 + random.nextInt(searches);
+                    g.writeNumberField(ENGINES[engine] + "." + SEARCH_CONTEXTS[choose(SEARCH_CONTEXT_WEIGHTS)], count);
+                    searches -= count;
+                    // most people stick to one engine
+                    if (random.nextDouble() < 0.1) {
+                        engine = choose(ENGINE_WEIGHTS);
+                    }
+                }
+                g.writeEndObject();
+            }
+
+            if (random.nextDouble() < profile.crashRate) {
+                g.writeObjectFieldStart("org.mozilla.crashes.crashes");
+                g.writeNumberField("_v", 1);
+                int crashes = 1 + poisson(0.5);
+                int submitted = random.nextDouble() < 0.3 ? random.nextInt(crashes + 1) : 0;
+                g.writeNumberField("pending", crashes - submitted);
+                if (submitted > 0) {
+                    g.writeNumberField("submitted", submitted);
+                }
+                g.writeEndObject();
+            }
+
+            if (random.nextDouble() < 0.2) {
+                g.writeObjectFieldStart("org.mozilla.addons.counts");
+                g.writeNumberField("_v", 1);
+                g.writeNumberField("extension", profile.extensions);
+                g.writeNumberField("plugin", profile.plugins);
+                g.writeNumberField("theme", 1);
+                g.writeEndObject();
+            }
+
+            if (random.nextDouble() < 0.1) {
+                g.writeObjectFieldStart("org.mozilla.places.places");
+                g.writeNumberField("_v", 1);
+                g.writeNumberField("bookmarks", logNormal(50, 1.5));
+                g.writeNumberField("pages", logNormal(2000, 1.5));
+                g.writeEndObject();
+            }
+
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+    }
+
+    private void writeVersions(JsonGenerator g, Profile profile, int version, int daysAgo,
+                               String lastVersion, String appVersion) throws IOException {
+        g.writeObjectFieldStart("org.mozilla.appInfo.versions");
+        if (version == 1) {
+            g.writeNumberField("_v", 1);
+            g.writeArrayFieldStart("version");
+            g.writeString(appVersion);
+            g.writeEndArray();
+        } else {
+            g.writeNumberField("_v", 2);
+            // an upgrade part way through the day records both versions
+            boolean upgraded = lastVersion != null && random.nextDouble() < 0.3;
+            String[] fields = { "appVersion", "platformVersion", "appBuildID", "platformBuildID" };
+            for (int i = 0; i < fields.length; i++) {
+                g.writeArrayFieldStart(fields[i]);
+                if (upgraded) {
+                    g.writeString(i < 2 ? lastVersion : profile.getBuildId(daysAgo + 1));
+                }
+                g.writeString(i < 2 ? appVersion : profile.getBuildId(daysAgo));
+                g.writeEndArray();
+            }
+        }
+        g.writeEndObject();
+    }
+
+    private void writeSessions(JsonGenerator g, int sessions) throws IOException {
+        int aborted = 0;
+        for (int i = 0; i < sessions; i++) {
+            if (random.nextDouble() < 0.05) {
+                aborted++;
+            }
+        }
+        int clean = sessions - aborted;
+
+        g.writeObjectFieldStart("org.mozilla.appSessions.previous");
+        g.writeNumberField("_v", 3);
+        writeTimes(g, "main", sessions, 300, 0.5);
+        writeTimes(g, "firstPaint", sessions, 1500, 0.6);
+        writeTimes(g, "sessionRestored", sessions, 2000, 0.7);
+        if (clean > 0) {
+            writeTimes(g, "cleanActiveTicks", clean, 400, 1.2);
+            writeTimes(g, "cleanTotalTime", clean, 3600, 1.3);
+        }
+        if (aborted > 0) {
+            writeTimes(g, "abortedActiveTicks", aborted, 400, 1.2);
+            writeTimes(g, "abortedTotalTime", aborted, 3600, 1.3);
+        }
+        g.writeEndObject();
+    }
+
+    private void writeTimes(JsonGenerator g, String field, int count, double median, double sigma) throws IOException {
+        g.writeArrayFieldStart(field);
+        for (int i = 0; i < count; i++) {
+            g.writeNumber(Math.max(1, logNormal(median, sigma)));
+        }
+        g.writeEndArray();
+    }
+
+    /**
+     * Wraps the next document in a BagheeraMessage the way the bagheera server would,
+     * with a random id and client address.
+     */
+    public BagheeraMessage nextMessage(String namespace) throws IOException {
+        byte[] ipAddr = new byte[4];
+        random.nextBytes(ipAddr);
+        return BagheeraMessage.newBuilder()
+            .setNamespace(namespace)
+            .setId(new UUID(random.nextLong(), random.nextLong()).toString())
+            .setOperation(Operation.CREATE_UPDATE)
+            .setIpAddr(ByteString.copyFrom(ipAddr))
+            .setTimestamp(pingTime + (long)(random.nextDouble() * DAY_MILLIS))
+            .setPayload(ByteString.copyFrom(nextDocument()))
+            .build();
+    }
+
+    public static Options getOptions() {
+        OptionFactory optFactory = OptionFactory.getInstance();
+        Options options = new Options();
+        options.addOption(optFactory.create("o", "output", true, "Output file (gzipped if it ends with .gz).").required());
+        options.addOption(optFactory.create("n", "count", true, "Number of documents (default: 1000)."));
+        options.addOption(optFactory.create("s", "seed", true, "Random seed (default: 0)."));
+        options.addOption(optFactory.create("f", "format", true, "json for one document per line or bagheera for length-delimited BagheeraMessages (default: json)."));
+        options.addOption(optFactory.create("ns", "namespace", true, "Namespace of generated BagheeraMessages (default: metrics)."));
+        options.addOption(optFactory.create("d", "date", true, "Ping date as yyyy-MM-dd (default: 2013-04-01)."));
+        options.addOption(optFactory.create("rv", "releaseversion", true, "Release channel major version on the ping date (default: 20)."));
+        options.addOption(optFactory.create("v1", "v1rate", true, "Fraction of version 1 documents (default: 0.1)."));
+        options.addOption(optFactory.create("hp", "heavyrate", true, "Fraction of heavy profiles (default: 0.005)."));
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = getOptions();
+        CommandLineParser parser = new GnuParser();
+        try {
+            CommandLine cmd = parser.parse(options, args);
+
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            cal.setTime(sdf.parse(cmd.getOptionValue("date", "2013-04-01")));
+
+            FHRDocumentGenerator generator = new FHRDocumentGenerator(Long.parseLong(cmd.getOptionValue("seed", "0")),
+                                                                      cal.getTimeInMillis(),
+                                                                      Integer.parseInt(cmd.getOptionValue("releaseversion", "20")));
+            generator.setV1Rate(Double.parseDouble(cmd.getOptionValue("v1rate", "0.1")));
+            generator.setHeavyProfileRate(Double.parseDouble(cmd.getOptionValue("heavyrate", "0.005")));
+
+            int count = Integer.parseInt(cmd.getOptionValue("count", "1000"));
+            boolean bagheera = "bagheera".equals(cmd.getOptionValue("format", "json"));
+            String namespace = cmd.getOptionValue("namespace", "metrics");
+            String output = cmd.getOptionValue("output");
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+            if (output.endsWith(".gz")) {
+                out = new GZIPOutputStream(out);
+            }
+            long bytes = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (bagheera) {
+                        BagheeraMessage bmsg = generator.nextMessage(namespace);
+                        bmsg.writeDelimitedTo(out);
+                        bytes += bmsg.getPayload().size();
+                    } else {
+                        byte[] document = generator.nextDocument();
+                        out.write(document);
+                        out.write('\n');
+                        bytes += document.length;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            LOG.info(String.format("Wrote %d documents (%d payload bytes) to %s", count, bytes, output));
+        } catch (org.apache.commons.cli.ParseException e) {
+            LOG.error("Error parsing command line options", e);
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(FHRDocumentGenerator.class.getName(), options);
+        } catch (ParseException e) {
+            LOG.error("Invalid ping date", e);
+        }
+    }
+}
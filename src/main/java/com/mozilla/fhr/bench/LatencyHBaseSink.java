@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+
+import com.mozilla.fhr.sink.HBaseSink;
+
+/**
+ * The real HBaseSink, batching and all, writing to tables that accept every row after
+ * sleeping for a fixed time per batch call. This stands in for a cluster with a known
+ * round trip time.
+ */
+public class LatencyHBaseSink extends HBaseSink {
+
+    public LatencyHBaseSink(String tableName, int batchSize, long batchLatencyMillis) {
+        super(tableName, "data", "json", false, 1, batchSize);
+        hbasePool = new LatencyHTablePool(batchLatencyMillis);
+    }
+
+    static class LatencyHTablePool extends HTablePool {
+
+        private final HTableInterface table;
+
+        LatencyHTablePool(final long batchLatencyMillis) {
+            table = (HTableInterface)Proxy.newProxyInstance(HTableInterface.class.getClassLoader(),
+                                                            new Class<?>[] { HTableInterface.class },
+                                                            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("batch".equals(method.getName()) && args.length == 1) {
+                        Thread.sleep(batchLatencyMillis);
+                        Object[] results = new Object[((List<?>)args[0]).size()];
+                        for (int i = 0; i < results.length; i++) {
+                            results[i] = Boolean.TRUE;
+                        }
+                        return results;
+                    } else if (method.getReturnType() == Void.TYPE) {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        @Override
+        public HTableInterface getTable(byte[] tableName) {
+            return table;
+        }
+
+        @Override
+        public HTableInterface getTable(String tableName) {
+            return table;
+        }
+
+        @Override
+        public void closeTablePool(byte[] tableName) {
+        }
+    }
+}
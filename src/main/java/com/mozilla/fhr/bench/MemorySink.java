@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mozilla.bagheera.sink.KeyValueSink;
+
+/**
+ * Keeps the latest value of every key on the heap, which adds the cost of
+ * retaining the output to a replay and lets the stored documents be inspected.
+ */
+public class MemorySink implements KeyValueSink {
+
+    private final ConcurrentMap<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+
+    @Override
+    public void store(String key, byte[] data) throws IOException {
+        values.put(key, data);
+    }
+
+    @Override
+    public void store(String key, byte[] data, long timestamp) throws IOException {
+        values.put(key, data);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        values.remove(key);
+    }
+
+    public byte[] get(String key) {
+        return values.get(key);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import java.io.IOException;
+
+import com.mozilla.bagheera.sink.KeyValueSink;
+
+/**
+ * Discards everything, so a replay measures the consumer alone.
+ */
+public class NoopSink implements KeyValueSink {
+
+    @Override
+    public void store(String key, byte[] data) throws IOException {
+    }
+
+    @Override
+    public void store(String key, byte[] data, long timestamp) throws IOException {
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import kafka.message.Message;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.cli.OptionFactory;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.fhr.consumer.FHRMessageProcessor;
+import com.mozilla.fhr.geoip.CountryLookup;
+import com.mozilla.fhr.geoip.CountryRangeTable;
+import com.mozilla.fhr.geoip.CountryTableFile;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Replays recorded BagheeraMessages through the same decode and process steps as
+ * the consumer's stream workers, without Kafka or HBase, and reports throughput and
+ * per-message latency.
+ *
+ * Input files hold length-delimited BagheeraMessages (optionally gzipped). All records
+ * are loaded up front and replayed round robin until the requested number of messages
+ * has been processed, so the payload mix is the mix of the input files.
+ */
+public class ReplayHarness {
+
+    private static final Logger LOG = Logger.getLogger(ReplayHarness.class);
+
+    private final FHRMessageProcessor processor;
+    private final KeyValueSink sink;
+    private final int numThreads;
+
+    public ReplayHarness(FHRMessageProcessor processor, KeyValueSink sink, int numThreads) {
+        this.processor = processor;
+        this.sink = sink;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+
+        public final long messages;
+        public final long bytes;
+        public final long failures;
+        public final long elapsedNanos;
+        // per-message latency in microseconds
+        public final Snapshot latency;
+
+        Result(long messages, long bytes, long failures, long elapsedNanos, Snapshot latency) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public double getMessagesPerSecond() {
+            return messages / (elapsedNanos / 1e9);
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+
+        public void report(PrintStream out) {
+            out.println(String.format("messages: %d (%d failed) in %.3fs", messages, failures, elapsedNanos / 1e9));
+            out.println(String.format("throughput: %.1f msgs/sec, %.2f MB/sec", getMessagesPerSecond(), getMegabytesPerSecond()));
+            out.println(String.format("latency (us): median=%.0f p75=%.0f p95=%.0f p99=%.0f p999=%.0f max=%.0f",
+                                      latency.getMedian(), latency.get75thPercentile(), latency.get95thPercentile(),
+                                      latency.get99thPercentile(), latency.get999thPercentile(),
+                                      latency.getValues().length == 0 ? 0.0 : latency.getValues()[latency.getValues().length - 1]));
+        }
+    }
+
+    /**
+     * Reads length-delimited BagheeraMessages and returns each one serialized the way
+     * it would arrive in a Kafka message.
+     */
+    public static List<byte[]> readRecords(List<File> files) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (File file : files) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                if (file.getName().endsWith(".gz")) {
+                    in = new GZIPInputStream(in);
+                }
+                BagheeraMessage bmsg;
+                while ((bmsg = BagheeraMessage.parseDelimitedFrom(in)) != null) {
+                    records.add(bmsg.toByteArray());
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return records;
+    }
+
+    public Result run(final List<byte[]> records, final long messageCount) throws InterruptedException {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to replay");
+        }
+
+        // start every run from an empty sample
+        MetricName latencyName = new MetricName("bagheera", "replay", "latency");
+        Metrics.defaultRegistry().removeMetric(latencyName);
+        final Histogram latency = Metrics.newHistogram(latencyName, false);
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(numThreads);
+        long startTime = System.nanoTime();
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        long n;
+                        while ((n = next.getAndIncrement()) < messageCount) {
+                            byte[] record = records.get((int)(n % records.size()));
+                            long messageStart = System.nanoTime();
+                            try {
+                                BagheeraMessage bmsg = processor.decode(new Message(record));
+                                processor.process(sink, bmsg);
+                            } catch (IOException e) {
+                                failures.incrementAndGet();
+                                LOG.error("Error processing message", e);
+                            }
+                            latency.update((System.nanoTime() - messageStart) / 1000);
+                            bytes.addAndGet(record.length);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Replay thread failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return new Result(Math.min(next.get(), messageCount), bytes.get(), failures.get(), elapsed, latency.getSnapshot());
+    }
+
+    static KeyValueSink createSink(CommandLine cmd) {
+        String sinkType = cmd.getOptionValue("sink", "noop");
+        if ("noop".equals(sinkType)) {
+            return new NoopSink();
+        } else if ("memory".equals(sinkType)) {
+            return new MemorySink();
+        } else if ("hbase".equals(sinkType)) {
+            return new LatencyHBaseSink("replay",
+                                        Integer.parseInt(cmd.getOptionValue("batchsize", "100")),
+                                        Long.parseLong(cmd.getOptionValue("latency", "10")));
+        }
+        throw new IllegalArgumentException("Unknown sink type: " + sinkType);
+    }
+
+    public static Options getOptions() {
+        OptionFactory optFactory = OptionFactory.getInstance();
+        Options options = new Options();
+        options.addOption(optFactory.create("i", "input", true, "Comma separated files of length-delimited BagheeraMessages.").required());
+        options.addOption(optFactory.create("n", "messages", true, "Number of messages to process (default: one pass over the input)."));
+        options.addOption(optFactory.create("t", "numthreads", true, "Number of processing threads (default: 1)."));
+        options.addOption(optFactory.create("s", "sink", true, "Sink: noop, memory or hbase (default: noop)."));
+        options.addOption(optFactory.create("b", "batchsize", true, "Batch size of the hbase sink (default: 100)."));
+        options.addOption(optFactory.create("l", "latency", true, "Milliseconds each hbase sink batch takes (default: 10)."));
+        options.addOption(optFactory.create("g", "geoip", true, "Compiled country table to look addresses up in."));
+        options.addOption(optFactory.create("w", "warmup", true, "Number of messages to process before measuring (default: 0)."));
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = getOptions();
+        CommandLineParser parser = new GnuParser();
+        try {
+            CommandLine cmd = parser.parse(options, args);
+
+            List<File> files = new ArrayList<File>();
+            for (String path : cmd.getOptionValue("input").split(",")) {
+                files.add(new File(path));
+            }
+            List<byte[]> records = readRecords(files);
+            LOG.info(String.format("Loaded %d records from %d files", records.size(), files.size()));
+
+            CountryLookup countryLookup;
+            if (cmd.hasOption("geoip")) {
+                countryLookup = CountryTableFile.map(new File(cmd.getOptionValue("geoip")), 65536);
+            } else {
+                countryLookup = new CountryRangeTable.Builder().add(0, null).build(0);
+            }
+
+            KeyValueSink sink = createSink(cmd);
+            try {
+                FHRMessageProcessor processor = new FHRMessageProcessor("replay", countryLookup);
+                ReplayHarness harness = new ReplayHarness(processor, sink,
+                                                          Integer.parseInt(cmd.getOptionValue("numthreads", "1")));
+                long warmup = Long.parseLong(cmd.getOptionValue("warmup", "0"));
+                if (warmup > 0) {
+                    harness.run(records, warmup);
+                }
+                long messageCount = Long.parseLong(cmd.getOptionValue("messages", String.valueOf(records.size())));
+                harness.run(records, messageCount).report(System.out);
+            } finally {
+                sink.close();
+                countryLookup.close();
+            }
+        } catch (ParseException e) {
+            LOG.error("Error parsing command line options", e);
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(ReplayHarness.class.getName(), options);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Per-day facts of a single profile (crashes, aborted sessions, searches by engine
+ * and context, startup times and addon counts) collected while its document is
+ * enriched, so that they can be stored in a table keyed by day instead of being
+ * rebuilt from every profile's full history.
+ *
+ * Each document repeats the whole history, so only the days since the previous
+ * submission (lastPingDate) are kept, and never more than maxDays of them.
+ */
+public class DayFacts implements DocumentObserver {
+
+    public static final String CRASHES_PENDING = "crashes.pending";
+    public static final String CRASHES_SUBMITTED = "crashes.submitted";
+    public static final String SESSIONS_ABORTED = "sessions.aborted";
+    public static final String STARTUP_MAIN = "startup.main";
+    public static final String STARTUP_FIRST_PAINT = "startup.firstpaint";
+    public static final String STARTUP_SESSION_RESTORED = "startup.sessionrestored";
+    public static final String ADDONS_PREFIX = "addons.";
+    public static final String SEARCH_PREFIX = "search.";
+
+    private static final String DATA_FIELD = "data";
+    private static final String DAYS_FIELD = "days";
+    private static final String DATA_POINTS_FIELD = "dataPoints";
+    private static final String CRASHES_FIELD = "org.mozilla.crashes.crashes";
+    private static final String APPSESSIONS_FIELD = "org.mozilla.appSessions.previous";
+    private static final String SEARCHES_FIELD = "org.mozilla.searches.counts";
+    private static final String ADDON_COUNTS_FIELD = "org.mozilla.addons.counts";
+
+    private static final ThreadLocal<SimpleDateFormat> DAY_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            sdf.setLenient(false);
+            return sdf;
+        }
+    };
+
+    private final int maxDays;
+    private final Map<String, Map<String, String>> days = new HashMap<String, Map<String, String>>();
+    private String lastPingDate;
+
+    public DayFacts(int maxDays) {
+        this.maxDays = maxDays;
+    }
+
+    /**
+     * @return the depth of the day fields on this path, or 0 if it isn't under the days
+     */
+    private static int getDayDepth(String[] path, int depth) {
+        if (DATA_POINTS_FIELD.equals(path[0])) {
+            return 2;
+        } else if (depth >= 2 && DATA_FIELD.equals(path[0]) && DAYS_FIELD.equals(path[1])) {
+            return 3;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isTracked(String[] path, int depth) {
+        if (depth == 1) {
+            return DATA_FIELD.equals(path[0]) || DATA_POINTS_FIELD.equals(path[0]);
+        }
+        if (depth == 2 && DATA_FIELD.equals(path[0])) {
+            return DAYS_FIELD.equals(path[1]);
+        }
+        int dayDepth = getDayDepth(path, depth);
+        if (dayDepth == 0) {
+            return false;
+        } else if (depth == dayDepth) {
+            return true;
+        } else if (depth == dayDepth + 1) {
+            String section = path[dayDepth];
+            return CRASHES_FIELD.equals(section) || APPSESSIONS_FIELD.equals(section) ||
+                   SEARCHES_FIELD.equals(section) || ADDON_COUNTS_FIELD.equals(section);
+        } else if (depth == dayDepth + 2) {
+            // the per-session arrays
+            String field = path[dayDepth + 1];
+            return APPSESSIONS_FIELD.equals(path[dayDepth]) &&
+                   ("main".equals(field) || "firstPaint".equals(field) ||
+                    "sessionRestored".equals(field) || "abortedTotalTime".equals(field));
+        }
+        return false;
+    }
+
+    @Override
+    public void onField(String[] path, int depth) {
+    }
+
+    @Override
+    public void onValue(String[] path, int depth, String value) {
+        if (depth == 1) {
+            if ("lastPingDate".equals(path[0])) {
+                lastPingDate = value;
+            }
+            return;
+        }
+        int dayDepth = getDayDepth(path, depth);
+        if (dayDepth == 0 || depth != dayDepth + 2) {
+            return;
+        }
+
+        String section = path[dayDepth];
+        String field = path[dayDepth + 1];
+        if ("_v".equals(field)) {
+            return;
+        }
+        Map<String, String> facts = getFacts(path[dayDepth - 1]);
+        if (CRASHES_FIELD.equals(section)) {
+            if ("pending".equals(field)) {
+                facts.put(CRASHES_PENDING, value);
+            } else if ("submitted".equals(field)) {
+                facts.put(CRASHES_SUBMITTED, value);
+            }
+        } else if (SEARCHES_FIELD.equals(section)) {
+            facts.put(SEARCH_PREFIX + field, value);
+        } else if (ADDON_COUNTS_FIELD.equals(section)) {
+            facts.put(ADDONS_PREFIX + field, value);
+        } else if (APPSESSIONS_FIELD.equals(section)) {
+            if ("main".equals(field)) {
+                append(facts, STARTUP_MAIN, value);
+            } else if ("firstPaint".equals(field)) {
+                append(facts, STARTUP_FIRST_PAINT, value);
+            } else if ("sessionRestored".equals(field)) {
+                append(facts, STARTUP_SESSION_RESTORED, value);
+            } else if ("abortedTotalTime".equals(field)) {
+                String count = facts.get(SESSIONS_ABORTED);
+                facts.put(SESSIONS_ABORTED, String.valueOf(count == null ? 1 : Integer.parseInt(count) + 1));
+            }
+        }
+    }
+
+    private Map<String, String> getFacts(String day) {
+        Map<String, String> facts = days.get(day);
+        if (facts == null) {
+            facts = new LinkedHashMap<String, String>();
+            days.put(day, facts);
+        }
+        return facts;
+    }
+
+    private static void append(Map<String, String> facts, String column, String value) {
+        String values = facts.get(column);
+        facts.put(column, values == null ? value : values + "," + value);
+    }
+
+    /**
+     * @return the facts of each day since the previous submission, keyed by yyyy-MM-dd,
+     *         including the last ping's own day since it may have had more activity after
+     *         it was sent; fit for storing by day, where a day written again replaces itself
+     */
+    public SortedMap<String, Map<String, String>> getDays() {
+        return getDays(true);
+    }
+
+    /**
+     * @return the facts of each day after the previous submission's day, which no earlier
+     *         submission reported; fit for adding up, where the last ping's day would
+     *         otherwise be counted once partially and again in full
+     */
+    public SortedMap<String, Map<String, String>> getNewDays() {
+        return getDays(false);
+    }
+
+    private SortedMap<String, Map<String, String>> getDays(boolean includeLastPingDay) {
+        TreeMap<String, Map<String, String>> recent = new TreeMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> day : days.entrySet()) {
+            if (!isDay(day.getKey())) {
+                continue;
+            }
+            int order = lastPingDate == null ? 1 : day.getKey().compareTo(lastPingDate);
+            if (order > 0 || (order == 0 && includeLastPingDay)) {
+                recent.put(day.getKey(), day.getValue());
+            }
+        }
+        while (recent.size() > maxDays) {
+            recent.remove(recent.firstKey());
+        }
+        return recent;
+    }
+
+    /**
+     * @return true if the string is a valid yyyy-MM-dd day
+     */
+    public static boolean isDay(String day) {
+        if (day == null || day.length() != 10) {
+            return false;
+        }
+        try {
+            parseDay(day);
+            return true;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the start of the given yyyy-MM-dd day in ms since epoch (UTC)
+     */
+    public static long parseDay(String day) throws ParseException {
+        return DAY_FORMAT.get().parse(day).getTime();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.fhr.util.RateLimitedLogger;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Keeps messages the consumer could not store in rolling, gzipped files on local
+ * disk. Callers hand over the raw protobuf bytes and a reason and return at once; a
+ * single background thread does all of the file I/O. The records waiting for it are
+ * bounded in bytes, since they are often the largest payloads in the stream; when the
+ * writer falls behind, records are dropped and counted rather than slowing down the
+ * stream workers or filling the heap. Completed files are bounded in total bytes too:
+ * once they go over, the oldest are deleted and counted, so a flood of bad messages
+ * can't fill the disk.
+ *
+ * Each file is a sequence of records of:
+ * <pre>
+ *   byte   reason code
+ *   long   time spooled (ms since epoch)
+ *   int    length
+ *   byte[] raw BagheeraMessage
+ * </pre>
+ * Files are written with a .tmp suffix and renamed once complete.
+ */
+public class DeadLetterSpool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(DeadLetterSpool.class);
+
+    static final String FILE_SUFFIX = ".dead.gz";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    public static enum Reason {
+        INVALID_PROTOBUF(1), INVALID_JSON(2), OVERSIZED(3), OVERFLOW(4), POISON(5);
+
+        private final int code;
+
+        private Reason(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public static Reason fromCode(int code) {
+            for (Reason reason : values()) {
+                if (reason.code == code) {
+                    return reason;
+                }
+            }
+            throw new IllegalArgumentException("Unknown reason code: " + code);
+        }
+    }
+
+    public static class Record {
+        public final Reason reason;
+        public final long timestamp;
+        public final byte[] data;
+
+        public Record(Reason reason, long timestamp, byte[] data) {
+            this.reason = reason;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final long maxFileBytes;
+    private final long maxFileAgeMillis;
+    private final long maxTotalBytes;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+    private final long maxQueueBytes;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Thread writer;
+    private final RateLimitedLogger errorLog;
+    private volatile boolean running = true;
+
+    private File currentFile;
+    private DataOutputStream out;
+    private long currentBytes;
+    private long currentOpened;
+    private int sequence;
+
+    protected final Meter spooled;
+    protected final Meter dropped;
+    protected final Meter expired;
+
+    /**
+     * @param maxTotalBytes bytes of completed files kept before the oldest are deleted
+     */
+    public DeadLetterSpool(File directory, String prefix, long maxFileBytes, long maxFileAgeMillis, long maxQueueBytes,
+                           long maxTotalBytes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create dead letter directory " + directory);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMillis = maxFileAgeMillis;
+        this.maxQueueBytes = maxQueueBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.errorLog = new RateLimitedLogger(LOG, 60, TimeUnit.SECONDS);
+
+        spooled = Metrics.newMeter(new MetricName("bagheera", "consumer", prefix + ".deadletter.spooled"), "messages", TimeUnit.SECONDS);
+        dropped = Metrics.newMeter(new MetricName("bagheera", "consumer", prefix + ".deadletter.dropped"), "messages", TimeUnit.SECONDS);
+        expired = Metrics.newMeter(new MetricName("bagheera", "consumer", prefix + ".deadletter.expired"), "files", TimeUnit.SECONDS);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "dead-letter-spool");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message for the spool without blocking.
+     *
+     * @return false if the spool is full or closed and the message was dropped
+     */
+    public boolean offer(Reason reason, byte[] data) {
+        if (running) {
+            if (queuedBytes.addAndGet(data.length) <= maxQueueBytes) {
+                queue.add(new Record(reason, System.currentTimeMillis(), data));
+                return true;
+            }
+            queuedBytes.addAndGet(-data.length);
+        }
+        dropped.mark();
+        return false;
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void writeLoop() {
+        // files left by an earlier run count towards the total
+        expireFiles();
+        while (running || !queue.isEmpty()) {
+            try {
+                Record record = queue.poll(1, TimeUnit.SECONDS);
+                if (record != null) {
+                    write(record);
+                    queuedBytes.addAndGet(-record.data.length);
+                }
+                if (out != null && (currentBytes >= maxFileBytes ||
+                                    System.currentTimeMillis() - currentOpened >= maxFileAgeMillis)) {
+                    closeFile();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        closeFile();
+    }
+
+    private void write(Record record) {
+        try {
+            if (out == null) {
+                openFile();
+            }
+            out.writeByte(record.reason.getCode());
+            out.writeLong(record.timestamp);
+            out.writeInt(record.data.length);
+            out.write(record.data);
+            currentBytes += 13 + record.data.length;
+            spooled.mark();
+        } catch (IOException e) {
+            dropped.mark();
+            errorLog.error("Error writing to dead letter file", e);
+            // start over in a fresh file with the next record
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        currentFile = new File(directory, String.format("%s-%s-%06d%s%s", prefix, timestamp, sequence++, FILE_SUFFIX, TMP_SUFFIX));
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(currentFile), 65536)));
+        currentBytes = 0;
+        currentOpened = System.currentTimeMillis();
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            String name = currentFile.getName();
+            File complete = new File(directory, name.substring(0, name.length() - TMP_SUFFIX.length()));
+            if (!currentFile.renameTo(complete)) {
+                errorLog.error("Failed to rename dead letter file " + currentFile, null);
+            }
+        } catch (IOException e) {
+            errorLog.error("Error closing dead letter file", e);
+        } finally {
+            out = null;
+            currentFile = null;
+        }
+        expireFiles();
+    }
+
+    /**
+     * Deletes the oldest completed files until the rest fit in maxTotalBytes.
+     */
+    private void expireFiles() {
+        final String filePrefix = prefix + "-";
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> complete = new ArrayList<File>(files.length);
+        long totalBytes = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(filePrefix) && file.getName().endsWith(FILE_SUFFIX)) {
+                complete.add(file);
+                totalBytes += file.length();
+            }
+        }
+        if (totalBytes <= maxTotalBytes) {
+            return;
+        }
+        // names sort by the time the file was opened
+        File[] oldestFirst = complete.toArray(new File[complete.size()]);
+        Arrays.sort(oldestFirst);
+        for (int i = 0; i < oldestFirst.length && totalBytes > maxTotalBytes; i++) {
+            long length = oldestFirst[i].length();
+            if (oldestFirst[i].delete()) {
+                totalBytes -= length;
+                expired.mark();
+                errorLog.warn("Deleted the oldest dead letter files to stay within the total size limit");
+            }
+        }
+    }
+
+    /**
+     * Reads back the records of a spool file.
+     */
+    public static List<Record> read(File file) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            while (true) {
+                int code;
+                try {
+                    code = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long timestamp = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                records.add(new Record(Reason.fromCode(code), timestamp, data));
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * Writes out everything already queued and closes the current file.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            LOG.warn("Timed out waiting for dead letter spool to drain");
+            writer.interrupt();
+        }
+        errorLog.flush();
+    }
+}
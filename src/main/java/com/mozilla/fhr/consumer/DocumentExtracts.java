@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Everything the consumer extracts from a document besides the enriched payload
+ * itself: the summary columns and the per-day facts, either of which may be absent.
+ */
+public class DocumentExtracts implements DocumentObserver {
+
+    // deep enough for data.days.<day>.<section>.<field>
+    static final int MAX_DEPTH = 8;
+
+    private final DocumentSummary summary;
+    private final DayFacts facts;
+
+    public DocumentExtracts(DocumentSummary summary, DayFacts facts) {
+        this.summary = summary;
+        this.facts = facts;
+    }
+
+    public DocumentSummary getSummary() {
+        return summary;
+    }
+
+    public DayFacts getFacts() {
+        return facts;
+    }
+
+    @Override
+    public boolean isTracked(String[] path, int depth) {
+        return (summary != null && summary.isTracked(path, depth)) ||
+               (facts != null && facts.isTracked(path, depth));
+    }
+
+    @Override
+    public void onField(String[] path, int depth) {
+        if (summary != null) {
+            summary.onField(path, depth);
+        }
+        if (facts != null) {
+            facts.onField(path, depth);
+        }
+    }
+
+    @Override
+    public void onValue(String[] path, int depth, String value) {
+        if (summary != null) {
+            summary.onValue(path, depth, value);
+        }
+        if (facts != null) {
+            facts.onValue(path, depth, value);
+        }
+    }
+
+    /**
+     * Collects the extracts from a document that has already been bound to a tree.
+     */
+    public void observe(JsonNode document) {
+        walk(this, document, new String[MAX_DEPTH], 0);
+    }
+
+    static void walk(DocumentObserver observer, JsonNode node, String[] path, int depth) {
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            path[depth] = field.getKey();
+            observer.onField(path, depth + 1);
+            JsonNode value = field.getValue();
+            if (value.isContainerNode() && observer.isTracked(path, depth + 1)) {
+                if (value.isObject()) {
+                    walk(observer, value, path, depth + 1);
+                } else {
+                    for (JsonNode element : value) {
+                        if (element.isValueNode() && !element.isNull()) {
+                            observer.onValue(path, depth + 1, element.asText());
+                        }
+                    }
+                }
+            } else if (value.isValueNode() && !value.isNull()) {
+                observer.onValue(path, depth + 1, value.asText());
+            }
+        }
+    }
+}
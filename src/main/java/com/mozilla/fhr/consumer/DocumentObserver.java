@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+/**
+ * Collects values from a document while it is being enriched. The document is walked
+ * by path from the top-level object; only objects and arrays the observer tracks are
+ * walked into, everything else is copied without being reported.
+ *
+ * A path holds the field names from the top-level object down, and depth is the
+ * number of them in use, so the current field is path[depth - 1].
+ */
+public interface DocumentObserver {
+
+    /**
+     * @return true if the object or array at the given path should be walked
+     */
+    boolean isTracked(String[] path, int depth);
+
+    /**
+     * Called for each field of a tracked object.
+     */
+    void onField(String[] path, int depth);
+
+    /**
+     * Called for each non-null scalar field of a tracked object, and for each non-null
+     * scalar element of a tracked array.
+     */
+    void onValue(String[] path, int depth, String value);
+}
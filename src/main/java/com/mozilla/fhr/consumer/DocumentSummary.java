@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The handful of dimensions analysis jobs read from every document, collected while
+ * the document is enriched so that they can be stored next to it and scanned without
+ * parsing the full payload.
+ *
+ * Only the few small objects that hold dimensions are tracked; everything else is
+ * copied without being looked at.
+ */
+public class DocumentSummary implements DocumentObserver {
+
+    public static final String PRODUCT = "product";
+    public static final String VERSION = "version";
+    public static final String CHANNEL = "channel";
+    public static final String OS = "os";
+    public static final String OS_VERSION = "osversion";
+    public static final String GEO_COUNTRY = "geo";
+    public static final String FIRST_PING = "firstping";
+    public static final String LATEST_PING = "latestping";
+    public static final String PROFILE_CREATION = "profilecreation";
+    public static final String PAYLOAD_SIZE = "size";
+    public static final String SCHEMA_VERSION = "schema";
+    public static final String ERRORS = "errors";
+
+    private static final String DATA_FIELD = "data";
+    private static final String LAST_FIELD = "last";
+    private static final String DAYS_FIELD = "days";
+    private static final String DATA_POINTS_FIELD = "dataPoints";
+    private static final String APPINFO_FIELD = "org.mozilla.appInfo.appinfo";
+    private static final String SYSINFO_FIELD = "org.mozilla.sysinfo.sysinfo";
+    private static final String PROFILE_AGE_FIELD = "org.mozilla.profile.age";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private String product;
+    private String version;
+    private String channel;
+    private String os;
+    private String osVersion;
+    private String geoCountry;
+    private String firstPing;
+    private String latestPing;
+    private String profileCreation;
+    private String schemaVersion;
+    private boolean errors;
+    private int payloadSize;
+
+    // version 1 documents only carry the profile age as of the ping
+    private String thisPingTime;
+    private String appProfileAge;
+
+    @Override
+    public boolean isTracked(String[] path, int depth) {
+        switch (depth) {
+        case 1:
+            return DATA_FIELD.equals(path[0]) || DATA_POINTS_FIELD.equals(path[0]);
+        case 2:
+            return DATA_FIELD.equals(path[0]) && (LAST_FIELD.equals(path[1]) || DAYS_FIELD.equals(path[1]));
+        case 3:
+            return DATA_FIELD.equals(path[0]) && LAST_FIELD.equals(path[1]) &&
+                   (APPINFO_FIELD.equals(path[2]) || SYSINFO_FIELD.equals(path[2]) || PROFILE_AGE_FIELD.equals(path[2]));
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public void onField(String[] path, int depth) {
+        if (depth == 1 && ERRORS.equals(path[0])) {
+            errors = true;
+        } else if ((depth == 2 && DATA_POINTS_FIELD.equals(path[0])) ||
+                   (depth == 3 && DATA_FIELD.equals(path[0]) && DAYS_FIELD.equals(path[1]))) {
+            onDay(path[depth - 1]);
+        }
+    }
+
+    private void onDay(String day) {
+        if (firstPing == null || day.compareTo(firstPing) < 0) {
+            firstPing = day;
+        }
+        if (latestPing == null || day.compareTo(latestPing) > 0) {
+            latestPing = day;
+        }
+    }
+
+    @Override
+    public void onValue(String[] path, int depth, String value) {
+        if (depth == 1) {
+            String field = path[0];
+            if (VERSION.equals(field)) {
+                schemaVersion = value;
+            } else if ("appName".equals(field)) {
+                product = value;
+            } else if ("appVersion".equals(field)) {
+                version = value;
+            } else if ("updateChannel".equals(field)) {
+                channel = value;
+            } else if ("OSName".equals(field)) {
+                os = value;
+            } else if ("OSVersion".equals(field)) {
+                osVersion = value;
+            } else if ("thisPingTime".equals(field)) {
+                thisPingTime = value;
+            } else if ("appProfileAge".equals(field)) {
+                appProfileAge = value;
+            }
+        } else if (depth == 4) {
+            String section = path[2];
+            String field = path[3];
+            if (APPINFO_FIELD.equals(section)) {
+                if ("name".equals(field)) {
+                    product = value;
+                } else if (VERSION.equals(field)) {
+                    version = value;
+                } else if ("updateChannel".equals(field)) {
+                    channel = value;
+                } else if (OS.equals(field)) {
+                    os = value;
+                }
+            } else if (SYSINFO_FIELD.equals(section)) {
+                if (VERSION.equals(field)) {
+                    osVersion = value;
+                }
+            } else if (PROFILE_AGE_FIELD.equals(section)) {
+                if ("profileCreation".equals(field)) {
+                    profileCreation = value;
+                }
+            }
+        }
+    }
+
+    public void setGeoCountry(String geoCountry) {
+        this.geoCountry = geoCountry;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    private String getProfileCreation() {
+        if (profileCreation == null && thisPingTime != null && appProfileAge != null) {
+            try {
+                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+                sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+                long pingDay = sdf.parse(thisPingTime).getTime() / DAY_MILLIS;
+                return String.valueOf(pingDay - Long.parseLong(appProfileAge));
+            } catch (ParseException e) {
+                return null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return profileCreation;
+    }
+
+    /**
+     * @return the collected dimensions by column name, leaving out any that are missing
+     */
+    public Map<String, String> toColumns() {
+        Map<String, String> columns = new LinkedHashMap<String, String>();
+        put(columns, PRODUCT, product);
+        put(columns, VERSION, version);
+        put(columns, CHANNEL, channel);
+        put(columns, OS, os);
+        put(columns, OS_VERSION, osVersion);
+        put(columns, GEO_COUNTRY, geoCountry);
+        put(columns, FIRST_PING, firstPing);
+        put(columns, LATEST_PING, latestPing);
+        put(columns, PROFILE_CREATION, getProfileCreation());
+        put(columns, PAYLOAD_SIZE, String.valueOf(payloadSize));
+        put(columns, SCHEMA_VERSION, schemaVersion);
+        put(columns, ERRORS, errors ? "1" : "0");
+        return columns;
+    }
+
+    private static void put(Map<String, String> columns, String name, String value) {
+        if (value != null) {
+            columns.put(name, value);
+        }
+    }
+}
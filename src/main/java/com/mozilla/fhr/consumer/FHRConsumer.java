@@ -20,21 +20,24 @@
 package com.mozilla.fhr.consumer;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kafka.consumer.KafkaStream;
 import kafka.message.Message;
@@ -48,16 +51,10 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.protobuf.ByteString;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.maxmind.geoip.Location;
 import com.maxmind.geoip.LookupService;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
-import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
 import com.mozilla.bagheera.cli.OptionFactory;
 import com.mozilla.bagheera.consumer.KafkaConsumer;
 import com.mozilla.bagheera.metrics.MetricsManager;
@@ -65,8 +62,16 @@ import com.mozilla.bagheera.sink.KeyValueSink;
 import com.mozilla.bagheera.sink.KeyValueSinkFactory;
 import com.mozilla.bagheera.sink.SinkConfiguration;
 import com.mozilla.bagheera.util.ShutdownHook;
+import com.mozilla.fhr.geoip.CountryLookup;
+import com.mozilla.fhr.geoip.CountryRangeTable;
+import com.mozilla.fhr.geoip.LookupServiceCountryLookup;
+import com.mozilla.fhr.geoip.ReloadingCountryLookup;
+import com.mozilla.fhr.rollup.RollupAggregator;
 import com.mozilla.fhr.sink.HBaseSink;
+import com.mozilla.fhr.sink.LineFileSink;
+import com.mozilla.fhr.util.RateLimitedLogger;
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 
@@ -74,14 +79,23 @@ public class FHRConsumer extends KafkaConsumer {
 
     private static final Logger LOG = Logger.getLogger(FHRConsumer.class);
 
-    private static final String GEO_COUNTRY_FIELD = "geoCountry";
-    private static final String UNKNOWN_COUNTRY_CODE = "--";
-
-    private ObjectMapper jsonMapper;
-    private LookupService geoIpLookupService;
-
-    protected Meter invalidJsonMeter;
-    protected Meter unknownGeoIpMeter;
+    private final Properties props;
+    private CountryLookup countryLookup;
+    private FHRMessageProcessor processor;
+    private FHRConsumerPipeline pipeline;
+    private NamespaceDispatcher dispatcher;
+    private DeadLetterSpool deadLetterSpool;
+    private RollupAggregator rollups;
+    private StatusServer statusServer;
+    private SlowDocumentTracer tracer;
+    private final List<FHRConsumerWorker> workerTasks = new CopyOnWriteArrayList<FHRConsumerWorker>();
+
+    private final MessageRetrier retrier;
+    private final RateLimitedLogger retryLog = new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS);
+    protected final Meter workerRetries;
+    // streams whose worker stopped on a failure of the stream itself
+    private final AtomicInteger failedStreams = new AtomicInteger();
+    protected final Gauge<Integer> failedStreamsGauge;
 
     public FHRConsumer(String topic, Properties props) {
         this(topic, props, DEFAULT_NUM_THREADS);
@@ -89,45 +103,191 @@ public class FHRConsumer extends KafkaConsumer {
 
     public FHRConsumer(String topic, Properties props, int numThreads) {
         super(topic, props, numThreads);
-        jsonMapper = new ObjectMapper();
-        String maxmindPath = props.getProperty("maxmind.db.path");
+        this.props = props;
         try {
-            geoIpLookupService = new LookupService(maxmindPath, LookupService.GEOIP_MEMORY_CACHE);
+            countryLookup = createCountryLookup(props);
         } catch (IOException e) {
             LOG.error("Failed to load geoip database", e);
             throw new RuntimeException(e);
         }
 
-        invalidJsonMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".json.invalid"), "messages", TimeUnit.SECONDS);
-        unknownGeoIpMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".geoip.unknown"), "messages", TimeUnit.SECONDS);
+        processor = new FHRMessageProcessor(topic, countryLookup);
+        processor.setStreamingEnrichment(Boolean.parseBoolean(props.getProperty("consumer.json.streaming", "true")));
+        processor.setErrorLogInterval(Long.parseLong(props.getProperty("consumer.errorlog.interval.seconds", "10")), TimeUnit.SECONDS);
+        if (props.containsKey("consumer.deadletter.dir")) {
+            deadLetterSpool = new DeadLetterSpool(new File(props.getProperty("consumer.deadletter.dir")), topic,
+                                                  Long.parseLong(props.getProperty("consumer.deadletter.file.mb", "64")) * 1024 * 1024,
+                                                  TimeUnit.MINUTES.toMillis(Long.parseLong(props.getProperty("consumer.deadletter.file.minutes", "60"))),
+                                                  Long.parseLong(props.getProperty("consumer.deadletter.queue.mb", "64")) * 1024 * 1024,
+                                                  Long.parseLong(props.getProperty("consumer.deadletter.total.mb", "1024")) * 1024 * 1024);
+            processor.setDeadLetterSpool(deadLetterSpool);
+        }
+        retrier = MessageRetrier.fromProperties(props);
+        workerRetries = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".worker.retries"), "attempts", TimeUnit.SECONDS);
+        failedStreamsGauge = Metrics.newGauge(new MetricName("bagheera", "consumer", topic + ".streams.failed"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return failedStreams.get();
+            }
+        });
+
+        int traceSize = Integer.parseInt(props.getProperty("consumer.trace.slowest", "0"));
+        if (traceSize > 0) {
+            tracer = new SlowDocumentTracer(traceSize, Long.parseLong(props.getProperty("consumer.trace.window.minutes", "60")), TimeUnit.MINUTES);
+            processor.setSlowDocumentTracer(tracer);
+        }
+
+        processor.setMaxFactDays(Integer.parseInt(props.getProperty("consumer.facts.max.days", "30")));
+        try {
+            rollups = createRollupAggregator(topic, props);
+        } catch (IOException e) {
+            LOG.error("Failed to open rollup output", e);
+            throw new RuntimeException(e);
+        }
+        if (rollups != null) {
+            processor.setRollupAggregator(rollups);
+        }
+    }
+
+    /**
+     * Writes the per-day facts of each stored document to factSink as well.
+     */
+    public void setFactSink(HBaseSink factSink) {
+        processor.setFactSink(factSink);
+    }
+
+    /**
+     * Mirrors the stores and deletes of a fixed fraction of profiles to sampleSink.
+     */
+    public void setSampleSink(HBaseSink sampleSink, double rate) {
+        processor.setSampleSink(sampleSink, rate);
+    }
+
+    private static RollupAggregator createRollupAggregator(String topic, Properties props) throws IOException {
+        KeyValueSink output;
+        if (props.containsKey("consumer.rollup.table")) {
+            SinkConfiguration rollupConfig = new SinkConfiguration();
+            rollupConfig.setString("hbasesink.hbase.tablename", props.getProperty("consumer.rollup.table"));
+            output = new HBaseSink(rollupConfig);
+        } else if (props.containsKey("consumer.rollup.file")) {
+            output = new LineFileSink(new File(props.getProperty("consumer.rollup.file")));
+        } else {
+            return null;
+        }
+        RollupAggregator rollups = new RollupAggregator(topic, output,
+                                                        Integer.parseInt(props.getProperty("consumer.rollup.precision", "12")),
+                                                        Long.parseLong(props.getProperty("consumer.rollup.flush.seconds", "60")));
+        if (props.containsKey("consumer.rollup.max.keys")) {
+            rollups.setMaxKeys(Integer.parseInt(props.getProperty("consumer.rollup.max.keys")));
+        }
+        return rollups;
+    }
+
+    private static CountryLookup createCountryLookup(Properties props) throws IOException {
+        String lookupType = props.getProperty("geoip.lookup", "service");
+        int prefixCacheSize = Integer.parseInt(props.getProperty("geoip.prefixcache.size", "65536"));
+        if ("mapped".equals(lookupType)) {
+            long reloadSeconds = Long.parseLong(props.getProperty("geoip.table.reload.seconds", "60"));
+            return new ReloadingCountryLookup(new File(props.getProperty("geoip.table.path")), prefixCacheSize, reloadSeconds);
+        }
+
+        LookupService geoIpLookupService = new LookupService(props.getProperty("maxmind.db.path"), LookupService.GEOIP_MEMORY_CACHE);
+        if ("table".equals(lookupType)) {
+            // the range table answers everything the database can, so the database can go
+            CountryRangeTable table = CountryRangeTable.build(geoIpLookupService, prefixCacheSize);
+            geoIpLookupService.close();
+            return table;
+        }
+        return new LookupServiceCountryLookup(geoIpLookupService);
+    }
+
+    private void startStatusServer() {
+        InetSocketAddress address = new InetSocketAddress(props.getProperty("consumer.status.address", "127.0.0.1"),
+                                                          Integer.parseInt(props.getProperty("consumer.status.port")));
+        try {
+            statusServer = new StatusServer(address, Metrics.defaultRegistry(), new StatusServer.StatusSource() {
+                @Override
+                public void writeStatus(JsonGenerator g) throws IOException {
+                    g.writeArrayFieldStart("workers");
+                    for (FHRConsumerWorker worker : workerTasks) {
+                        worker.writeStatus(g);
+                    }
+                    g.writeEndArray();
+                }
+            });
+            if (tracer != null) {
+                statusServer.addSource("/slow", new StatusServer.StatusSource() {
+                    @Override
+                    public void writeStatus(JsonGenerator g) throws IOException {
+                        g.writeFieldName("slowest");
+                        tracer.writeJson(g);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // the consumer runs just as well without it
+            LOG.error("Failed to start status server on " + address, e);
+        }
     }
 
     @Override
     public void close() {
         super.close();
-        if (geoIpLookupService != null) {
-            geoIpLookupService.close();
+        if (statusServer != null) {
+            statusServer.close();
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        if (deadLetterSpool != null) {
+            deadLetterSpool.close();
+        }
+        if (rollups != null) {
+            rollups.close();
+        }
+        processor.flushErrorLog();
+        retryLog.flush();
+        if (tracer != null) {
+            for (SlowDocumentTracer.Entry entry : tracer.getSlowest()) {
+                LOG.info("Slow document: " + entry);
+            }
+        }
+        if (countryLookup != null) {
+            try {
+                countryLookup.close();
+            } catch (IOException e) {
+                LOG.error("Error closing geoip lookup", e);
+            }
         }
     }
 
     @Override
     public void poll() {
+        if (Boolean.parseBoolean(props.getProperty("consumer.pipeline.enabled", "false"))) {
+            pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, props);
+        } else if (Boolean.parseBoolean(props.getProperty("consumer.namespace.isolation", "false"))) {
+            dispatcher = new NamespaceDispatcher(processor, sinkFactory, consumed, props);
+        }
+
         final CountDownLatch latch = new CountDownLatch(streams.size());
         workers = new ArrayList<Future<Void>>(streams.size());
         for (final KafkaStream<Message> stream : streams) {
-            workers.add(executor.submit(new FHRConsumerWorker(stream, latch)));
+            FHRConsumerWorker worker = new FHRConsumerWorker(stream, latch);
+            workerTasks.add(worker);
+            workers.add(executor.submit(worker));
+        }
+        if (props.containsKey("consumer.status.port")) {
+            startStatusServer();
         }
 
         // Wait for all tasks to complete which in the normal case they will
-        // run indefinitely unless killed
+        // run indefinitely unless killed. A worker whose stream fails reports it
+        // and stops, while the others carry on.
         try {
-            while (true) {
-                latch.await(10, TimeUnit.SECONDS);
-                if (latch.getCount() != streams.size()) {
-                    // we have a dead thread and should exit
-                    break;
-                }
-            }
+            latch.await();
         } catch (InterruptedException e) {
             LOG.info("Interrupted during polling", e);
         }
@@ -162,6 +322,26 @@ public class FHRConsumer extends KafkaConsumer {
         options.addOption(optFactory.create("q", "qualifier", true, "Column qualifier."));
         options.addOption(optFactory.create("pd", "prefixdate", false, "Prefix key with salted date."));
         options.addOption(optFactory.create("b", "batchsize", true, "Batch size (number of messages per HBase flush)."));
+        options.addOption(optFactory.create("bb", "batchbytes", true, "Bytes at which an HBase batch is cut before reaching the batch size (default unlimited)."));
+        options.addOption(optFactory.create("bl", "batchlinger", true, "Milliseconds after which a partial HBase batch is written (default 0, waiting for a full batch)."));
+        options.addOption(optFactory.create("bf", "bufferbytes", true, "Bytes of rows buffered for HBase before storing blocks (default 67108864, 0 for unlimited)."));
+        options.addOption(optFactory.create("bw", "bufferwait", true, "Milliseconds storing blocks on a full buffer before failing (default 0, no limit)."));
+        options.addOption(optFactory.create("rb", "retrybackoff", true, "Milliseconds before a failed HBase row is first retried, doubling on each attempt (default 1000)."));
+        options.addOption(optFactory.create("bk", "breakerfailures", true, "Failed HBase batches in a row after which writing pauses (default 5)."));
+        options.addOption(optFactory.create("bko", "breakeropen", true, "Milliseconds writing pauses for once the breaker opens (default 30000)."));
+        options.addOption(optFactory.create("dt", "dispatchthreads", true, "Threads writing each HBase batch as concurrent per-region-server parts (default 0, one call per batch)."));
+        options.addOption(optFactory.create("si", "serverinflight", true, "Batch parts written to one region server at a time (default 1)."));
+        options.addOption(optFactory.create("fl", "flushthreads", true, "Background threads writing batches to HBase (default 0, flushing on the storing thread)."));
+        options.addOption(optFactory.create("sf", "summaryfamily", true, "Column family for per-document summary columns (disabled if not set)."));
+        options.addOption(optFactory.create("ft", "facttable", true, "HBase table for per-day document facts (disabled if not set)."));
+        options.addOption(optFactory.create("st", "sampletable", true, "HBase table for a deterministic sample of documents (disabled if not set)."));
+        options.addOption(optFactory.create("sr", "samplerate", true, "Fraction of profiles written to the sample table (default 0.01)."));
+        options.addOption(optFactory.create("df", "deltafamily", true, "Column family for per-submission deltas between full rebases (disabled if not set)."));
+        options.addOption(optFactory.create("rd", "rebasedays", true, "Days between full rebases of each document in delta mode (default 7)."));
+        options.addOption(optFactory.create("de", "deltaentries", true, "Documents whose stored base is remembered in delta mode; others are stored in full (default 1048576)."));
+        options.addOption(optFactory.create("z", "compress", false, "Compress stored documents, which can then be read with com.mozilla.fhr.pig.eval.DecodeDocument."));
+        options.addOption(optFactory.create("se", "suppressentries", true, "Number of recent writes remembered to skip unchanged documents (disabled if not set)."));
+        options.addOption(optFactory.create("ss", "suppressseconds", true, "How long a write is remembered for suppression (default 3600)."));
         return options;
     }
 
@@ -200,11 +380,32 @@ public class FHRConsumer extends KafkaConsumer {
         return new FHRConsumer(cmd.getOptionValue("topic"), props, numThreads);
     }
 
+    /**
+     * Consumes one stream for as long as it lasts, handing each message to the
+     * consumer's {@link MessageRetrier}: a message that fails is retried in place with
+     * a backoff, so the stream doesn't move on until it has been handled or, if it
+     * keeps failing for reasons other than the sink, quarantined.
+     *
+     * A failure of the stream itself ends the worker, since a Kafka stream's iterator
+     * can't be resumed once it has thrown. The other streams go on being consumed, and
+     * the failed one shows up in the streams.failed gauge and as a "failed" worker in
+     * the status, until the consumer is restarted.
+     *
+     * Its state is kept in volatile fields for the status server to read.
+     */
     private class FHRConsumerWorker implements Callable<Void> {
 
         private final KafkaStream<Message> stream;
         private final CountDownLatch latch;
 
+        private volatile String threadName;
+        private volatile String state = "starting";
+        private volatile int retries;
+        private volatile long messages;
+        private volatile long lastMessageTime;
+        private volatile String lastError;
+        private volatile long lastErrorTime;
+
         public FHRConsumerWorker(KafkaStream<Message> stream, CountDownLatch latch) {
             this.stream = stream;
             this.latch = latch;
@@ -212,65 +413,156 @@ public class FHRConsumer extends KafkaConsumer {
 
         @Override
         public Void call() throws Exception {
+            threadName = Thread.currentThread().getName();
             try {
+                state = "consuming";
                 for (MessageAndMetadata<Message> mam : stream) {
-                    BagheeraMessage bmsg = BagheeraMessage.parseFrom(ByteString.copyFrom(mam.message().payload()));
-                    // get the sink for this message's namespace
-                    // (typically only one sink unless a regex pattern was used to listen to multiple topics)
-                    KeyValueSink sink = sinkFactory.getSink(bmsg.getNamespace());
-                    if (bmsg.getOperation() == Operation.CREATE_UPDATE &&
-                        bmsg.hasId() && bmsg.hasPayload()) {
-                        String payloadString = bmsg.getPayload().toStringUtf8();
-                        try {
-                            ObjectNode document = jsonMapper.readValue(payloadString, ObjectNode.class);
-                            // do a geoip lookup on the IP if we have one
-                            if (bmsg.hasIpAddr()) {
-                                Location location = geoIpLookupService.getLocation(InetAddress.getByAddress(bmsg.getIpAddr().toByteArray()));
-                                if (location != null && !UNKNOWN_COUNTRY_CODE.equals(location.countryCode) &&
-                                    location.countryCode.trim().length() > 0) {
-                                    document.put(GEO_COUNTRY_FIELD, location.countryCode);
-                                } else {
-                                    unknownGeoIpMeter.mark();
-                                    document.put(GEO_COUNTRY_FIELD, UNKNOWN_COUNTRY_CODE);
-                                }
-                            } else {
-                                unknownGeoIpMeter.mark();
-                                document.put(GEO_COUNTRY_FIELD, UNKNOWN_COUNTRY_CODE);
-                            }
-
-                            // store the document
-                            if (bmsg.hasTimestamp()) {
-                                sink.store(bmsg.getId(), jsonMapper.writeValueAsBytes(document), bmsg.getTimestamp());
-                            } else {
-                                sink.store(bmsg.getId(), jsonMapper.writeValueAsBytes(document));
-                            }
-                        } catch (JsonParseException e) {
-                            invalidJsonMeter.mark();
-                            LOG.error("Invalid JSON", e);
-                            LOG.debug(payloadString);
-                        } catch (JsonMappingException e) {
-                            invalidJsonMeter.mark();
-                            LOG.error("Invalid JSON", e);
-                            LOG.debug(payloadString);
-                        }
-                    } else if (bmsg.getOperation() == Operation.DELETE &&
-                        bmsg.hasId()) {
-                        sink.delete(bmsg.getId());
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
                     }
-                    consumed.mark();
+                    messages++;
+                    lastMessageTime = System.currentTimeMillis();
+                    handle(mam.message());
                 }
-            } catch (InvalidProtocolBufferException e) {
-                LOG.error("Invalid protocol buffer in data stream", e);
-            } catch (UnsupportedEncodingException e) {
-                LOG.error("Message ID was not in UTF-8 encoding", e);
-            } catch (IOException e) {
-                LOG.error("IO error while storing to data sink", e);
+            } catch (InterruptedException e) {
+                LOG.info("Stream worker interrupted");
+            } catch (Exception e) {
+                lastError = e.toString();
+                lastErrorTime = System.currentTimeMillis();
+                state = "failed";
+                LOG.error(String.format("Stream failed, %d of %d streams are no longer consumed",
+                                        failedStreams.incrementAndGet(), streams.size()), e);
             } finally {
+                if (!"failed".equals(state)) {
+                    state = "stopped";
+                }
                 latch.countDown();
             }
 
             return null;
         }
+
+        void writeStatus(JsonGenerator g) throws IOException {
+            g.writeStartObject();
+            g.writeStringField("thread", threadName);
+            g.writeStringField("state", state);
+            g.writeNumberField("retries", retries);
+            g.writeNumberField("messages", messages);
+            g.writeNumberField("lastMessageTime", lastMessageTime);
+            if (lastError != null) {
+                g.writeStringField("lastError", lastError);
+                g.writeNumberField("lastErrorTime", lastErrorTime);
+            }
+            g.writeEndObject();
+        }
+
+        private void handle(final Message message) throws InterruptedException {
+            retrier.run(new MessageRetrier.Attempt() {
+                @Override
+                void run() throws Exception {
+                    process(message);
+                }
+
+                @Override
+                void quarantine(Exception e) {
+                    processor.quarantine(message, e);
+                }
+
+                @Override
+                void failed(Exception e, long backoffMillis) {
+                    workerRetries.mark();
+                    retries++;
+                    lastError = e.toString();
+                    lastErrorTime = System.currentTimeMillis();
+                    state = "backing off";
+                    retryLog.error("Error handling message, retrying", e);
+                }
+            });
+            state = "consuming";
+        }
+
+        private void process(Message message) throws Exception {
+            if (pipeline != null) {
+                // the pipeline marks consumed once the message reaches the sink
+                pipeline.submit(message);
+                return;
+            }
+            BagheeraMessage bmsg;
+            try {
+                bmsg = processor.decode(message);
+            } catch (InvalidProtocolBufferException e) {
+                processor.invalidMessage(message, e);
+                return;
+            }
+            if (dispatcher != null) {
+                // the namespace's own workers store it and mark it consumed
+                dispatcher.submit(bmsg);
+                return;
+            }
+            // get the sink for this message's namespace
+            // (typically only one sink unless a regex pattern was used to listen to multiple topics)
+            KeyValueSink sink = sinkFactory.getSink(bmsg.getNamespace());
+            processor.process(sink, bmsg);
+            consumed.mark();
+        }
+    }
+
+    /**
+     * @return the configuration of a document table; the sample table is set up just like the main one
+     */
+    private static SinkConfiguration newSinkConfiguration(CommandLine cmd, String tableName) {
+        SinkConfiguration sinkConfig = new SinkConfiguration();
+        if (cmd.hasOption("numthreads")) {
+            sinkConfig.setInt("hbasesink.hbase.numthreads", Integer.parseInt(cmd.getOptionValue("numthreads")));
+        }
+        if (cmd.hasOption("batchsize")) {
+            sinkConfig.setInt("hbasesink.hbase.batchsize", Integer.parseInt(cmd.getOptionValue("batchsize")));
+        }
+        if (cmd.hasOption("batchbytes")) {
+            sinkConfig.setLong("hbasesink.hbase.batch.bytes", Long.parseLong(cmd.getOptionValue("batchbytes")));
+        }
+        if (cmd.hasOption("batchlinger")) {
+            sinkConfig.setLong("hbasesink.hbase.batch.linger.ms", Long.parseLong(cmd.getOptionValue("batchlinger")));
+        }
+        if (cmd.hasOption("bufferbytes")) {
+            sinkConfig.setLong("hbasesink.hbase.buffer.bytes", Long.parseLong(cmd.getOptionValue("bufferbytes")));
+            sinkConfig.setLong("hbasesink.hbase.buffer.wait.ms", Long.parseLong(cmd.getOptionValue("bufferwait", "0")));
+        }
+        if (cmd.hasOption("retrybackoff")) {
+            sinkConfig.setLong("hbasesink.hbase.retry.base.ms", Long.parseLong(cmd.getOptionValue("retrybackoff")));
+        }
+        if (cmd.hasOption("breakerfailures")) {
+            sinkConfig.setInt("hbasesink.hbase.breaker.failures", Integer.parseInt(cmd.getOptionValue("breakerfailures")));
+        }
+        if (cmd.hasOption("breakeropen")) {
+            sinkConfig.setLong("hbasesink.hbase.breaker.open.ms", Long.parseLong(cmd.getOptionValue("breakeropen")));
+        }
+        if (cmd.hasOption("dispatchthreads")) {
+            sinkConfig.setInt("hbasesink.hbase.dispatch.threads", Integer.parseInt(cmd.getOptionValue("dispatchthreads")));
+            sinkConfig.setInt("hbasesink.hbase.dispatch.server.inflight", Integer.parseInt(cmd.getOptionValue("serverinflight", "1")));
+        }
+        if (cmd.hasOption("flushthreads")) {
+            sinkConfig.setInt("hbasesink.hbase.flush.threads", Integer.parseInt(cmd.getOptionValue("flushthreads")));
+        }
+
+        sinkConfig.setString("hbasesink.hbase.tablename", tableName);
+        sinkConfig.setString("hbasesink.hbase.column.family", cmd.getOptionValue("family", "data"));
+        sinkConfig.setString("hbasesink.hbase.column.qualifier", cmd.getOptionValue("qualifier", "json"));
+        sinkConfig.setBoolean("hbasesink.hbase.rowkey.prefixdate", Boolean.parseBoolean(cmd.getOptionValue("prefixdate", "false")));
+        if (cmd.hasOption("summaryfamily")) {
+            sinkConfig.setString("hbasesink.hbase.summary.family", cmd.getOptionValue("summaryfamily"));
+        }
+        if (cmd.hasOption("deltafamily")) {
+            sinkConfig.setString("hbasesink.hbase.delta.family", cmd.getOptionValue("deltafamily"));
+            sinkConfig.setInt("hbasesink.hbase.delta.rebase.days", Integer.parseInt(cmd.getOptionValue("rebasedays", "7")));
+            sinkConfig.setInt("hbasesink.hbase.delta.entries", Integer.parseInt(cmd.getOptionValue("deltaentries", "1048576")));
+        }
+        sinkConfig.setBoolean("hbasesink.hbase.compress", cmd.hasOption("compress"));
+        if (cmd.hasOption("suppressentries")) {
+            sinkConfig.setInt("hbasesink.hbase.suppress.entries", Integer.parseInt(cmd.getOptionValue("suppressentries")));
+            sinkConfig.setInt("hbasesink.hbase.suppress.seconds", Integer.parseInt(cmd.getOptionValue("suppressseconds", "3600")));
+        }
+        return sinkConfig;
     }
 
     public static void main(String[] args) {
@@ -285,22 +577,30 @@ public class FHRConsumer extends KafkaConsumer {
             sh.addFirst(consumer);
 
             // Set the sink for consumer storage
-            SinkConfiguration sinkConfig = new SinkConfiguration();
-            if (cmd.hasOption("numthreads")) {
-                sinkConfig.setInt("hbasesink.hbase.numthreads", Integer.parseInt(cmd.getOptionValue("numthreads")));
-            }
-            if (cmd.hasOption("batchsize")) {
-                sinkConfig.setInt("hbasesink.hbase.batchsize", Integer.parseInt(cmd.getOptionValue("batchsize")));
-            }
-
-            sinkConfig.setString("hbasesink.hbase.tablename", cmd.getOptionValue("table"));
-            sinkConfig.setString("hbasesink.hbase.column.family", cmd.getOptionValue("family", "data"));
-            sinkConfig.setString("hbasesink.hbase.column.qualifier", cmd.getOptionValue("qualifier", "json"));
-            sinkConfig.setBoolean("hbasesink.hbase.rowkey.prefixdate", Boolean.parseBoolean(cmd.getOptionValue("prefixdate", "false")));
+            SinkConfiguration sinkConfig = newSinkConfiguration(cmd, cmd.getOptionValue("table"));
             KeyValueSinkFactory sinkFactory = KeyValueSinkFactory.getInstance(HBaseSink.class, sinkConfig);
             sh.addLast(sinkFactory);
             consumer.setSinkFactory(sinkFactory);
 
+            if (cmd.hasOption("facttable")) {
+                SinkConfiguration factConfig = new SinkConfiguration();
+                factConfig.setString("hbasesink.hbase.tablename", cmd.getOptionValue("facttable"));
+                factConfig.setString("hbasesink.hbase.column.family", "data");
+                factConfig.setBoolean("hbasesink.hbase.rowkey.prefixdate", true);
+                if (cmd.hasOption("batchsize")) {
+                    factConfig.setInt("hbasesink.hbase.batchsize", Integer.parseInt(cmd.getOptionValue("batchsize")));
+                }
+                HBaseSink factSink = new HBaseSink(factConfig);
+                sh.addLast(factSink);
+                consumer.setFactSink(factSink);
+            }
+
+            if (cmd.hasOption("sampletable")) {
+                HBaseSink sampleSink = new HBaseSink(newSinkConfiguration(cmd, cmd.getOptionValue("sampletable")));
+                sh.addLast(sampleSink);
+                consumer.setSampleSink(sampleSink, Double.parseDouble(cmd.getOptionValue("samplerate", "0.01")));
+            }
+
             // Initialize metrics collection, reporting, etc.
             final MetricsManager manager = MetricsManager.getDefaultMetricsManager();
 
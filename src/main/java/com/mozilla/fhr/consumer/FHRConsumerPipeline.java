@@ -0,0 +1,295 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.fhr.util.RateLimitedLogger;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * Splits message handling into decode, parse/enrich and sink stages connected by
+ * bounded queues, each stage with its own thread count.
+ *
+ * Decoding is done by a plain pool since the message id isn't known yet. The decoded
+ * results are handed on in submission order by a single dispatcher, and from then on
+ * messages are partitioned by Bagheera id so that every message for a given id is
+ * parsed and stored in the order it was read from Kafka.
+ *
+ * A message that fails to decode, parse or store is retried by its stage with a
+ * backoff, or quarantined if it keeps failing for reasons other than the sink; see
+ * {@link MessageRetrier}. The rest of that thread's partition waits meanwhile, and
+ * once the queues fill up so does the stream.
+ */
+public class FHRConsumerPipeline {
+
+    private static final Logger LOG = Logger.getLogger(FHRConsumerPipeline.class);
+
+    static final int DEFAULT_DECODE_THREADS = 1;
+    static final int DEFAULT_PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_SINK_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_QUEUE_SIZE = 100;
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private final FHRMessageProcessor processor;
+    private final KeyValueSinkFactory sinkFactory;
+    private final Meter consumed;
+    private final MessageRetrier retrier;
+    private final RateLimitedLogger failureLog = new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS);
+
+    private final ThreadPoolExecutor decodeExecutor;
+    private final BlockingQueue<Future<BagheeraMessage>> decoded;
+    private final Thread dispatcher;
+    private final PartitionedStage<BagheeraMessage> parseStage;
+    private final PartitionedStage<Document> sinkStage;
+
+    private volatile boolean running = true;
+
+    static class Document {
+        final BagheeraMessage bmsg;
+        final byte[] document;
+        final DocumentExtracts extracts;
+        final long enrichNanos;
+
+        Document(BagheeraMessage bmsg, byte[] document, DocumentExtracts extracts, long enrichNanos) {
+            this.bmsg = bmsg;
+            this.document = document;
+            this.extracts = extracts;
+            this.enrichNanos = enrichNanos;
+        }
+    }
+
+    public FHRConsumerPipeline(FHRMessageProcessor processor, KeyValueSinkFactory sinkFactory, Meter consumed, Properties props) {
+        this(processor, sinkFactory, consumed,
+             getInt(props, "consumer.pipeline.decode.threads", DEFAULT_DECODE_THREADS),
+             getInt(props, "consumer.pipeline.parse.threads", DEFAULT_PARSE_THREADS),
+             getInt(props, "consumer.pipeline.sink.threads", DEFAULT_SINK_THREADS),
+             getInt(props, "consumer.pipeline.queue.size", DEFAULT_QUEUE_SIZE),
+             MessageRetrier.fromProperties(props));
+    }
+
+    public FHRConsumerPipeline(FHRMessageProcessor processor, KeyValueSinkFactory sinkFactory, Meter consumed,
+                               int decodeThreads, int parseThreads, int sinkThreads, int queueSize) {
+        this(processor, sinkFactory, consumed, decodeThreads, parseThreads, sinkThreads, queueSize,
+             MessageRetrier.fromProperties(new Properties()));
+    }
+
+    FHRConsumerPipeline(final FHRMessageProcessor processor, final KeyValueSinkFactory sinkFactory, Meter consumed,
+                        int decodeThreads, int parseThreads, int sinkThreads, int queueSize, MessageRetrier retrier) {
+        this.processor = processor;
+        this.sinkFactory = sinkFactory;
+        this.consumed = consumed;
+        this.retrier = retrier;
+
+        LOG.info(String.format("Pipeline threads: decode=%d parse=%d sink=%d, queue size: %d",
+                               decodeThreads, parseThreads, sinkThreads, queueSize));
+
+        // Running rejected decodes on the submitting stream thread is what pushes back on Kafka
+        decodeExecutor = new ThreadPoolExecutor(decodeThreads, decodeThreads, 0L, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>(queueSize),
+                                                new ThreadPoolExecutor.CallerRunsPolicy());
+        decoded = new ArrayBlockingQueue<Future<BagheeraMessage>>(queueSize);
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "fhr-pipeline-dispatch");
+        dispatcher.setDaemon(true);
+
+        sinkStage = new PartitionedStage<Document>("fhr-pipeline-sink", sinkThreads, queueSize,
+            new PartitionedStage.Handler<Document>() {
+                @Override
+                public void handle(Document doc) throws Exception {
+                    store(doc);
+                }
+            });
+        parseStage = new PartitionedStage<BagheeraMessage>("fhr-pipeline-parse", parseThreads, queueSize,
+            new PartitionedStage.Handler<BagheeraMessage>() {
+                @Override
+                public void handle(BagheeraMessage bmsg) throws Exception {
+                    Document doc = parse(bmsg);
+                    if (doc != null) {
+                        sinkStage.submit(bmsg.getId(), doc);
+                    }
+                }
+            });
+
+        sinkStage.start();
+        parseStage.start();
+        dispatcher.start();
+    }
+
+    private static int getInt(Properties props, String key, int defaultValue) {
+        return props.containsKey(key) ? Integer.parseInt(props.getProperty(key)) : defaultValue;
+    }
+
+    /**
+     * Hands a raw Kafka message to the decode stage. Blocks while the pipeline is full.
+     */
+    public void submit(final Message message) throws InterruptedException {
+        Future<BagheeraMessage> future = decodeExecutor.submit(new Callable<BagheeraMessage>() {
+            @Override
+            public BagheeraMessage call() throws Exception {
+                return decode(message);
+            }
+        });
+        decoded.put(future);
+    }
+
+    /**
+     * @return the decoded message, or null if it was invalid or quarantined
+     */
+    private BagheeraMessage decode(final Message message) throws InterruptedException {
+        final BagheeraMessage[] decoded = new BagheeraMessage[1];
+        retrier.run(new MessageRetrier.Attempt() {
+            @Override
+            void run() throws Exception {
+                try {
+                    decoded[0] = processor.decode(message);
+                } catch (InvalidProtocolBufferException e) {
+                    processor.invalidMessage(message, e);
+                }
+            }
+
+            @Override
+            void quarantine(Exception e) {
+                processor.quarantine(message, e);
+            }
+
+            @Override
+            void failed(Exception e, long backoffMillis) {
+                failureLog.error("Error decoding message, retrying", e);
+            }
+        });
+        return decoded[0];
+    }
+
+    /**
+     * @return the enriched document, or null if the message was quarantined
+     */
+    private Document parse(final BagheeraMessage bmsg) throws InterruptedException {
+        final Document[] parsed = new Document[1];
+        retrier.run(new MessageRetrier.Attempt() {
+            @Override
+            void run() throws Exception {
+                long start = System.nanoTime();
+                KeyValueSink sink = sinkFactory.getSink(bmsg.getNamespace());
+                DocumentExtracts extracts = processor.newExtracts(sink);
+                byte[] document = null;
+                if (processor.isStore(bmsg) && !processor.isOversized(sink, bmsg)) {
+                    document = processor.enrich(bmsg, extracts);
+                }
+                parsed[0] = new Document(bmsg, document, extracts, System.nanoTime() - start);
+            }
+
+            @Override
+            void quarantine(Exception e) {
+                processor.quarantine(bmsg, e);
+            }
+
+            @Override
+            void failed(Exception e, long backoffMillis) {
+                failureLog.error("Error parsing message, retrying", e);
+            }
+        });
+        return parsed[0];
+    }
+
+    private void dispatch() {
+        while (running || !decoded.isEmpty()) {
+            try {
+                Future<BagheeraMessage> future = decoded.poll(100, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    try {
+                        BagheeraMessage bmsg = future.get();
+                        if (bmsg != null) {
+                            parseStage.submit(bmsg.getId(), bmsg);
+                        }
+                    } catch (ExecutionException e) {
+                        // decode failures are retried or quarantined, so only an interrupted decode gets here
+                        LOG.error("Error decoding message", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void store(final Document doc) throws InterruptedException {
+        retrier.run(new MessageRetrier.Attempt() {
+            @Override
+            void run() throws Exception {
+                long start = System.nanoTime();
+                processor.store(sinkFactory.getSink(doc.bmsg.getNamespace()), doc.bmsg, doc.document, doc.extracts);
+                processor.traceDocument(doc.bmsg, doc.enrichNanos, System.nanoTime() - start);
+                consumed.mark();
+            }
+
+            @Override
+            void quarantine(Exception e) {
+                processor.quarantine(doc.bmsg, e);
+            }
+
+            @Override
+            void failed(Exception e, long backoffMillis) {
+                failureLog.error("Error storing to data sink, retrying", e);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new messages and drains every stage, in order, into the sink.
+     */
+    public void close() {
+        decodeExecutor.shutdown();
+        try {
+            if (!decodeExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for decode stage to drain");
+                decodeExecutor.shutdownNow();
+            }
+            running = false;
+            dispatcher.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        parseStage.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        sinkStage.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        failureLog.flush();
+    }
+}
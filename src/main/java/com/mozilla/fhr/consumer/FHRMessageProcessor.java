@@ -0,0 +1,504 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.fhr.consumer.DeadLetterSpool.Reason;
+import com.mozilla.fhr.geoip.CountryLookup;
+import com.mozilla.fhr.rollup.RollupAggregator;
+import com.mozilla.fhr.sink.HBaseSink;
+import com.mozilla.fhr.util.RateLimitedLogger;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * The per-message work done by the consumer: protobuf decode, JSON parse, GeoIP
+ * enrichment and storage. Each step is exposed separately so that it can either be
+ * run serially by a stream worker or spread across the stages of a pipeline.
+ *
+ * Each step is timed under bagheera.consumer, along with payload sizes per namespace
+ * and the lag between bagheera receiving a document and it reaching the sink.
+ *
+ * Instances are thread-safe.
+ */
+public class FHRMessageProcessor {
+
+    private static final Logger LOG = Logger.getLogger(FHRMessageProcessor.class);
+
+    static final String GEO_COUNTRY_FIELD = "geoCountry";
+    static final String UNKNOWN_COUNTRY_CODE = "--";
+
+    // Serialization buffers grown past this size by a huge document are dropped afterwards
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final ObjectMapper jsonMapper;
+    private final StreamingJsonEnricher streamingEnricher;
+    private final CountryLookup countryLookup;
+    private boolean streamingEnrichment = true;
+    private DeadLetterSpool deadLetterSpool;
+    private HBaseSink factSink;
+    private int maxFactDays = 30;
+    private RollupAggregator rollups;
+    private KeyValueSink sampleSink;
+    private IdSampler sampler;
+    private SlowDocumentTracer tracer;
+    private RateLimitedLogger errorLog = new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS);
+
+    private final ThreadLocal<ReusableByteArrayOutputStream> outputBuffers = new ThreadLocal<ReusableByteArrayOutputStream>() {
+        @Override
+        protected ReusableByteArrayOutputStream initialValue() {
+            return new ReusableByteArrayOutputStream(64 * 1024, MAX_RETAINED_BUFFER_SIZE);
+        }
+    };
+
+    protected final Meter invalidProtobufMeter;
+    protected final Meter invalidJsonMeter;
+    protected final Meter unknownGeoIpMeter;
+    protected final Meter sampled;
+    protected final Meter poisonMeter;
+    protected final Timer decodeTimer;
+    protected final Timer parseTimer;
+    protected final Timer geoIpTimer;
+    protected final Timer storeTimer;
+    protected final Histogram ingestLag;
+    private final ConcurrentMap<String, Histogram> payloadSizes = new ConcurrentHashMap<String, Histogram>();
+
+    public FHRMessageProcessor(String topic, CountryLookup countryLookup) {
+        this.jsonMapper = new ObjectMapper();
+        this.streamingEnricher = new StreamingJsonEnricher(jsonMapper.getJsonFactory());
+        this.countryLookup = countryLookup;
+
+        invalidProtobufMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".protobuf.invalid"), "messages", TimeUnit.SECONDS);
+        invalidJsonMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".json.invalid"), "messages", TimeUnit.SECONDS);
+        unknownGeoIpMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".geoip.unknown"), "messages", TimeUnit.SECONDS);
+        poisonMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".poison.quarantined"), "messages", TimeUnit.SECONDS);
+        sampled = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".sampled"), "messages", TimeUnit.SECONDS);
+        decodeTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".decode.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        parseTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".parse.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        geoIpTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".geoip.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        storeTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".store.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        // time from the message being received by the bagheera server until it is handed to the sink
+        ingestLag = Metrics.newHistogram(new MetricName("bagheera", "consumer", topic + ".ingest.lag"), true);
+    }
+
+    /**
+     * Decodes the raw Kafka message into a BagheeraMessage, reading straight from the
+     * message buffer when it is backed by an array.
+     */
+    public BagheeraMessage decode(Message message) throws IOException {
+        TimerContext decodeTimerContext = decodeTimer.time();
+        try {
+            ByteBuffer buffer = message.payload();
+            if (buffer.hasArray()) {
+                return BagheeraMessage.parseFrom(CodedInputStream.newInstance(buffer.array(),
+                                                                              buffer.arrayOffset() + buffer.position(),
+                                                                              buffer.remaining()));
+            }
+            return BagheeraMessage.parseFrom(ByteString.copyFrom(buffer));
+        } finally {
+            decodeTimerContext.stop();
+        }
+    }
+
+    /**
+     * Sets where messages that can't be stored are kept. Without a spool they are
+     * only counted and logged.
+     */
+    public void setDeadLetterSpool(DeadLetterSpool deadLetterSpool) {
+        this.deadLetterSpool = deadLetterSpool;
+    }
+
+    /**
+     * Enables writing the per-day facts of each document to a table keyed by day.
+     */
+    public void setFactSink(HBaseSink factSink) {
+        this.factSink = factSink;
+    }
+
+    /**
+     * Sets the most days of facts written or rolled up per document.
+     */
+    public void setMaxFactDays(int maxFactDays) {
+        this.maxFactDays = maxFactDays;
+    }
+
+    /**
+     * Enables mirroring the stores and deletes of a deterministic sample of ids to sampleSink.
+     *
+     * @param rate fraction of ids sampled
+     */
+    public void setSampleSink(KeyValueSink sampleSink, double rate) {
+        this.sampler = new IdSampler(rate);
+        this.sampleSink = sampleSink;
+    }
+
+    /**
+     * Enables rolling up the days of each stored document.
+     */
+    public void setRollupAggregator(RollupAggregator rollups) {
+        this.rollups = rollups;
+    }
+
+    /**
+     * Enables keeping the slowest documents processed, with their time per stage.
+     */
+    public void setSlowDocumentTracer(SlowDocumentTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Offers a processed document to the slow document tracer, if there is one.
+     */
+    public void traceDocument(BagheeraMessage bmsg, long enrichNanos, long storeNanos) {
+        if (tracer != null && isStore(bmsg)) {
+            tracer.trace(bmsg, enrichNanos, storeNanos);
+        }
+    }
+
+    /**
+     * Sets how often each distinct error is logged in full; repeats in between are
+     * counted and summarized.
+     */
+    public void setErrorLogInterval(long interval, TimeUnit unit) {
+        this.errorLog = new RateLimitedLogger(LOG, interval, unit);
+    }
+
+    /**
+     * Handles a Kafka message that isn't a valid BagheeraMessage.
+     */
+    public void invalidMessage(Message message, InvalidProtocolBufferException e) {
+        invalidProtobufMeter.mark();
+        errorLog.error("Invalid protocol buffer in data stream", e);
+        if (deadLetterSpool != null) {
+            deadLetterSpool.offer(Reason.INVALID_PROTOBUF, getBytes(message));
+        }
+    }
+
+    /**
+     * Gives up on a message that kept failing, spooling it if a dead-letter spool is set.
+     */
+    public void quarantine(Message message, Exception e) {
+        poisonMeter.mark();
+        errorLog.error("Quarantined message that failed repeatedly", e);
+        if (deadLetterSpool != null) {
+            deadLetterSpool.offer(Reason.POISON, getBytes(message));
+        }
+    }
+
+    /**
+     * Gives up on a decoded message that kept failing, spooling it if a dead-letter spool is set.
+     */
+    public void quarantine(BagheeraMessage bmsg, Exception e) {
+        poisonMeter.mark();
+        errorLog.error("Quarantined message that failed repeatedly", e);
+        deadLetter(Reason.POISON, bmsg);
+    }
+
+    private static byte[] getBytes(Message message) {
+        ByteBuffer buffer = message.payload();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Spools a decoded message that won't be stored, if a dead-letter spool is set.
+     *
+     * @return true if the message was spooled
+     */
+    public boolean deadLetter(Reason reason, BagheeraMessage bmsg) {
+        return deadLetterSpool != null && deadLetterSpool.offer(reason, bmsg.toByteArray());
+    }
+
+    public boolean isDeadLetterEnabled() {
+        return deadLetterSpool != null;
+    }
+
+    /**
+     * Reports anything the rate-limited error log is still holding back.
+     */
+    public void flushErrorLog() {
+        errorLog.flush();
+    }
+
+    /**
+     * @return true if the message is a CREATE_UPDATE that carries a document to enrich
+     */
+    public boolean isStore(BagheeraMessage bmsg) {
+        return bmsg.getOperation() == Operation.CREATE_UPDATE && bmsg.hasId() && bmsg.hasPayload();
+    }
+
+    /**
+     * @return true if the message is a DELETE of a known id
+     */
+    public boolean isDelete(BagheeraMessage bmsg) {
+        return bmsg.getOperation() == Operation.DELETE && bmsg.hasId();
+    }
+
+    /**
+     * When enabled (the default) the geoCountry field is injected while copying the
+     * payload token by token. Otherwise the payload is bound to an ObjectNode and
+     * serialized again.
+     */
+    public void setStreamingEnrichment(boolean streamingEnrichment) {
+        this.streamingEnrichment = streamingEnrichment;
+    }
+
+    /**
+     * Rejects documents whose payload alone already exceeds what the sink can store,
+     * before any time is spent parsing them.
+     */
+    public boolean isOversized(KeyValueSink sink, BagheeraMessage bmsg) {
+        if (sink instanceof HBaseSink && ((HBaseSink)sink).isOversized(bmsg.getId(), bmsg.getPayload().size())) {
+            deadLetter(Reason.OVERSIZED, bmsg);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the payload and adds the geoCountry field. The payload is read in place and
+     * serialized into a per-thread buffer, so the only copy made is the returned array.
+     *
+     * @return the serialized document or null if the payload was not valid JSON
+     */
+    public byte[] enrich(BagheeraMessage bmsg) throws IOException {
+        return enrich(bmsg, null);
+    }
+
+    /**
+     * Enriches the payload as {@link #enrich(BagheeraMessage)} does, collecting its
+     * summary and facts into extracts if given.
+     */
+    public byte[] enrich(BagheeraMessage bmsg, DocumentExtracts extracts) throws IOException {
+        ByteString payload = bmsg.getPayload();
+        ReusableByteArrayOutputStream out = outputBuffers.get();
+        out.reset(payload.size() + 64);
+        String countryCode = lookupCountry(bmsg);
+        if (extracts != null && extracts.getSummary() != null) {
+            extracts.getSummary().setGeoCountry(countryCode);
+            extracts.getSummary().setPayloadSize(payload.size());
+        }
+        TimerContext parseTimerContext = parseTimer.time();
+        try {
+            if (streamingEnrichment) {
+                streamingEnricher.enrich(payload.newInput(), out, GEO_COUNTRY_FIELD, countryCode, extracts);
+            } else {
+                ObjectNode document = jsonMapper.readValue(payload.newInput(), ObjectNode.class);
+                if (extracts != null) {
+                    extracts.observe(document);
+                }
+                document.put(GEO_COUNTRY_FIELD, countryCode);
+                jsonMapper.writeValue(out, document);
+            }
+            return out.toByteArray();
+        } catch (JsonParseException e) {
+            invalidJson(bmsg, e);
+        } catch (JsonMappingException e) {
+            invalidJson(bmsg, e);
+        } finally {
+            parseTimerContext.stop();
+        }
+
+        return null;
+    }
+
+    private void invalidJson(BagheeraMessage bmsg, IOException e) {
+        invalidJsonMeter.mark();
+        errorLog.error("Invalid JSON", e);
+        deadLetter(Reason.INVALID_JSON, bmsg);
+    }
+
+    /**
+     * Does a geoip lookup on the IP if we have one.
+     *
+     * @return the country code or UNKNOWN_COUNTRY_CODE
+     */
+    String lookupCountry(BagheeraMessage bmsg) throws IOException {
+        if (bmsg.hasIpAddr()) {
+            String countryCode;
+            TimerContext geoIpTimerContext = geoIpTimer.time();
+            try {
+                countryCode = countryLookup.getCountryCode(bmsg.getIpAddr().toByteArray());
+            } finally {
+                geoIpTimerContext.stop();
+            }
+            if (countryCode != null) {
+                return countryCode;
+            }
+        }
+        unknownGeoIpMeter.mark();
+        return UNKNOWN_COUNTRY_CODE;
+    }
+
+    /**
+     * Stores an enriched document, or applies a delete, to the given sink.
+     */
+    public void store(KeyValueSink sink, BagheeraMessage bmsg, byte[] document) throws SinkException {
+        store(sink, bmsg, document, null);
+    }
+
+    /**
+     * Stores an enriched document with its summary columns and day facts, or applies a
+     * delete, to the given sink.
+     *
+     * @throws SinkException if a sink failed to take the document or delete
+     */
+    public void store(KeyValueSink sink, BagheeraMessage bmsg, byte[] document, DocumentExtracts extracts) throws SinkException {
+        try {
+            storeInSinks(sink, bmsg, document, extracts);
+        } catch (SinkException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SinkException(e);
+        }
+    }
+
+    private void storeInSinks(KeyValueSink sink, BagheeraMessage bmsg, byte[] document, DocumentExtracts extracts) throws IOException {
+        DocumentSummary summary = extracts == null ? null : extracts.getSummary();
+        if (isStore(bmsg)) {
+            getPayloadSizeHistogram(bmsg.getNamespace()).update(bmsg.getPayload().size());
+            if (document != null) {
+                TimerContext storeTimerContext = storeTimer.time();
+                try {
+                    storeDocument(sink, bmsg, document, summary);
+                    if (isSampled(bmsg)) {
+                        storeDocument(sampleSink, bmsg, document, summary);
+                        sampled.mark();
+                    }
+                } finally {
+                    storeTimerContext.stop();
+                }
+                if (factSink != null && extracts != null && extracts.getFacts() != null) {
+                    storeFacts(bmsg.getId(), extracts.getFacts());
+                }
+                if (rollups != null && summary != null && extracts.getFacts() != null) {
+                    rollups.add(bmsg.getId(), summary, extracts.getFacts());
+                }
+                if (bmsg.hasTimestamp()) {
+                    ingestLag.update(System.currentTimeMillis() - bmsg.getTimestamp());
+                }
+            }
+        } else if (isDelete(bmsg)) {
+            TimerContext storeTimerContext = storeTimer.time();
+            try {
+                sink.delete(bmsg.getId());
+                if (isSampled(bmsg)) {
+                    sampleSink.delete(bmsg.getId());
+                }
+            } finally {
+                storeTimerContext.stop();
+            }
+        }
+    }
+
+    /**
+     * @return the raw payload size histogram of the given namespace, registered on first use
+     */
+    private Histogram getPayloadSizeHistogram(String namespace) {
+        Histogram histogram = payloadSizes.get(namespace);
+        if (histogram == null) {
+            histogram = Metrics.newHistogram(new MetricName("bagheera", "consumer", namespace + ".payload.size"), true);
+            Histogram existing = payloadSizes.putIfAbsent(namespace, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    private void storeDocument(KeyValueSink sink, BagheeraMessage bmsg, byte[] document, DocumentSummary summary) throws IOException {
+        if (summary != null && sink instanceof HBaseSink) {
+            HBaseSink hbaseSink = (HBaseSink)sink;
+            if (bmsg.hasTimestamp()) {
+                hbaseSink.store(bmsg.getId(), document, bmsg.getTimestamp(), summary.toColumns());
+            } else {
+                hbaseSink.store(bmsg.getId(), document, summary.toColumns());
+            }
+        } else if (bmsg.hasTimestamp()) {
+            sink.store(bmsg.getId(), document, bmsg.getTimestamp());
+        } else {
+            sink.store(bmsg.getId(), document);
+        }
+    }
+
+    private boolean isSampled(BagheeraMessage bmsg) {
+        return sampleSink != null && sampler.isSampled(bmsg.getId());
+    }
+
+    /**
+     * Runs every step for a single decoded message on the calling thread.
+     */
+    public void process(KeyValueSink sink, BagheeraMessage bmsg) throws IOException {
+        long start = System.nanoTime();
+        DocumentExtracts extracts = newExtracts(sink);
+        byte[] document = isStore(bmsg) && !isOversized(sink, bmsg) ? enrich(bmsg, extracts) : null;
+        long enriched = System.nanoTime();
+        store(sink, bmsg, document, extracts);
+        traceDocument(bmsg, enriched - start, System.nanoTime() - enriched);
+    }
+
+    /**
+     * @return empty extracts for whatever the sink and fact sink will store, or null if nothing
+     */
+    public DocumentExtracts newExtracts(KeyValueSink sink) {
+        boolean summaryEnabled = sink instanceof HBaseSink && ((HBaseSink)sink).isSummaryEnabled();
+        DocumentSummary summary = summaryEnabled || rollups != null ? new DocumentSummary() : null;
+        DayFacts facts = factSink != null || rollups != null ? new DayFacts(maxFactDays) : null;
+        return summary == null && facts == null ? null : new DocumentExtracts(summary, facts);
+    }
+
+    private void storeFacts(String id, DayFacts facts) throws IOException {
+        for (Map.Entry<String, Map<String, String>> day : facts.getDays().entrySet()) {
+            long dayTime;
+            try {
+                dayTime = DayFacts.parseDay(day.getKey());
+            } catch (ParseException e) {
+                continue;
+            }
+            factSink.storeColumns(id, dayTime, day.getValue());
+        }
+    }
+}
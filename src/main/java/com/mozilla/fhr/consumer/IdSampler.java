@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Picks a fixed fraction of document ids by hashing them, so the same profiles are
+ * in the sample on every day and on every consumer. An id is sampled when the CRC32
+ * of its UTF-8 bytes, modulo 10000, is below rate * 10000; that is easy to repeat
+ * from any other tool that needs to pick the same profiles.
+ */
+public class IdSampler {
+
+    static final int BUCKETS = 10000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int sampledBuckets;
+
+    public IdSampler(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        this.sampledBuckets = (int)Math.round(rate * BUCKETS);
+    }
+
+    static int bucket(String id) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = id.getBytes(UTF8);
+        crc.update(bytes, 0, bytes.length);
+        return (int)(crc.getValue() % BUCKETS);
+    }
+
+    public boolean isSampled(String id) {
+        return bucket(id) < sampledBuckets;
+    }
+}
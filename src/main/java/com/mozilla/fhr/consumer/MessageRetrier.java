@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.util.Properties;
+
+/**
+ * Handles a single message until it goes through, backing off exponentially between
+ * attempts. A SinkException is the sink's fault and is retried for as long as it
+ * takes, so the worker handling the message (and, once its queue fills, the stream)
+ * is held back instead of the message being lost. Any other failure, including an
+ * IOException from decoding or enriching the message, counts against the message,
+ * which is quarantined once it has failed poisonAttempts times.
+ *
+ * Retrying a message repeats its writes, which are Puts and Deletes of whole rows and
+ * so come out the same however often they are applied.
+ */
+class MessageRetrier {
+
+    static final long DEFAULT_MIN_BACKOFF_MILLIS = 1000;
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+    static final int DEFAULT_POISON_ATTEMPTS = 3;
+
+    /**
+     * The work done for one message.
+     */
+    abstract static class Attempt {
+
+        abstract void run() throws Exception;
+
+        /**
+         * Gives up on a message that failed too often for reasons of its own.
+         */
+        abstract void quarantine(Exception e);
+
+        /**
+         * Called after each failure, before backing off.
+         */
+        void failed(Exception e, long backoffMillis) {
+        }
+    }
+
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int poisonAttempts;
+
+    MessageRetrier(long minBackoffMillis, long maxBackoffMillis, int poisonAttempts) {
+        this.minBackoffMillis = Math.max(1, minBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.minBackoffMillis, maxBackoffMillis);
+        this.poisonAttempts = Math.max(1, poisonAttempts);
+    }
+
+    static MessageRetrier fromProperties(Properties props) {
+        return new MessageRetrier(Long.parseLong(props.getProperty("consumer.worker.backoff.min.ms", String.valueOf(DEFAULT_MIN_BACKOFF_MILLIS))),
+                                  Long.parseLong(props.getProperty("consumer.worker.backoff.max.ms", String.valueOf(DEFAULT_MAX_BACKOFF_MILLIS))),
+                                  Integer.parseInt(props.getProperty("consumer.poison.attempts", String.valueOf(DEFAULT_POISON_ATTEMPTS))));
+    }
+
+    long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    int getPoisonAttempts() {
+        return poisonAttempts;
+    }
+
+    /**
+     * @return the backoff after the given number of failures in a row, doubling from the minimum up to the maximum
+     */
+    long backoffMillis(int failures) {
+        return Math.min(maxBackoffMillis, minBackoffMillis << Math.min(Math.max(0, failures - 1), 20));
+    }
+
+    /**
+     * Runs the attempt until it succeeds or is quarantined.
+     *
+     * @throws InterruptedException if interrupted while backing off, leaving the message unhandled
+     */
+    void run(Attempt attempt) throws InterruptedException {
+        int failures = 0;
+        int poisonFailures = 0;
+        while (true) {
+            try {
+                attempt.run();
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failures++;
+                if (!(e instanceof SinkException) && ++poisonFailures >= poisonAttempts) {
+                    attempt.quarantine(e);
+                    return;
+                }
+                long backoff = backoffMillis(failures);
+                attempt.failed(e, backoff);
+                sleep(backoff);
+            }
+        }
+    }
+
+    void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.fhr.consumer.DeadLetterSpool.Reason;
+import com.mozilla.fhr.util.RateLimitedLogger;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * Gives every namespace its own bounded queue and worker threads, so that a
+ * namespace whose table is slow or retrying only holds up its own messages. The
+ * stream workers only decode and hand messages over; parsing and storing happen on
+ * the namespace's workers, partitioned by id to keep each id's messages in order.
+ *
+ * A message whose store fails is retried by its namespace's worker with a backoff,
+ * and quarantined if it keeps failing for reasons other than the sink; see
+ * {@link MessageRetrier}. Meanwhile the rest of that worker's partition waits.
+ *
+ * When a namespace's queue is full the stream worker either waits for room
+ * (overflow=block), which eventually slows every namespace down to the degraded
+ * one, or drops the message and moves on (overflow=drop), which keeps the healthy
+ * namespaces at full speed at the cost of losing the degraded one's overflow. A
+ * dropped message is copied to the dead-letter spool if there is one, but only for
+ * inspection: nothing replays it, since an old submission replayed after a newer one
+ * would overwrite it.
+ */
+public class NamespaceDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(NamespaceDispatcher.class);
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private final FHRMessageProcessor processor;
+    private final KeyValueSinkFactory sinkFactory;
+    private final Meter consumed;
+    private final Properties props;
+    private final boolean dropOverflow;
+    private final MessageRetrier retrier;
+    private final RateLimitedLogger dropLog = new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS);
+    private final RateLimitedLogger failureLog = new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS);
+
+    private final Map<String, Lane> lanes = new TreeMap<String, Lane>();
+    private boolean closed = false;
+
+    /**
+     * The queue, workers and metrics of a single namespace.
+     */
+    class Lane {
+
+        final String namespace;
+        final int threads;
+        final PartitionedStage<BagheeraMessage> stage;
+
+        final Meter laneConsumed;
+        final Meter overflowed;
+        final Meter failed;
+        final Timer processTimer;
+        final Gauge<Integer> queueSizeGauge;
+
+        Lane(final String namespace, int threads, int queueSize) {
+            this.namespace = namespace;
+            this.threads = threads;
+            stage = new PartitionedStage<BagheeraMessage>("fhr-ns-" + namespace, threads, queueSize,
+                new PartitionedStage.Handler<BagheeraMessage>() {
+                    @Override
+                    public void handle(BagheeraMessage bmsg) throws Exception {
+                        process(bmsg);
+                    }
+                });
+
+            laneConsumed = Metrics.newMeter(new MetricName("bagheera", "consumer", namespace + ".lane.consumed"), "messages", TimeUnit.SECONDS);
+            overflowed = Metrics.newMeter(new MetricName("bagheera", "consumer", namespace + ".lane.overflow"), "messages", TimeUnit.SECONDS);
+            failed = Metrics.newMeter(new MetricName("bagheera", "consumer", namespace + ".lane.failed"), "messages", TimeUnit.SECONDS);
+            processTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", namespace + ".lane.process.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+            queueSizeGauge = Metrics.newGauge(new MetricName("bagheera", "consumer", namespace + ".lane.queue.size"), new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return stage.size();
+                }
+            });
+        }
+
+        private void process(final BagheeraMessage bmsg) throws InterruptedException {
+            retrier.run(new MessageRetrier.Attempt() {
+                @Override
+                void run() throws Exception {
+                    TimerContext processTimerContext = processTimer.time();
+                    try {
+                        KeyValueSink sink = sinkFactory.getSink(namespace);
+                        processor.process(sink, bmsg);
+                    } finally {
+                        processTimerContext.stop();
+                    }
+                    laneConsumed.mark();
+                    consumed.mark();
+                }
+
+                @Override
+                void quarantine(Exception e) {
+                    processor.quarantine(bmsg, e);
+                }
+
+                @Override
+                void failed(Exception e, long backoffMillis) {
+                    // a failing namespace only holds up its own workers
+                    failed.mark();
+                    failureLog.error("Error storing to namespace " + namespace + ", retrying", e);
+                }
+            });
+        }
+
+        int getQueueSize() {
+            return stage.size();
+        }
+    }
+
+    public NamespaceDispatcher(FHRMessageProcessor processor, KeyValueSinkFactory sinkFactory, Meter consumed, Properties props) {
+        this.processor = processor;
+        this.sinkFactory = sinkFactory;
+        this.consumed = consumed;
+        this.props = props;
+        String overflow = props.getProperty("consumer.namespace.overflow", "block");
+        if (!"block".equals(overflow) && !"drop".equals(overflow)) {
+            throw new IllegalArgumentException("consumer.namespace.overflow must be block or drop: " + overflow);
+        }
+        this.dropOverflow = "drop".equals(overflow);
+        this.retrier = MessageRetrier.fromProperties(props);
+    }
+
+    private int getInt(String namespace, String key, int defaultValue) {
+        String value = props.getProperty("consumer.namespace." + namespace + "." + key,
+                                         props.getProperty("consumer.namespace." + key));
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    synchronized Lane getLane(String namespace) {
+        if (closed) {
+            throw new IllegalStateException("Dispatcher is closed");
+        }
+        Lane lane = lanes.get(namespace);
+        if (lane == null) {
+            lane = new Lane(namespace, getInt(namespace, "threads", DEFAULT_THREADS),
+                            getInt(namespace, "queue.size", DEFAULT_QUEUE_SIZE));
+            lane.stage.start();
+            lanes.put(namespace, lane);
+            LOG.info(String.format("Started %d workers for namespace %s", lane.threads, namespace));
+        }
+        return lane;
+    }
+
+    /**
+     * Hands a decoded message to its namespace's workers.
+     */
+    public void submit(BagheeraMessage bmsg) throws InterruptedException {
+        Lane lane = getLane(bmsg.getNamespace());
+        if (!dropOverflow) {
+            lane.stage.submit(bmsg.getId(), bmsg);
+        } else if (!lane.stage.offer(bmsg.getId(), bmsg)) {
+            lane.overflowed.mark();
+            processor.deadLetter(Reason.OVERFLOW, bmsg);
+            dropLog.warn("Dropped message for full namespace " + lane.namespace);
+        }
+    }
+
+    synchronized List<Lane> getLanes() {
+        return new ArrayList<Lane>(lanes.values());
+    }
+
+    /**
+     * Stops accepting new messages and waits for every namespace's queue to drain.
+     */
+    public void close() {
+        List<Lane> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<Lane>(lanes.values());
+        }
+        for (Lane lane : toClose) {
+            lane.stage.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        dropLog.flush();
+        failureLog.flush();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pipeline stage made of a fixed number of threads, each draining its own bounded
+ * queue. Items are routed to a thread by the hash of their key so that all items with
+ * the same key are handled in submission order by the same thread.
+ */
+class PartitionedStage<T> {
+
+    private static final Logger LOG = Logger.getLogger(PartitionedStage.class);
+
+    interface Handler<T> {
+        void handle(T item) throws Exception;
+    }
+
+    private final String name;
+    private final Handler<T> handler;
+    private final List<BlockingQueue<T>> queues;
+    private final List<Thread> threads;
+    private volatile boolean running = true;
+
+    PartitionedStage(String name, int numThreads, int queueSize, Handler<T> handler) {
+        this.name = name;
+        this.handler = handler;
+        queues = new ArrayList<BlockingQueue<T>>(numThreads);
+        threads = new ArrayList<Thread>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final BlockingQueue<T> queue = new ArrayBlockingQueue<T>(queueSize);
+            queues.add(queue);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            }, name + "-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+        }
+    }
+
+    void start() {
+        for (Thread t : threads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Queues the item on the partition owning the key, blocking while that partition is full.
+     */
+    void submit(String key, T item) throws InterruptedException {
+        queues.get(partition(key)).put(item);
+    }
+
+    /**
+     * Queues the item on the partition owning the key without blocking.
+     *
+     * @return false if that partition is full
+     */
+    boolean offer(String key, T item) {
+        return queues.get(partition(key)).offer(item);
+    }
+
+    private int partition(String key) {
+        return key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % queues.size();
+    }
+
+    int size() {
+        int size = 0;
+        for (BlockingQueue<T> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    private void drain(BlockingQueue<T> queue) {
+        while (running || !queue.isEmpty()) {
+            T item = null;
+            try {
+                item = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (item != null) {
+                try {
+                    handler.handle(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    LOG.error("Unhandled error in stage " + name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting work and waits for the queued items to be handled.
+     */
+    void close(long timeout, TimeUnit unit) {
+        running = false;
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        for (Thread t : threads) {
+            try {
+                t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (t.isAlive()) {
+                LOG.warn("Timed out waiting for " + t.getName() + " to drain, interrupting");
+                t.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream meant to be kept per thread and reset between documents,
+ * so that serializing a large document doesn't repeatedly grow a fresh buffer.
+ *
+ * Only toByteArray() should be used to hand the bytes on, as the backing array is
+ * overwritten by the next document.
+ */
+class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private final int maxRetainedCapacity;
+
+    ReusableByteArrayOutputStream(int initialCapacity, int maxRetainedCapacity) {
+        super(initialCapacity);
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    /**
+     * Resets the stream and makes sure it can hold at least the given number of bytes.
+     */
+    void reset(int expectedSize) {
+        reset();
+        if (buf.length > maxRetainedCapacity && expectedSize <= maxRetainedCapacity) {
+            // don't hang on to the buffer of a rare huge document
+            buf = new byte[maxRetainedCapacity];
+        } else if (buf.length < expectedSize) {
+            buf = new byte[expectedSize];
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.IOException;
+
+/**
+ * An IOException raised by a KeyValueSink while storing or deleting a message. Only
+ * these are taken to be the sink's fault, so a message failing with one is retried
+ * for as long as it takes instead of counting towards quarantine.
+ */
+public class SinkException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SinkException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+}
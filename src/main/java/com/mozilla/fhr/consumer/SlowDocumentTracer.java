@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+/**
+ * Keeps the slowest documents processed lately, with the time each spent enriching
+ * and storing, so the clients sending pathological payloads can be found.
+ *
+ * Documents faster than the slowest ones already kept are turned away by a single
+ * volatile read, so once the list is full almost every document skips the lock.
+ * The list rolls over every window: the previous window's documents are still
+ * reported until the current window has replaced them.
+ */
+public class SlowDocumentTracer {
+
+    public static class Entry implements Comparable<Entry> {
+
+        final String id;
+        final String namespace;
+        final int payloadSize;
+        final long time;
+        final long enrichNanos;
+        final long storeNanos;
+
+        Entry(String id, String namespace, int payloadSize, long time, long enrichNanos, long storeNanos) {
+            this.id = id;
+            this.namespace = namespace;
+            this.payloadSize = payloadSize;
+            this.time = time;
+            this.enrichNanos = enrichNanos;
+            this.storeNanos = storeNanos;
+        }
+
+        public long getTotalNanos() {
+            return enrichNanos + storeNanos;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            long total = getTotalNanos();
+            long otherTotal = o.getTotalNanos();
+            return total < otherTotal ? -1 : (total == otherTotal ? 0 : 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %d bytes: %.1fms (enrich %.1fms, store %.1fms)", namespace, id, payloadSize,
+                                 getTotalNanos() / 1e6, enrichNanos / 1e6, storeNanos / 1e6);
+        }
+    }
+
+    private final int size;
+    private final long windowMillis;
+
+    // min-heaps, so the fastest kept entry is the one to replace
+    private PriorityQueue<Entry> current;
+    private List<Entry> previous = Collections.emptyList();
+    // only documents slower than this can make the current list
+    private volatile long thresholdNanos;
+    private volatile long windowEnd;
+
+    public SlowDocumentTracer(int size, long window, TimeUnit unit) {
+        this(size, window, unit, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now the start of the first window, in ms since the epoch
+     */
+    SlowDocumentTracer(int size, long window, TimeUnit unit, long now) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Tracer size must be positive");
+        }
+        this.size = size;
+        this.windowMillis = unit.toMillis(window);
+        this.current = new PriorityQueue<Entry>(size);
+        this.windowEnd = now + windowMillis;
+    }
+
+    public void trace(BagheeraMessage bmsg, long enrichNanos, long storeNanos) {
+        trace(bmsg, enrichNanos, storeNanos, System.currentTimeMillis());
+    }
+
+    void trace(BagheeraMessage bmsg, long enrichNanos, long storeNanos, long now) {
+        if (enrichNanos + storeNanos <= thresholdNanos && now < windowEnd) {
+            return;
+        }
+        Entry entry = new Entry(bmsg.getId(), bmsg.getNamespace(), bmsg.getPayload().size(), now, enrichNanos, storeNanos);
+        synchronized (this) {
+            if (now >= windowEnd) {
+                roll(now);
+            }
+            if (current.size() < size) {
+                current.add(entry);
+            } else if (entry.compareTo(current.peek()) > 0) {
+                current.poll();
+                current.add(entry);
+            }
+            if (current.size() == size) {
+                thresholdNanos = current.peek().getTotalNanos();
+            }
+        }
+    }
+
+    private void roll(long now) {
+        // if a whole window went by without a trace, the current list is too old to report
+        boolean idle = now - windowEnd >= windowMillis;
+        previous = idle ? Collections.<Entry>emptyList() : new ArrayList<Entry>(current);
+        current = new PriorityQueue<Entry>(size);
+        thresholdNanos = 0;
+        windowEnd = (idle ? now : windowEnd) + windowMillis;
+    }
+
+    /**
+     * @return up to size of the slowest documents of the current and previous window, slowest first
+     */
+    public List<Entry> getSlowest() {
+        return getSlowest(System.currentTimeMillis());
+    }
+
+    synchronized List<Entry> getSlowest(long now) {
+        if (now >= windowEnd) {
+            roll(now);
+        }
+        List<Entry> slowest = new ArrayList<Entry>(current);
+        slowest.addAll(previous);
+        Collections.sort(slowest, Collections.reverseOrder());
+        return slowest.size() > size ? new ArrayList<Entry>(slowest.subList(0, size)) : slowest;
+    }
+
+    public void writeJson(JsonGenerator g) throws IOException {
+        g.writeStartArray();
+        for (Entry entry : getSlowest()) {
+            g.writeStartObject();
+            g.writeStringField("id", entry.id);
+            g.writeStringField("namespace", entry.namespace);
+            g.writeNumberField("payloadSize", entry.payloadSize);
+            g.writeNumberField("time", entry.time);
+            g.writeNumberField("totalMs", entry.getTotalNanos() / 1e6);
+            g.writeObjectFieldStart("stages");
+            g.writeNumberField("enrichMs", entry.enrichNanos / 1e6);
+            g.writeNumberField("storeMs", entry.storeNanos / 1e6);
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+    }
+}
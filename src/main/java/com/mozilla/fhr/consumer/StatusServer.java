@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricProcessor;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Serves a JSON snapshot of the consumer and HBase sink metrics, along with whatever
+ * the status source adds (such as worker state), at /status on a local port. Other
+ * sources can be served at paths of their own. It is meant to be polled by scripts
+ * and by people on call, so every request is answered from the live registry by a
+ * single background thread with nothing cached.
+ *
+ * Meters carry their count and 1, 5 and 15 minute rates, timers and histograms also
+ * carry min, mean, max and percentiles, and gauges their current value.
+ */
+public class StatusServer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(StatusServer.class);
+
+    /**
+     * Adds fields of its own to the root status object.
+     */
+    public interface StatusSource {
+        void writeStatus(JsonGenerator g) throws IOException;
+    }
+
+    static final MetricPredicate BAGHEERA_METRICS = new MetricPredicate() {
+        @Override
+        public boolean matches(MetricName name, Metric metric) {
+            return "bagheera".equals(name.getGroup()) &&
+                   ("consumer".equals(name.getType()) || name.getType().startsWith("sink.hbase"));
+        }
+    };
+
+    private final MetricsRegistry registry;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public StatusServer(InetSocketAddress address, MetricsRegistry registry, final StatusSource source) throws IOException {
+        this.registry = registry;
+        server = HttpServer.create(address, 0);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "status-server");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/status", newHandler(new StatusSource() {
+            @Override
+            public void writeStatus(JsonGenerator g) throws IOException {
+                writeMetrics(g);
+                if (source != null) {
+                    source.writeStatus(g);
+                }
+            }
+        }));
+        server.start();
+        LOG.info("Serving status at http://" + address.getHostName() + ":" + getPort() + "/status");
+    }
+
+    /**
+     * Serves the fields written by source at the given path.
+     */
+    public void addSource(String path, StatusSource source) {
+        server.createContext(path, newHandler(source));
+    }
+
+    private HttpHandler newHandler(final StatusSource source) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = getStatus(source);
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (IOException e) {
+                    LOG.warn("Error writing status", e);
+                    throw e;
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private byte[] getStatus(StatusSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+        JsonGenerator g = jsonFactory.createJsonGenerator(out);
+        g.writeStartObject();
+        g.writeNumberField("time", System.currentTimeMillis());
+        source.writeStatus(g);
+        g.writeEndObject();
+        g.close();
+        return out.toByteArray();
+    }
+
+    private void writeMetrics(JsonGenerator g) throws IOException {
+        g.writeObjectFieldStart("metrics");
+        MetricWriter writer = new MetricWriter();
+        for (SortedMap<MetricName, Metric> group : registry.groupedMetrics(BAGHEERA_METRICS).values()) {
+            for (Map.Entry<MetricName, Metric> metric : group.entrySet()) {
+                MetricName name = metric.getKey();
+                g.writeObjectFieldStart(name.getGroup() + "." + name.getType() + "." + name.getName());
+                try {
+                    metric.getValue().processWith(writer, name, g);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    g.writeStringField("error", e.toString());
+                }
+                g.writeEndObject();
+            }
+        }
+        g.writeEndObject();
+    }
+
+    private static class MetricWriter implements MetricProcessor<JsonGenerator> {
+
+        private static void writeRates(Metered meter, JsonGenerator g) throws IOException {
+            g.writeNumberField("count", meter.count());
+            g.writeNumberField("m1", meter.oneMinuteRate());
+            g.writeNumberField("m5", meter.fiveMinuteRate());
+            g.writeNumberField("m15", meter.fifteenMinuteRate());
+            g.writeStringField("rateUnit", meter.rateUnit().toString().toLowerCase());
+        }
+
+        private static void writeSnapshot(Snapshot snapshot, double min, double mean, double max, JsonGenerator g) throws IOException {
+            g.writeNumberField("min", min);
+            g.writeNumberField("mean", mean);
+            g.writeNumberField("max", max);
+            g.writeNumberField("p50", snapshot.getMedian());
+            g.writeNumberField("p95", snapshot.get95thPercentile());
+            g.writeNumberField("p99", snapshot.get99thPercentile());
+        }
+
+        @Override
+        public void processMeter(MetricName name, Metered meter, JsonGenerator g) throws Exception {
+            g.writeStringField("type", "meter");
+            writeRates(meter, g);
+        }
+
+        @Override
+        public void processCounter(MetricName name, Counter counter, JsonGenerator g) throws Exception {
+            g.writeStringField("type", "counter");
+            g.writeNumberField("count", counter.count());
+        }
+
+        @Override
+        public void processHistogram(MetricName name, Histogram histogram, JsonGenerator g) throws Exception {
+            g.writeStringField("type", "histogram");
+            g.writeNumberField("count", histogram.count());
+            writeSnapshot(histogram.getSnapshot(), histogram.min(), histogram.mean(), histogram.max(), g);
+        }
+
+        @Override
+        public void processTimer(MetricName name, Timer timer, JsonGenerator g) throws Exception {
+            g.writeStringField("type", "timer");
+            writeRates(timer, g);
+            writeSnapshot(timer.getSnapshot(), timer.min(), timer.mean(), timer.max(), g);
+            g.writeStringField("durationUnit", timer.durationUnit().toString().toLowerCase());
+        }
+
+        @Override
+        public void processGauge(MetricName name, Gauge<?> gauge, JsonGenerator g) throws Exception {
+            g.writeStringField("type", "gauge");
+            Object value = gauge.value();
+            if (value instanceof Integer || value instanceof Long) {
+                g.writeNumberField("value", ((Number)value).longValue());
+            } else if (value instanceof Number) {
+                g.writeNumberField("value", ((Number)value).doubleValue());
+            } else if (value instanceof Boolean) {
+                g.writeBooleanField("value", (Boolean)value);
+            } else {
+                g.writeStringField("value", String.valueOf(value));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+/**
+ * Sets a top-level string field on a JSON object by copying it token by token rather
+ * than binding the whole document to a tree and serializing it again.
+ *
+ * The result is the same as putting the field on an ObjectNode: an existing field is
+ * replaced where it stands and a new one is appended at the end of the object. The
+ * input is fully parsed, so malformed JSON fails with the same exceptions as the tree
+ * path.
+ *
+ * When given a DocumentObserver, the objects and arrays it tracks are copied one token
+ * at a time so their values can be collected on the way through.
+ */
+public class StreamingJsonEnricher {
+
+    private final JsonFactory jsonFactory;
+
+    public StreamingJsonEnricher(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Copies the JSON object read from in to out with fieldName set to value.
+     */
+    public void enrich(InputStream in, OutputStream out, String fieldName, String value) throws IOException {
+        enrich(in, out, fieldName, value, null);
+    }
+
+    /**
+     * Copies the JSON object read from in to out with fieldName set to value, reporting
+     * what the observer tracks as it goes.
+     */
+    public void enrich(InputStream in, OutputStream out, String fieldName, String value,
+                       DocumentObserver observer) throws IOException {
+        String[] path = observer == null ? null : new String[DocumentExtracts.MAX_DEPTH];
+        JsonParser parser = jsonFactory.createJsonParser(in);
+        JsonGenerator generator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonMappingException("Expected a JSON object", parser.getCurrentLocation());
+            }
+            generator.writeStartObject();
+
+            boolean written = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (fieldName.equals(name)) {
+                    parser.skipChildren();
+                    if (!written) {
+                        generator.writeStringField(fieldName, value);
+                        written = true;
+                    }
+                } else {
+                    generator.writeFieldName(name);
+                    if (observer != null) {
+                        path[0] = name;
+                        copy(parser, generator, path, 1, observer);
+                    } else {
+                        generator.copyCurrentStructure(parser);
+                    }
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException("Unexpected end of JSON object", parser.getCurrentLocation());
+            }
+
+            if (!written) {
+                generator.writeStringField(fieldName, value);
+            }
+            generator.writeEndObject();
+        } finally {
+            parser.close();
+            generator.close();
+        }
+    }
+
+    private void copy(JsonParser parser, JsonGenerator generator, String[] path, int depth,
+                      DocumentObserver observer) throws IOException {
+        observer.onField(path, depth);
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT && observer.isTracked(path, depth)) {
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                generator.writeFieldName(name);
+                parser.nextToken();
+                path[depth] = name;
+                copy(parser, generator, path, depth + 1, observer);
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException("Unexpected end of JSON object", parser.getCurrentLocation());
+            }
+            generator.writeEndObject();
+        } else if (token == JsonToken.START_ARRAY && observer.isTracked(path, depth)) {
+            generator.writeStartArray();
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException("Unexpected end of JSON array", parser.getCurrentLocation());
+                }
+                if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                    observer.onValue(path, depth, parser.getText());
+                }
+                generator.copyCurrentStructure(parser);
+            }
+            generator.writeEndArray();
+        } else {
+            if (token != null && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                observer.onValue(path, depth, parser.getText());
+            }
+            generator.copyCurrentStructure(parser);
+        }
+    }
+}
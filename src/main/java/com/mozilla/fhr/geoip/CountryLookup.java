@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Resolves an IP address to an ISO country code.
+ */
+public interface CountryLookup extends Closeable {
+
+    /**
+     * @param address the raw address bytes, as carried by BagheeraMessage.getIpAddr()
+     * @return the country code, or null if the country is unknown
+     */
+    String getCountryCode(byte[] address) throws IOException;
+
+}
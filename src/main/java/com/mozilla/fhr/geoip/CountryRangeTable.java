@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+
+/**
+ * An immutable IPv4 to country table. The address space is split into contiguous
+ * ranges, each mapped to a country, and lookups binary search the sorted range starts.
+ * Nothing is synchronized and nothing is allocated per lookup, so lookups from any
+ * number of threads proceed independently.
+ *
+ * Range starts are stored with their sign bit flipped so that plain signed int
+ * comparisons order them as unsigned addresses. The ranges are read through int and
+ * short buffers so that a table can either live on the heap or be memory-mapped
+ * straight from a file written by {@link CountryTableFile}.
+ *
+ * An optional direct-mapped cache remembers the answer for whole /24 prefixes that
+ * fall inside a single range.
+ */
+public class CountryRangeTable implements CountryLookup {
+
+    private static final Logger LOG = Logger.getLogger(CountryRangeTable.class);
+
+    // index 0 is reserved for unknown
+    static final int UNKNOWN_INDEX = 0;
+
+    private final IntBuffer starts;
+    private final ShortBuffer countries;
+    private final String[] codes;
+    private final int size;
+
+    private final AtomicLongArray prefixCache;
+    private final int prefixCacheMask;
+
+    CountryRangeTable(IntBuffer starts, ShortBuffer countries, String[] codes, int prefixCacheSize) {
+        if (starts.limit() != countries.limit()) {
+            throw new IllegalArgumentException("Range starts and countries differ in length");
+        }
+        this.starts = starts;
+        this.countries = countries;
+        this.codes = codes;
+        this.size = starts.limit();
+        if (prefixCacheSize > 0) {
+            int cacheSize = Integer.highestOneBit(prefixCacheSize - 1) << 1;
+            if (cacheSize <= 0) {
+                cacheSize = 1;
+            }
+            prefixCache = new AtomicLongArray(cacheSize);
+            prefixCacheMask = cacheSize - 1;
+        } else {
+            prefixCache = null;
+            prefixCacheMask = 0;
+        }
+    }
+
+    /**
+     * Walks every leaf of the LookupService database and builds a table from it.
+     * This takes a few seconds for a city database and should be done once at startup.
+     */
+    public static CountryRangeTable build(LookupService lookupService, int prefixCacheSize) {
+        long startTime = System.currentTimeMillis();
+        Builder builder = new Builder();
+        long ip = 0;
+        while (ip <= 0xFFFFFFFFL) {
+            Location location = lookupService.getLocation(ip);
+            // the netmask of the tree leaf that answered tells us how far the answer holds
+            int netmask = lookupService.last_netmask();
+            String code = null;
+            if (location != null && location.countryCode != null &&
+                !LookupServiceCountryLookup.UNKNOWN_COUNTRY_CODE.equals(location.countryCode) &&
+                location.countryCode.trim().length() > 0) {
+                code = location.countryCode;
+            }
+            builder.add(ip, code);
+            ip += 1L << (32 - Math.max(1, Math.min(32, netmask)));
+        }
+        CountryRangeTable table = builder.build(prefixCacheSize);
+        LOG.info(String.format("Built country table of %d ranges in %dms", table.size(),
+                               System.currentTimeMillis() - startTime));
+        return table;
+    }
+
+    /**
+     * Collects ranges in ascending address order, merging neighbours with the same country.
+     */
+    public static class Builder {
+
+        private final List<String> codes = new ArrayList<String>();
+        private final Map<String, Short> codeIndexes = new HashMap<String, Short>();
+        private int[] starts = new int[1024];
+        private short[] countries = new short[1024];
+        private int size = 0;
+        private long lastStart = -1;
+
+        public Builder() {
+            codes.add(null);
+        }
+
+        /**
+         * Starts a new range at the given address, replacing the previous one from there.
+         *
+         * @param start an unsigned IPv4 address, greater than the previous one added
+         * @param code the country code or null if unknown
+         */
+        public Builder add(long start, String code) {
+            if (start <= lastStart || start > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Range starts must be increasing IPv4 addresses");
+            }
+            lastStart = start;
+            short index = indexOf(code);
+            if (size > 0 && countries[size - 1] == index) {
+                return this;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                countries = Arrays.copyOf(countries, size * 2);
+            }
+            starts[size] = toSortable(start);
+            countries[size] = index;
+            size++;
+            return this;
+        }
+
+        private short indexOf(String code) {
+            if (code == null) {
+                return UNKNOWN_INDEX;
+            }
+            Short index = codeIndexes.get(code);
+            if (index == null) {
+                if (codes.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Too many distinct country codes");
+                }
+                index = (short)codes.size();
+                codes.add(code);
+                codeIndexes.put(code, index);
+            }
+            return index;
+        }
+
+        public CountryRangeTable build(int prefixCacheSize) {
+            if (size == 0 || starts[0] != toSortable(0)) {
+                throw new IllegalStateException("Ranges must start at 0.0.0.0");
+            }
+            return new CountryRangeTable(IntBuffer.wrap(Arrays.copyOf(starts, size)),
+                                         ShortBuffer.wrap(Arrays.copyOf(countries, size)),
+                                         codes.toArray(new String[codes.size()]), prefixCacheSize);
+        }
+    }
+
+    static int toSortable(long address) {
+        return (int)address ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the IPv4 address as an int, or null if the address isn't IPv4 or IPv4-mapped IPv6
+     */
+    static Integer toIPv4(byte[] address) {
+        int offset;
+        if (address.length == 4) {
+            offset = 0;
+        } else if (address.length == 16) {
+            for (int i = 0; i < 10; i++) {
+                if (address[i] != 0) {
+                    return null;
+                }
+            }
+            if (address[10] != (byte)0xff || address[11] != (byte)0xff) {
+                return null;
+            }
+            offset = 12;
+        } else {
+            return null;
+        }
+        return ((address[offset] & 0xff) << 24) | ((address[offset + 1] & 0xff) << 16) |
+               ((address[offset + 2] & 0xff) << 8) | (address[offset + 3] & 0xff);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the sign-flipped start address of the given range
+     */
+    int getStart(int range) {
+        return starts.get(range);
+    }
+
+    /**
+     * @return the country index of the given range
+     */
+    short getCountry(int range) {
+        return countries.get(range);
+    }
+
+    /**
+     * @return the country codes indexed by getCountry(), with null at UNKNOWN_INDEX
+     */
+    String[] getCodes() {
+        return codes;
+    }
+
+    @Override
+    public String getCountryCode(byte[] address) {
+        Integer ip = toIPv4(address);
+        return ip == null ? null : codes[lookup(ip)];
+    }
+
+    /**
+     * @return the country index of the given IPv4 address
+     */
+    int lookup(int ip) {
+        if (prefixCache == null) {
+            return countries.get(findRange(ip ^ Integer.MIN_VALUE));
+        }
+
+        // entries are (prefix + 1) << 16 | country so an empty slot never matches
+        long prefixTag = ((ip >>> 8) + 1L) << 16;
+        int slot = (ip >>> 8) & prefixCacheMask;
+        long entry = prefixCache.get(slot);
+        if ((entry & ~0xFFFFL) == prefixTag) {
+            return (int)(entry & 0xFFFF);
+        }
+
+        int range = findRange(ip ^ Integer.MIN_VALUE);
+        int country = countries.get(range);
+        int prefixStart = (ip & 0xFFFFFF00) ^ Integer.MIN_VALUE;
+        int prefixEnd = (ip | 0xFF) ^ Integer.MIN_VALUE;
+        if (starts.get(range) <= prefixStart && (range + 1 == size || starts.get(range + 1) > prefixEnd)) {
+            prefixCache.lazySet(slot, prefixTag | country);
+        }
+        return country;
+    }
+
+    /**
+     * @return the index of the last range starting at or before the sortable address
+     */
+    private int findRange(int key) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts.get(mid) <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+import com.maxmind.geoip.LookupService;
+
+/**
+ * Reads and writes CountryRangeTables in a compact on-disk format that is
+ * memory-mapped read-only, so every consumer on a box shares a single page cache
+ * copy of the table instead of loading the GeoIP database onto its own heap.
+ *
+ * A mapping reads whatever is in the file at the time, so a table must only ever be
+ * installed by renaming a complete file into place, as write() does. A live mapping
+ * keeps the replaced file alive until it is reloaded, whereas overwriting or
+ * truncating the file in place would make lookups read zeros or fault.
+ *
+ * The format is big-endian:
+ * <pre>
+ *   int    magic ('FHRG')
+ *   int    version
+ *   int    number of country codes, each written as a modified UTF-8 string
+ *          ("" for the unknown entry at index 0)
+ *   int    number of ranges
+ *   int[]  sign-flipped range starts
+ *   short[] country index of each range
+ * </pre>
+ *
+ * Tables are compiled from a GeoIP database with:
+ * <pre>
+ *   java com.mozilla.fhr.geoip.CountryTableFile GeoIPCity.dat country.table
+ * </pre>
+ * The output is written next to the destination and renamed into place, so running
+ * consumers watching the file only ever see a complete table.
+ */
+public class CountryTableFile {
+
+    private static final Logger LOG = Logger.getLogger(CountryTableFile.class);
+
+    static final int MAGIC = 0x46485247;
+    static final int VERSION = 1;
+
+    public static void write(CountryRangeTable table, File file) throws IOException {
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            String[] codes = table.getCodes();
+            dos.writeInt(codes.length);
+            for (String code : codes) {
+                dos.writeUTF(code == null ? "" : code);
+            }
+            dos.writeInt(table.size());
+            for (int i = 0; i < table.size(); i++) {
+                dos.writeInt(table.getStart(i));
+            }
+            for (int i = 0; i < table.size(); i++) {
+                dos.writeShort(table.getCountry(i));
+            }
+        } finally {
+            dos.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to move " + tmpFile + " to " + file);
+        }
+    }
+
+    public static CountryRangeTable map(File file, int prefixCacheSize) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            // the mapping stays valid once the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a country table: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported country table version " + version + ": " + file);
+            }
+            String[] codes = new String[buffer.getInt()];
+            for (int i = 0; i < codes.length; i++) {
+                byte[] code = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(code);
+                codes[i] = code.length == 0 ? null : new String(code, "UTF-8");
+            }
+            int size = buffer.getInt();
+
+            IntBuffer starts = slice(buffer, size * 4).asIntBuffer();
+            ShortBuffer countries = slice(buffer, size * 2).asShortBuffer();
+            for (int i = 0; i < size; i++) {
+                int country = countries.get(i);
+                if (country < 0 || country >= codes.length) {
+                    throw new IOException("Invalid country index at range " + i + ": " + file);
+                }
+            }
+            return new CountryRangeTable(starts, countries, codes, prefixCacheSize);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException and friends mean a truncated file
+            throw new IOException("Corrupt country table: " + file, e);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: " + CountryTableFile.class.getName() + " <GeoIP database> <output table>");
+            System.exit(1);
+        }
+
+        LookupService lookupService = new LookupService(args[0], LookupService.GEOIP_MEMORY_CACHE);
+        try {
+            CountryRangeTable table = CountryRangeTable.build(lookupService, 0);
+            write(table, new File(args[1]));
+            LOG.info(String.format("Wrote %d ranges to %s", table.size(), args[1]));
+        } finally {
+            lookupService.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+
+/**
+ * Country lookups straight through a MaxMind LookupService.
+ */
+public class LookupServiceCountryLookup implements CountryLookup {
+
+    static final String UNKNOWN_COUNTRY_CODE = "--";
+
+    private final LookupService lookupService;
+
+    public LookupServiceCountryLookup(LookupService lookupService) {
+        this.lookupService = lookupService;
+    }
+
+    @Override
+    public String getCountryCode(byte[] address) throws IOException {
+        Location location = lookupService.getLocation(InetAddress.getByAddress(address));
+        if (location != null && !UNKNOWN_COUNTRY_CODE.equals(location.countryCode) &&
+            location.countryCode.trim().length() > 0) {
+            return location.countryCode;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        lookupService.close();
+    }
+}
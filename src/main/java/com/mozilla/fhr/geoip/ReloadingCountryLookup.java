@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Serves lookups from a memory-mapped country table file and maps the new file
+ * whenever one is renamed into place (see {@link CountryTableFile}). The new table is fully loaded and checked before it
+ * is swapped in with a single volatile write, so lookups never wait on a reload and
+ * a bad file leaves the current table in place.
+ */
+public class ReloadingCountryLookup implements CountryLookup {
+
+    private static final Logger LOG = Logger.getLogger(ReloadingCountryLookup.class);
+
+    private final File file;
+    private final int prefixCacheSize;
+    private final ScheduledExecutorService reloader;
+
+    private volatile CountryRangeTable table;
+    private long lastModified;
+    private long lastLength;
+
+    protected final Meter reloaded;
+    protected final Meter reloadFailed;
+
+    public ReloadingCountryLookup(File file, int prefixCacheSize, long checkIntervalSeconds) throws IOException {
+        this.file = file;
+        this.prefixCacheSize = prefixCacheSize;
+        this.lastModified = file.lastModified();
+        this.lastLength = file.length();
+        this.table = CountryTableFile.map(file, prefixCacheSize);
+        LOG.info(String.format("Mapped country table %s with %d ranges", file, table.size()));
+
+        reloaded = Metrics.newMeter(new MetricName("bagheera", "consumer", "geoip.table.reloaded"), "reloads", TimeUnit.SECONDS);
+        reloadFailed = Metrics.newMeter(new MetricName("bagheera", "consumer", "geoip.table.reload.failed"), "reloads", TimeUnit.SECONDS);
+
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "geoip-table-reloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reloadIfChanged();
+            }
+        }, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void reloadIfChanged() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == lastModified && length == lastLength) {
+            return;
+        }
+
+        try {
+            CountryRangeTable newTable = CountryTableFile.map(file, prefixCacheSize);
+            table = newTable;
+            lastModified = modified;
+            lastLength = length;
+            reloaded.mark();
+            LOG.info(String.format("Reloaded country table %s with %d ranges", file, newTable.size()));
+        } catch (IOException e) {
+            // keep serving the old table; we'll try again on the next check
+            reloadFailed.mark();
+            LOG.error("Failed to reload country table " + file, e);
+        }
+    }
+
+    @Override
+    public String getCountryCode(byte[] address) {
+        return table.getCountryCode(address);
+    }
+
+    @Override
+    public void close() {
+        reloader.shutdownNow();
+    }
+}
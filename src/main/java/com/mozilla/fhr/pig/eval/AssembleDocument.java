@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.pig.eval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.PigWarning;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mozilla.fhr.sink.CompressedValues;
+import com.mozilla.fhr.sink.DeltaDocuments;
+
+/**
+ * Reassembles a full document from a row stored in delta mode: the base document
+ * and the map of delta qualifiers to deltas. Compressed values are decoded, as long
+ * as they are loaded as bytearrays.
+ *
+ * <pre>
+ *   raw = LOAD 'hbase://metrics' USING org.apache.pig.backend.hadoop.hbase.HBaseStorage('data:json delta:*','-loadKey=true')
+ *                                AS (k:chararray,json:bytearray,deltas:map[]);
+ *   docs = FOREACH raw GENERATE k,com.mozilla.fhr.pig.eval.AssembleDocument(json,deltas) AS json:chararray;
+ * </pre>
+ */
+public class AssembleDocument extends EvalFunc<String> {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private ObjectNode parse(Object value) throws IOException {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof DataByteArray) {
+            return jsonMapper.readValue(CompressedValues.decode(((DataByteArray)value).get()), ObjectNode.class);
+        }
+        return jsonMapper.readValue(value.toString(), ObjectNode.class);
+    }
+
+    private static String toText(Object value) throws IOException {
+        return value instanceof DataByteArray ? new String(CompressedValues.decode(((DataByteArray)value).get()), "UTF-8") : value.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public String exec(Tuple input) throws IOException {
+        if (input == null || input.size() == 0) {
+            return null;
+        }
+
+        Object base = input.get(0);
+        Map<String, Object> deltaMap = input.size() > 1 ? (Map<String, Object>)input.get(1) : null;
+        if (deltaMap == null || deltaMap.isEmpty()) {
+            return base == null ? null : toText(base);
+        }
+
+        try {
+            // qualifiers are zero-padded submission times so they sort in order
+            List<ObjectNode> deltas = new ArrayList<ObjectNode>(deltaMap.size());
+            for (Object delta : new TreeMap<String, Object>(deltaMap).values()) {
+                deltas.add(parse(delta));
+            }
+            return jsonMapper.writeValueAsString(DeltaDocuments.assemble(parse(base), deltas));
+        } catch (IOException e) {
+            warn("Parse error: " + e.getMessage(), PigWarning.UDF_WARNING_1);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.pig.eval;
+
+import java.io.IOException;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.PigWarning;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+
+import com.mozilla.fhr.sink.CompressedValues;
+
+/**
+ * Returns the JSON text of a stored document, decompressing it if it was written with
+ * compression on. Plain values pass through, so it can be used on any table. The column
+ * has to be loaded as a bytearray for compressed values to survive.
+ *
+ * <pre>
+ *   raw = LOAD 'hbase://metrics' USING org.apache.pig.backend.hadoop.hbase.HBaseStorage('data:json','-loadKey=true -caching=100')
+ *                                AS (k:chararray,value:bytearray);
+ *   docs = FOREACH raw GENERATE k,com.mozilla.fhr.pig.eval.DecodeDocument(value) AS json:chararray;
+ * </pre>
+ */
+public class DecodeDocument extends EvalFunc<String> {
+
+    @Override
+    public String exec(Tuple input) throws IOException {
+        if (input == null || input.size() == 0 || input.get(0) == null) {
+            return null;
+        }
+
+        Object value = input.get(0);
+        if (!(value instanceof DataByteArray)) {
+            return value.toString();
+        }
+        try {
+            return new String(CompressedValues.decode(((DataByteArray)value).get()), "UTF-8");
+        } catch (IOException e) {
+            warn("Decode error: " + e.getMessage(), PigWarning.UDF_WARNING_1);
+            return null;
+        }
+    }
+}
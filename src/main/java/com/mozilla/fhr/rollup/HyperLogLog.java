@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.rollup;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch for estimating the number of distinct ids seen. Sketches of
+ * the same precision merge by taking the larger of each register, so partial
+ * rollups flushed by several consumers can be combined afterwards without
+ * double counting profiles that were seen by more than one of them.
+ *
+ * With precision p the sketch takes 2^p bytes and the standard error of the
+ * estimate is about 1.04 / sqrt(2^p).
+ */
+public class HyperLogLog {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Precision must be between 4 and 16");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    private HyperLogLog(int precision, byte[] registers) {
+        this.precision = precision;
+        this.registers = registers;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void add(String id) {
+        addHash(hash(id.getBytes(UTF8)));
+    }
+
+    public void addHash(long hash) {
+        int index = (int)(hash >>> (64 - precision));
+        // position of the first set bit in the rest of the hash, with a guard bit at the end
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte)(Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches of precision " + precision + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate while many registers are still empty
+            estimate = m * Math.log((double)m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * @return the precision byte followed by the registers
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[registers.length + 1];
+        bytes[0] = (byte)precision;
+        System.arraycopy(registers, 0, bytes, 1, registers.length);
+        return bytes;
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        int precision = bytes.length > 0 ? bytes[0] : 0;
+        if (precision < 4 || precision > 16 || bytes.length != (1 << precision) + 1) {
+            throw new IllegalArgumentException("Not a serialized sketch");
+        }
+        return new HyperLogLog(precision, Arrays.copyOfRange(bytes, 1, bytes.length));
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer so that ids differing
+     * only in their last characters still spread over every register.
+     */
+    static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.rollup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mozilla.fhr.consumer.DayFacts;
+
+/**
+ * The aggregate of every profile active on one day for one combination of
+ * product, channel, os and country: a sketch of the distinct profile ids along
+ * with counters summed over their day facts.
+ *
+ * Counters are plain sums, so a profile whose day is sent again in a later
+ * submission is counted again; only the sketch is free of repeats.
+ */
+public class Rollup {
+
+    public static final String DAY = "day";
+    public static final String PRODUCT = "product";
+    public static final String CHANNEL = "channel";
+    public static final String OS = "os";
+    public static final String GEO_COUNTRY = "geo";
+    public static final String PROFILES = "profiles";
+    public static final String SKETCH = "sketch";
+    public static final String PROFILE_DAYS = "profiledays";
+    public static final String SEARCHES = "searches";
+    public static final String CRASHES = "crashes";
+    public static final String SESSIONS_ABORTED = "sessionsaborted";
+
+    private final String[] dimensions;
+    private final HyperLogLog profiles;
+    private long profileDays;
+    private long searches;
+    private long crashes;
+    private long sessionsAborted;
+
+    /**
+     * @param dimensions day, product, channel, os and country
+     */
+    public Rollup(String[] dimensions, int precision) {
+        this.dimensions = dimensions;
+        this.profiles = new HyperLogLog(precision);
+    }
+
+    public synchronized void add(String id, Map<String, String> facts) {
+        profiles.add(id);
+        profileDays++;
+        for (Map.Entry<String, String> fact : facts.entrySet()) {
+            String column = fact.getKey();
+            if (column.startsWith(DayFacts.SEARCH_PREFIX)) {
+                searches += parseCount(fact.getValue());
+            } else if (DayFacts.CRASHES_PENDING.equals(column) || DayFacts.CRASHES_SUBMITTED.equals(column)) {
+                crashes += parseCount(fact.getValue());
+            } else if (DayFacts.SESSIONS_ABORTED.equals(column)) {
+                sessionsAborted += parseCount(fact.getValue());
+            }
+        }
+    }
+
+    private static long parseCount(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String[] getDimensions() {
+        return dimensions;
+    }
+
+    public synchronized long getProfileDays() {
+        return profileDays;
+    }
+
+    public synchronized long getSearches() {
+        return searches;
+    }
+
+    public synchronized long getCrashes() {
+        return crashes;
+    }
+
+    public synchronized long getSessionsAborted() {
+        return sessionsAborted;
+    }
+
+    public synchronized HyperLogLog getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * @return the rollup as a JSON document, with the sketch base64 encoded so that
+     *         rollups flushed separately can be merged later
+     */
+    public synchronized byte[] toJson(JsonFactory jsonFactory) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(profiles.toBytes().length * 2);
+        JsonGenerator g = jsonFactory.createJsonGenerator(out);
+        g.writeStartObject();
+        g.writeStringField(DAY, dimensions[0]);
+        g.writeStringField(PRODUCT, dimensions[1]);
+        g.writeStringField(CHANNEL, dimensions[2]);
+        g.writeStringField(OS, dimensions[3]);
+        g.writeStringField(GEO_COUNTRY, dimensions[4]);
+        g.writeNumberField(PROFILES, profiles.cardinality());
+        g.writeNumberField(PROFILE_DAYS, profileDays);
+        g.writeNumberField(SEARCHES, searches);
+        g.writeNumberField(CRASHES, crashes);
+        g.writeNumberField(SESSIONS_ABORTED, sessionsAborted);
+        g.writeBinaryField(SKETCH, profiles.toBytes());
+        g.writeEndObject();
+        g.close();
+        return out.toByteArray();
+    }
+}
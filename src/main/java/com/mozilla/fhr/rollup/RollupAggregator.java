@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.rollup;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.fhr.consumer.DayFacts;
+import com.mozilla.fhr.consumer.DocumentSummary;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * Keeps rollups of the documents a consumer stores, keyed by (day, product,
+ * channel, os, country), and periodically writes them out as JSON documents.
+ *
+ * Every flush starts a fresh set of rollups, so each output row only covers what
+ * this consumer saw during one interval. Rows are keyed by
+ * day:product:channel:os:country:flush time:consumer so that nothing is ever
+ * overwritten; readers sum the counters and merge the sketches of all rows with
+ * the same dimensions to get the totals.
+ *
+ * Only the days after a document's lastPingDate are added, since the previous
+ * submission already reported everything up to and including that day. Activity on
+ * the last ping's day after it was sent is therefore missed, rather than the whole
+ * day being counted twice.
+ *
+ * Each rollup holds a dense sketch, so the number of keys between flushes is capped;
+ * profiles for new keys past the cap are dropped and counted.
+ */
+public class RollupAggregator implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(RollupAggregator.class);
+
+    public static final String UNKNOWN = "unknown";
+    static final int DEFAULT_MAX_KEYS = 10000;
+
+    private final KeyValueSink output;
+    private final int precision;
+    private final String instance;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ScheduledExecutorService flusher;
+    private int maxKeys = DEFAULT_MAX_KEYS;
+
+    // adds share the read lock; a flush takes the write lock just long enough to swap maps
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile ConcurrentMap<String, Rollup> rollups = new ConcurrentHashMap<String, Rollup>();
+
+    protected final Meter flushed;
+    protected final Meter flushFailed;
+    protected final Meter dropped;
+    protected final Timer flushTimer;
+    protected final Gauge<Integer> keysGauge;
+
+    /**
+     * @param precision sketch precision; each rollup takes 2^precision bytes
+     * @param flushIntervalSeconds how often rollups are written out, or 0 to only write them on flush()
+     */
+    public RollupAggregator(String topic, KeyValueSink output, int precision, long flushIntervalSeconds) {
+        this.output = output;
+        this.precision = precision;
+        this.instance = ManagementFactory.getRuntimeMXBean().getName();
+
+        flushed = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".rollup.flushed"), "rollups", TimeUnit.SECONDS);
+        flushFailed = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".rollup.flush.failed"), "rollups", TimeUnit.SECONDS);
+        dropped = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".rollup.dropped"), "days", TimeUnit.SECONDS);
+        flushTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".rollup.flush.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        keysGauge = Metrics.newGauge(new MetricName("bagheera", "consumer", topic + ".rollup.keys"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return rollups.size();
+            }
+        });
+
+        if (flushIntervalSeconds > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "rollup-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Caps the rollups kept between flushes, each of which takes 2^precision bytes.
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    private static String dimension(Map<String, String> columns, String column) {
+        String value = columns.get(column);
+        return value == null || value.length() == 0 ? UNKNOWN : value;
+    }
+
+    /**
+     * Adds the profile to the rollup of each day it hasn't reported before.
+     */
+    public void add(String id, DocumentSummary summary, DayFacts facts) {
+        Map<String, String> columns = summary.toColumns();
+        String product = dimension(columns, DocumentSummary.PRODUCT);
+        String channel = dimension(columns, DocumentSummary.CHANNEL);
+        String os = dimension(columns, DocumentSummary.OS);
+        String geo = dimension(columns, DocumentSummary.GEO_COUNTRY);
+
+        swapLock.readLock().lock();
+        try {
+            for (Map.Entry<String, Map<String, String>> day : facts.getNewDays().entrySet()) {
+                String[] dimensions = new String[] { day.getKey(), product, channel, os, geo };
+                String key = join(dimensions);
+                Rollup rollup = rollups.get(key);
+                if (rollup == null) {
+                    if (rollups.size() >= maxKeys) {
+                        dropped.mark();
+                        continue;
+                    }
+                    Rollup newRollup = new Rollup(dimensions, precision);
+                    rollup = rollups.putIfAbsent(key, newRollup);
+                    if (rollup == null) {
+                        rollup = newRollup;
+                    }
+                }
+                rollup.add(id, day.getValue());
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private static String join(String[] dimensions) {
+        StringBuilder sb = new StringBuilder();
+        for (String dimension : dimensions) {
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            sb.append(dimension);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes out and resets every rollup. Rollups that fail to write are logged and dropped.
+     */
+    public synchronized void flush() {
+        Map<String, Rollup> current;
+        swapLock.writeLock().lock();
+        try {
+            current = rollups;
+            rollups = new ConcurrentHashMap<String, Rollup>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        if (current.isEmpty()) {
+            return;
+        }
+
+        String suffix = ":" + System.currentTimeMillis() + ":" + instance;
+        TimerContext flushTimerContext = flushTimer.time();
+        try {
+            for (Map.Entry<String, Rollup> rollup : current.entrySet()) {
+                try {
+                    output.store(rollup.getKey() + suffix, rollup.getValue().toJson(jsonFactory));
+                    flushed.mark();
+                } catch (IOException e) {
+                    flushFailed.mark();
+                    LOG.error("Failed to write rollup " + rollup.getKey(), e);
+                }
+            }
+            if (output instanceof Flushable) {
+                ((Flushable)output).flush();
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to flush rollups", e);
+        } finally {
+            flushTimerContext.stop();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        flush();
+        output.close();
+    }
+}
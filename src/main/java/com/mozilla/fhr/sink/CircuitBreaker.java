@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+/**
+ * Stops writes to a table that keeps failing. After failureThreshold failed writes in
+ * a row the breaker opens and turns every write away for openMillis; then a single
+ * trial write is let through, which closes the breaker if it succeeds and opens it
+ * again if it fails.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long timesOpened;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if a write may go ahead; it has to be followed by recordSuccess() or recordFailure()
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Gives back a write allowed by allowRequest() that turned out to have nothing to do.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean recordFailure() {
+        trialInFlight = false;
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            timesOpened++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return how long the breaker stays open, or 0 if writes may be tried
+     */
+    public synchronized long getOpenRemainingMillis() {
+        return state == State.OPEN ? Math.max(0, openedAt + openMillis - System.currentTimeMillis()) : 0;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return failures;
+    }
+
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored values behind a small header so that compressed and plain JSON
+ * cells can live side by side in a table, and readers can tell them apart from the
+ * first bytes alone. JSON never starts with a zero byte, so plain values are read
+ * back as they are.
+ *
+ * The format is:
+ * <pre>
+ *   byte[3] magic (0x00 'F' 'Z')
+ *   byte    codec (1 = deflate)
+ *   int     uncompressed length, big-endian
+ *   byte[]  zlib stream
+ * </pre>
+ *
+ * Deflate is used rather than one of the Hadoop codecs because it needs no native
+ * libraries, so every Pig task and tool can decode the cells. At its fastest level
+ * it still shrinks FHR documents several times over.
+ */
+public class CompressedValues {
+
+    static final byte[] MAGIC = new byte[] { 0, 'F', 'Z' };
+    static final byte DEFLATE = 1;
+    static final int HEADER_LENGTH = 8;
+
+    private final int level;
+    private final int minLength;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        }
+    };
+
+    /**
+     * @param level deflate level, 1 (fastest) to 9 (smallest)
+     * @param minLength values shorter than this are stored as they are
+     */
+    public CompressedValues(int level, int minLength) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+        this.minLength = minLength;
+    }
+
+    /**
+     * @return the compressed value, or data itself if it is short or doesn't compress
+     */
+    public byte[] encode(byte[] data) {
+        if (data == null || data.length < minLength) {
+            return data;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        // anything that doesn't fit in the original length isn't worth keeping
+        byte[] value = new byte[data.length];
+        int length = HEADER_LENGTH;
+        while (!deflater.finished() && length < value.length) {
+            length += deflater.deflate(value, length, value.length - length);
+        }
+        if (!deflater.finished()) {
+            return data;
+        }
+
+        System.arraycopy(MAGIC, 0, value, 0, MAGIC.length);
+        value[3] = DEFLATE;
+        value[4] = (byte)(data.length >>> 24);
+        value[5] = (byte)(data.length >>> 16);
+        value[6] = (byte)(data.length >>> 8);
+        value[7] = (byte)data.length;
+        return Arrays.copyOf(value, length);
+    }
+
+    public static boolean isCompressed(byte[] value) {
+        return value != null && value.length >= HEADER_LENGTH &&
+               value[0] == MAGIC[0] && value[1] == MAGIC[1] && value[2] == MAGIC[2];
+    }
+
+    /**
+     * @return the uncompressed value, or value itself if it wasn't compressed
+     */
+    public static byte[] decode(byte[] value) throws IOException {
+        if (!isCompressed(value)) {
+            return value;
+        }
+        if (value[3] != DEFLATE) {
+            throw new IOException("Unknown value codec: " + value[3]);
+        }
+        int length = ((value[4] & 0xff) << 24) | ((value[5] & 0xff) << 16) | ((value[6] & 0xff) << 8) | (value[7] & 0xff);
+        if (length < 0) {
+            throw new IOException("Corrupt compressed value length: " + length);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(data, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new IOException(String.format("Truncated compressed value (%d of %d bytes)", read, length));
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
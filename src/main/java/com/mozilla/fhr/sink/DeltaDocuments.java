@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Splits resubmitted FHR documents into deltas against a periodically rewritten base.
+ *
+ * Every submission repeats the profile's whole day history, but a client only adds or
+ * changes days on or after the lastPingDate it reports, since everything before that
+ * went out in its previous submission. A delta is the document with the older days
+ * (data.days in v2, dataPoints in v1) left out. Reassembling a profile takes its base
+ * and then each later delta in order: days are overlaid and everything else is taken
+ * from the newest delta.
+ *
+ * Each profile's days are split into periods of rebaseDays, staggered by a hash of its
+ * row key so that rebases are spread evenly, and the first submission of a new period
+ * is stored in full as the new base. A delta is also only written when this instance
+ * has seen the row stored through the submission's lastPingDate: a fixed-size table
+ * remembers the last stored thisPingDate of recently written row keys, and the caller
+ * reports each write with {@link #stored} once it has succeeded. A new row key, one
+ * evicted from the table or whose previous submission never made it (dead-lettered,
+ * rejected or failed), is stored in full instead, so a delta never goes on top of a
+ * missing base or gap.
+ */
+public class DeltaDocuments {
+
+    static final String LAST_PING_DATE_FIELD = "lastPingDate";
+    static final String THIS_PING_DATE_FIELD = "thisPingDate";
+    static final String DATA_FIELD = "data";
+    static final String DAYS_FIELD = "days";
+    static final String DATA_POINTS_FIELD = "dataPoints";
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    public static final int DEFAULT_ENTRIES = 1 << 20;
+
+    /**
+     * How a document is to be stored.
+     */
+    public static class Split {
+
+        private final byte[] delta;
+        private final long pingDay;
+
+        Split(byte[] delta, long pingDay) {
+            this.delta = delta;
+            this.pingDay = pingDay;
+        }
+
+        /**
+         * @return the delta of the document, or null if it should be stored in full as a new base
+         */
+        public byte[] getDelta() {
+            return delta;
+        }
+
+        /**
+         * @return the day the document was sent, to pass to {@link DeltaDocuments#stored}
+         *         once it is written, or -1 if it isn't known
+         */
+        public long getPingDay() {
+            return pingDay;
+        }
+    }
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final int rebaseDays;
+
+    // row key hash and last stored day + 1 for each slot, 0 marking an empty one
+    private final long[] storedDays;
+    private final int mask;
+
+    public DeltaDocuments(int rebaseDays) {
+        this(rebaseDays, DEFAULT_ENTRIES);
+    }
+
+    /**
+     * @param entries number of row keys whose last stored day is remembered, rounded up
+     *        to a power of two; each takes 16 bytes
+     */
+    public DeltaDocuments(int rebaseDays, int entries) {
+        if (rebaseDays < 1) {
+            throw new IllegalArgumentException("Rebase period must be at least a day");
+        }
+        int size = Integer.highestOneBit(Math.max(1, entries - 1)) << 1;
+        if (size <= 0) {
+            throw new IllegalArgumentException("Too many entries: " + entries);
+        }
+        this.rebaseDays = rebaseDays;
+        this.storedDays = new long[size * 2];
+        this.mask = size - 1;
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param timestamp submission time, used when the document has no thisPingDate
+     */
+    public Split toDelta(byte[] rowKey, byte[] document, long timestamp) throws IOException {
+        ObjectNode root = jsonMapper.readValue(document, ObjectNode.class);
+        long thisPingDay = timestamp / DAY_MILLIS;
+        JsonNode thisPingDate = root.get(THIS_PING_DATE_FIELD);
+        if (thisPingDate != null && thisPingDate.isTextual()) {
+            try {
+                thisPingDay = parseDay(thisPingDate.textValue());
+            } catch (ParseException e) {
+                return new Split(null, -1);
+            }
+        }
+        JsonNode lastPingDate = root.get(LAST_PING_DATE_FIELD);
+        if (lastPingDate == null || !lastPingDate.isTextual()) {
+            return new Split(null, thisPingDay);
+        }
+        long lastPingDay;
+        try {
+            lastPingDay = parseDay(lastPingDate.textValue());
+        } catch (ParseException e) {
+            return new Split(null, thisPingDay);
+        }
+        if (isRebase(rowKey, lastPingDay, thisPingDay) || getStoredDay(rowKey) < lastPingDay) {
+            return new Split(null, thisPingDay);
+        }
+
+        String since = lastPingDate.textValue();
+        removeDaysBefore(root.get(DATA_POINTS_FIELD), since);
+        JsonNode data = root.get(DATA_FIELD);
+        if (data != null) {
+            removeDaysBefore(data.get(DAYS_FIELD), since);
+        }
+        return new Split(jsonMapper.writeValueAsBytes(root), thisPingDay);
+    }
+
+    /**
+     * Records that a document split by {@link #toDelta} was written, so that the row
+     * has every day up to pingDay stored.
+     */
+    public synchronized void stored(byte[] rowKey, long pingDay) {
+        long keyHash = WriteSuppressionCache.keyHash(rowKey);
+        int i = slot(keyHash) * 2;
+        if (storedDays[i] != keyHash || storedDays[i + 1] < pingDay + 1) {
+            storedDays[i] = keyHash;
+            storedDays[i + 1] = pingDay + 1;
+        }
+    }
+
+    /**
+     * Forgets a row, for when one of its writes was given up on or it was deleted, so
+     * that its next document is stored in full.
+     */
+    public synchronized void forget(byte[] rowKey) {
+        long keyHash = WriteSuppressionCache.keyHash(rowKey);
+        int i = slot(keyHash) * 2;
+        if (storedDays[i] == keyHash) {
+            storedDays[i] = 0;
+        }
+    }
+
+    /**
+     * @return the last day the row is known to have stored, or -1 if it isn't known
+     */
+    synchronized long getStoredDay(byte[] rowKey) {
+        long keyHash = WriteSuppressionCache.keyHash(rowKey);
+        int i = slot(keyHash) * 2;
+        return storedDays[i] == keyHash ? storedDays[i + 1] - 1 : -1;
+    }
+
+    private int slot(long keyHash) {
+        return (int)(keyHash & mask);
+    }
+
+    private synchronized long parseDay(String day) throws ParseException {
+        return dayFormat.parse(day).getTime() / DAY_MILLIS;
+    }
+
+    boolean isRebase(byte[] rowKey, long lastPingDay, long thisPingDay) {
+        if (thisPingDay < lastPingDay) {
+            return true;
+        }
+        long offset = (WriteSuppressionCache.keyHash(rowKey) & Long.MAX_VALUE) % rebaseDays;
+        return (lastPingDay + offset) / rebaseDays != (thisPingDay + offset) / rebaseDays;
+    }
+
+    private static void removeDaysBefore(JsonNode days, String since) {
+        if (days == null || !days.isObject()) {
+            return;
+        }
+        Iterator<String> names = days.fieldNames();
+        while (names.hasNext()) {
+            // yyyy-MM-dd sorts as text
+            if (names.next().compareTo(since) < 0) {
+                names.remove();
+            }
+        }
+    }
+
+    /**
+     * Overlays the days of each delta onto the base in order and takes everything else
+     * from the newest delta.
+     *
+     * @param base the base document, or null if it is missing
+     * @param deltas deltas written after the base, oldest first
+     */
+    public static ObjectNode assemble(ObjectNode base, List<ObjectNode> deltas) {
+        if (deltas.isEmpty()) {
+            return base;
+        }
+        ObjectNode assembled = deltas.get(deltas.size() - 1).deepCopy();
+        ObjectNode dataPoints = mergeDays(base, deltas, null);
+        if (dataPoints != null) {
+            assembled.put(DATA_POINTS_FIELD, dataPoints);
+        }
+        ObjectNode days = mergeDays(base, deltas, DATA_FIELD);
+        if (days != null) {
+            JsonNode data = assembled.get(DATA_FIELD);
+            if (data instanceof ObjectNode) {
+                ((ObjectNode)data).put(DAYS_FIELD, days);
+            }
+        }
+        return assembled;
+    }
+
+    private static ObjectNode mergeDays(ObjectNode base, List<ObjectNode> deltas, String parent) {
+        ObjectNode merged = overlayDays(null, base, parent);
+        for (ObjectNode delta : deltas) {
+            merged = overlayDays(merged, delta, parent);
+        }
+        return merged;
+    }
+
+    private static ObjectNode overlayDays(ObjectNode merged, ObjectNode document, String parent) {
+        if (document == null) {
+            return merged;
+        }
+        JsonNode days;
+        if (parent == null) {
+            days = document.get(DATA_POINTS_FIELD);
+        } else {
+            JsonNode data = document.get(parent);
+            days = data == null ? null : data.get(DAYS_FIELD);
+        }
+        if (days == null || !days.isObject()) {
+            return merged;
+        }
+        if (merged == null) {
+            merged = ((ObjectNode)days).objectNode();
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = days.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> day = fields.next();
+            merged.put(day.getKey(), day.getValue());
+        }
+        return merged;
+    }
+}
@@ -20,18 +20,42 @@
 package com.mozilla.fhr.sink;
 
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -40,46 +64,139 @@ import org.apache.log4j.Logger;
 import com.mozilla.bagheera.sink.KeyValueSink;
 import com.mozilla.bagheera.sink.SinkConfiguration;
 import com.mozilla.bagheera.util.IdUtil;
+import com.mozilla.fhr.util.RateLimitedLogger;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
+import com.yammer.metrics.util.RatioGauge;
 
-public class HBaseSink implements KeyValueSink {
+public class HBaseSink implements KeyValueSink, Flushable {
 
     private static final Logger LOG = Logger.getLogger(HBaseSink.class);
+    // oversized documents come in floods, one line a minute is plenty
+    private static final RateLimitedLogger OVERSIZED_LOG = new RateLimitedLogger(LOG, 60, TimeUnit.SECONDS);
 
     private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    // raw documents larger than maxKeyValueSize times this can't be expected to compress enough
+    private static final int MAX_EXPECTED_COMPRESSION = 16;
     static final int DEFAULT_BATCH_SIZE = 100;
+    static final long DEFAULT_BUFFER_BYTES = 64L * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    // content hash of a Put's document, for the write suppression cache
+    private static final String CONTENT_HASH_ATTRIBUTE = "fhr.contentHash";
+    // day a Put's document was sent, for delta storage
+    private static final String PING_DAY_ATTRIBUTE = "fhr.pingDay";
+    // rows whose region server can't be found are left for the client to route
+    static final String UNKNOWN_SERVER = "unknown";
+    // a row put back this many times in a row without being tried uses up an attempt
+    static final int MAX_DEFERRALS = 10;
+    // stats of a region server no batch has gone to for this long are dropped with their metrics
+    static final long SERVER_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
     private int retryCount = 5;
     private int retrySleepSeconds = 30;
 
     protected HTablePool hbasePool;
+    protected final Configuration hbaseConf;
+    // looks up region servers for region-aware dispatch, opened on first use
+    protected HConnection hbaseConnection;
 
     protected final byte[] tableName;
     protected final byte[] family;
     protected final byte[] qualifier;
+    // optional family of small per-document columns written alongside the payload
+    protected byte[] summaryFamily;
 
     protected boolean prefixDate = true;
     protected int batchSize = 100;
+    // a batch is also cut once it holds this many bytes or its first row has waited this long
+    protected long batchBytes = Long.MAX_VALUE;
+    protected long batchLingerMillis;
     protected long maxKeyValueSize;
 
+    // optional family of per-submission deltas written between full rebases
+    protected byte[] deltaFamily;
+    protected DeltaDocuments deltaDocuments;
+
+    // optional cache of recent writes used to skip redundant Puts
+    protected WriteSuppressionCache writeCache;
+
+    // optional compression of the payload column
+    protected CompressedValues valueCompression;
+
     protected AtomicInteger rowQueueSize = new AtomicInteger();
     protected ConcurrentLinkedQueue<Row> rowQueue = new ConcurrentLinkedQueue<Row>();
+    protected AtomicLong rowQueueBytes = new AtomicLong();
+    // rows queued or being written, bounded by maxBufferBytes
+    protected AtomicLong bufferedBytes = new AtomicLong();
+    protected AtomicInteger bufferedRows = new AtomicInteger();
+    protected long maxBufferBytes = DEFAULT_BUFFER_BYTES;
+    // how long store() waits for buffer space before failing, 0 to wait as long as it takes
+    protected long bufferWaitMillis;
+    private final AtomicInteger bufferWaiters = new AtomicInteger();
+    private final AtomicLong blockedMillis = new AtomicLong();
+    // when the rows now queued started collecting, as of the last flush
+    protected volatile long batchStartTime;
+    // rows waiting to be written again after a failure; they stay counted in the buffer
+    protected final DelayQueue<RetryRow> retryQueue = new DelayQueue<RetryRow>();
+    protected long retryBaseMillis = 1000;
+    // failed rows that have used up their attempts; store() waits until they are written
+    protected final AtomicInteger exhaustedRows = new AtomicInteger();
+    // stops writing to the table for a while after repeated failed batches
+    protected CircuitBreaker breaker = new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(retrySleepSeconds));
+    private final Random random = new Random();
+    // set by close() to write out retries without waiting on backoff or the breaker
+    private volatile boolean closing;
+
+    // optional dispatch of each batch as concurrent per-server parts
+    protected ExecutorService dispatcher;
+    protected ServerLocator serverLocator;
+    protected int serverInFlight = 1;
+    private final ConcurrentMap<String, ServerStats> servers = new ConcurrentHashMap<String, ServerStats>();
+    private volatile long lastServerSweep;
+
+    // optional background flushers; without them the thread that fills a batch flushes it
+    protected ExecutorService flushers;
+    // flushes lingering batches when there are no background flushers to do it
+    protected ScheduledExecutorService lingerFlusher;
+    private volatile boolean flushersRunning;
+    private final Lock batchLock = new ReentrantLock();
+    private final Condition batchReady = batchLock.newCondition();
+    private final Condition bufferSpace = batchLock.newCondition();
 
     protected final Meter stored;
     protected final Meter storeFailed;
     protected final Meter deleted;
     protected final Meter deleteFailed;
     protected final Meter oversized;
+    protected final Meter suppressed;
+    protected final Meter deltaStored;
+    protected final Meter rebased;
+    protected final Meter flushRetries;
+    protected final Meter breakerOpened;
+    protected final Meter rawBytes;
+    protected final Meter storedBytes;
 
     protected final Timer flushTimer;
     protected final Timer htableTimer;
+    protected final Histogram batchBytesHistogram;
+    protected final Histogram batchAgeHistogram;
+    protected final Timer backpressureTimer;
 
     protected final Gauge<Integer> batchSizeGauge;
+    protected final Gauge<Integer> rowQueueSizeGauge;
+    protected final Gauge<Integer> consecutiveFailuresGauge;
+    protected final Gauge<Long> bufferedBytesGauge;
+    protected final Gauge<Integer> bufferedRowsGauge;
+    protected final Gauge<Long> blockedMillisGauge;
+    protected final Gauge<Integer> retryQueueSizeGauge;
+    protected final Gauge<Integer> retryExhaustedGauge;
+    protected final Gauge<Integer> breakerStateGauge;
 
     public HBaseSink(SinkConfiguration sinkConfiguration) {
         this(sinkConfiguration.getString("hbasesink.hbase.tablename"),
@@ -88,6 +205,36 @@ public class HBaseSink implements KeyValueSink {
              sinkConfiguration.getBoolean("hbasesink.hbase.rowkey.prefixdate", false),
              sinkConfiguration.getInt("hbasesink.hbase.numthreads", DEFAULT_POOL_SIZE),
              sinkConfiguration.getInt("hbasesink.hbase.batchsize", DEFAULT_BATCH_SIZE));
+        String summaryFamilyName = sinkConfiguration.getString("hbasesink.hbase.summary.family", null);
+        if (summaryFamilyName != null) {
+            setSummaryFamily(summaryFamilyName);
+        }
+        String deltaFamilyName = sinkConfiguration.getString("hbasesink.hbase.delta.family", null);
+        if (deltaFamilyName != null) {
+            setDeltaStorage(deltaFamilyName, sinkConfiguration.getInt("hbasesink.hbase.delta.rebase.days", 7),
+                            sinkConfiguration.getInt("hbasesink.hbase.delta.entries", DeltaDocuments.DEFAULT_ENTRIES));
+        }
+        if (sinkConfiguration.getBoolean("hbasesink.hbase.compress", false)) {
+            setValueCompression(sinkConfiguration.getInt("hbasesink.hbase.compress.level", 1),
+                                sinkConfiguration.getInt("hbasesink.hbase.compress.min.bytes", 256));
+        }
+        int suppressEntries = sinkConfiguration.getInt("hbasesink.hbase.suppress.entries", 0);
+        if (suppressEntries > 0) {
+            setWriteSuppression(suppressEntries, sinkConfiguration.getInt("hbasesink.hbase.suppress.seconds", 3600));
+        }
+        setBatchLimits(sinkConfiguration.getLong("hbasesink.hbase.batch.bytes", Long.MAX_VALUE),
+                       sinkConfiguration.getLong("hbasesink.hbase.batch.linger.ms", 0));
+        setBufferLimit(sinkConfiguration.getLong("hbasesink.hbase.buffer.bytes", DEFAULT_BUFFER_BYTES),
+                       sinkConfiguration.getLong("hbasesink.hbase.buffer.wait.ms", 0));
+        setRetryBackoff(sinkConfiguration.getLong("hbasesink.hbase.retry.base.ms", 1000));
+        setCircuitBreaker(sinkConfiguration.getInt("hbasesink.hbase.breaker.failures", 5),
+                          sinkConfiguration.getLong("hbasesink.hbase.breaker.open.ms", TimeUnit.SECONDS.toMillis(retrySleepSeconds)));
+        setRegionDispatch(sinkConfiguration.getInt("hbasesink.hbase.dispatch.threads", 0),
+                          sinkConfiguration.getInt("hbasesink.hbase.dispatch.server.inflight", 1));
+        int flushThreads = sinkConfiguration.getInt("hbasesink.hbase.flush.threads", 0);
+        if (flushThreads > 0) {
+            startFlushers(flushThreads);
+        }
     }
 
     public HBaseSink(String tableName, String family, String qualifier, boolean prefixDate, int numThreads, final int batchSize) {
@@ -97,33 +244,407 @@ public class HBaseSink implements KeyValueSink {
         this.prefixDate = prefixDate;
         this.batchSize = batchSize;
 
-        Configuration conf = HBaseConfiguration.create();
+        hbaseConf = HBaseConfiguration.create();
 
         // Use the standard HBase default
-        maxKeyValueSize = conf.getLong("hbase.client.keyvalue.maxsize", 10485760l);
-        hbasePool = new HTablePool(conf, numThreads);
+        maxKeyValueSize = hbaseConf.getLong("hbase.client.keyvalue.maxsize", 10485760l);
+        hbasePool = new HTablePool(hbaseConf, numThreads);
 
         stored = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".stored"), "messages", TimeUnit.SECONDS);
         storeFailed = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".store.failed"), "messages", TimeUnit.SECONDS);
         deleted = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".deleted"), "messages", TimeUnit.SECONDS);
         deleteFailed = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".delete.failed"), "messages", TimeUnit.SECONDS);
         oversized = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".oversized"), "messages", TimeUnit.SECONDS);
+        suppressed = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".suppressed"), "messages", TimeUnit.SECONDS);
+        deltaStored = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".delta.stored"), "messages", TimeUnit.SECONDS);
+        rebased = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".delta.rebased"), "messages", TimeUnit.SECONDS);
+        rawBytes = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".bytes.raw"), "bytes", TimeUnit.SECONDS);
+        storedBytes = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".bytes.stored"), "bytes", TimeUnit.SECONDS);
+        flushRetries = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".flush.retries"), "attempts", TimeUnit.SECONDS);
+        breakerOpened = Metrics.newMeter(new MetricName("bagheera", "sink.hbase", tableName + ".breaker.opened"), "openings", TimeUnit.SECONDS);
         flushTimer = Metrics.newTimer(new MetricName("bagheera", "sink.hbase", tableName + ".flush.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
         htableTimer = Metrics.newTimer(new MetricName("bagheera", "sink.hbase", tableName + ".htable.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        batchBytesHistogram = Metrics.newHistogram(new MetricName("bagheera", "sink.hbase", tableName + ".batch.bytes"), true);
+        batchAgeHistogram = Metrics.newHistogram(new MetricName("bagheera", "sink.hbase", tableName + ".batch.age"), true);
+        backpressureTimer = Metrics.newTimer(new MetricName("bagheera", "sink.hbase", tableName + ".backpressure.wait"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
         batchSizeGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".batchsize"), new Gauge<Integer>(){
             @Override
             public Integer value() {
                 return batchSize;
             }
         });
+        rowQueueSizeGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".rowqueue.size"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                return rowQueueSize.get();
+            }
+        });
+        consecutiveFailuresGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".flush.consecutive.failures"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                return breaker.getConsecutiveFailures();
+            }
+        });
+        bufferedBytesGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".buffer.bytes"), new Gauge<Long>(){
+            @Override
+            public Long value() {
+                return bufferedBytes.get();
+            }
+        });
+        bufferedRowsGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".buffer.rows"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                return bufferedRows.get();
+            }
+        });
+        blockedMillisGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".backpressure.blocked.ms"), new Gauge<Long>(){
+            @Override
+            public Long value() {
+                return blockedMillis.get();
+            }
+        });
+        retryQueueSizeGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".retry.queue.size"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                return retryQueue.size();
+            }
+        });
+        retryExhaustedGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".retry.exhausted"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                return exhaustedRows.get();
+            }
+        });
+        breakerStateGauge = Metrics.newGauge(new MetricName("bagheera", "sink.hbase", tableName + ".breaker.state"), new Gauge<Integer>(){
+            @Override
+            public Integer value() {
+                // 0 closed, 1 open, 2 half-open
+                return breaker.getState().ordinal();
+            }
+        });
+    }
+
+    /**
+     * Cuts batches at maxBytes as well as at the batch size, and writes a batch once its
+     * first row has waited lingerMillis (0 to wait for a full batch). Without background
+     * flushers, a lingering batch is written by a timer thread.
+     *
+     * Rows left over from a flush start a new batch, so they may wait up to about twice
+     * lingerMillis.
+     */
+    public void setBatchLimits(long maxBytes, long lingerMillis) {
+        this.batchBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.batchLingerMillis = lingerMillis;
+        if (lingerMillis > 0 && flushers == null && lingerFlusher == null) {
+            lingerFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "hbase-linger-" + Bytes.toString(tableName));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long interval = Math.max(10, lingerMillis / 4);
+            lingerFlusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (isBatchReady(System.currentTimeMillis())) {
+                        flushBatch();
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Bounds the bytes of rows queued or being written to maxBytes. A store() that would
+     * go over waits for a batch to be written, so a slow table holds back the stream
+     * instead of filling the heap; without background flushers the storing thread
+     * writes the batch itself. After waitMillis (0 for no limit) it gives up with an
+     * IOException. A single row larger than the limit is let through on an empty buffer.
+     * The limit defaults to DEFAULT_BUFFER_BYTES; maxBytes of 0 lifts it, leaving nothing
+     * to hold back the stream while the circuit breaker is open.
+     */
+    public void setBufferLimit(long maxBytes, long waitMillis) {
+        this.maxBufferBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.bufferWaitMillis = waitMillis;
+    }
+
+    /**
+     * Sets the first backoff of a failed row, doubled on each further attempt up to
+     * retrySleepSeconds. A row that has failed retryCount times goes on being retried,
+     * but store() and delete() wait until it is written, so the stream stops rather than
+     * moving past rows that were never stored. Only close() gives up on rows.
+     */
+    public void setRetryBackoff(long baseMillis) {
+        this.retryBaseMillis = Math.max(1, baseMillis);
+    }
+
+    /**
+     * Stops writing to the table for openMillis after the given number of batches in a
+     * row fail outright, then lets a single batch through to test it. Rows keep
+     * queueing meanwhile, held back by the buffer limit.
+     */
+    public void setCircuitBreaker(int failures, long openMillis) {
+        this.breaker = new CircuitBreaker(failures, openMillis);
+    }
+
+    /**
+     * Finds the region server hosting a row.
+     */
+    interface ServerLocator {
+        String getServer(byte[] row) throws IOException;
+    }
+
+    /**
+     * Splits each batch by the region server hosting its rows and writes the parts on
+     * the given number of threads, so a slow server holds up only its own rows. At most
+     * maxInFlight parts go to one server at a time, and each server has a breaker of its
+     * own; rows for a server that is busy or failing are put back for a later batch,
+     * using up an attempt only once they have been put back MAX_DEFERRALS times. Region
+     * locations come from the client's cache, and servers that go unused for
+     * SERVER_IDLE_MILLIS are forgotten.
+     */
+    public void setRegionDispatch(int threads, int maxInFlight) {
+        if (threads <= 0 || dispatcher != null) {
+            return;
+        }
+        this.serverInFlight = Math.max(1, maxInFlight);
+        if (serverLocator == null) {
+            serverLocator = new ServerLocator() {
+                @Override
+                public String getServer(byte[] row) throws IOException {
+                    return getConnection().locateRegion(tableName, row).getHostnamePort();
+                }
+            };
+        }
+        final String name = "hbase-dispatch-" + Bytes.toString(tableName);
+        dispatcher = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private synchronized HConnection getConnection() throws IOException {
+        if (hbaseConnection == null) {
+            hbaseConnection = HConnectionManager.getConnection(hbaseConf);
+        }
+        return hbaseConnection;
+    }
+
+    /**
+     * @return true if the queued rows make a full batch, have waited long enough or
+     *         are holding back a store(), or a failed row is due to be retried
+     */
+    private boolean isBatchReady(long now) {
+        int rows = rowQueueSize.get();
+        return rows >= batchSize || rowQueueBytes.get() >= batchBytes ||
+               (rows > 0 && batchLingerMillis > 0 && now - batchStartTime >= batchLingerMillis) ||
+               (rows > 0 && bufferWaiters.get() > 0) || isRetryDue();
+    }
+
+    private boolean isBufferFull(long size) {
+        return bufferedRows.get() > 0 && bufferedBytes.get() + size > maxBufferBytes;
+    }
+
+    /**
+     * @return true if a row of this size has to wait for the buffer to drain
+     */
+    private boolean mustWait(long size) {
+        return exhaustedRows.get() > 0 || isBufferFull(size);
+    }
+
+    private void awaitBufferSpace(long size) throws IOException {
+        long start = System.currentTimeMillis();
+        TimerContext backpressureTimerContext = backpressureTimer.time();
+        try {
+            if (flushers == null) {
+                try {
+                    while (mustWait(size)) {
+                        if (flushBatch() == 0) {
+                            // the breaker is open or the buffered rows are waiting out their backoff
+                            Thread.sleep(Math.min(100, remainingWait(start)));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for buffer space", e);
+                }
+                return;
+            }
+
+            bufferWaiters.incrementAndGet();
+            batchLock.lock();
+            try {
+                batchReady.signal();
+                while (mustWait(size)) {
+                    bufferSpace.await(remainingWait(start), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for buffer space", e);
+            } finally {
+                batchLock.unlock();
+                bufferWaiters.decrementAndGet();
+            }
+        } finally {
+            backpressureTimerContext.stop();
+            blockedMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return how long a store() that started waiting at start may wait on, at most a second
+     */
+    private long remainingWait(long start) throws IOException {
+        if (bufferWaitMillis <= 0) {
+            return 1000;
+        }
+        long wait = start + bufferWaitMillis - System.currentTimeMillis();
+        if (wait <= 0) {
+            throw new IOException(String.format("Timed out waiting for buffer space (%d bytes buffered, %d rows out of attempts)",
+                                                bufferedBytes.get(), exhaustedRows.get()));
+        }
+        return Math.min(1000, wait);
+    }
+
+    private void releaseBuffer(int rows, long bytes) {
+        bufferedRows.addAndGet(-rows);
+        bufferedBytes.addAndGet(-bytes);
+        if (bufferWaiters.get() > 0) {
+            batchLock.lock();
+            try {
+                bufferSpace.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the approximate size of a row's data in bytes
+     */
+    static long rowSize(Row row) {
+        if (row instanceof Put) {
+            return ((Put)row).heapSize();
+        }
+        long size = row.getRow().length;
+        if (row instanceof Mutation) {
+            for (List<KeyValue> kvs : ((Mutation)row).getFamilyMap().values()) {
+                for (KeyValue kv : kvs) {
+                    size += kv.getLength();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Hands full batches to the given number of background threads, so that store() and
+     * delete() return as soon as the row is queued. Each flusher takes a whole batch off
+     * the queue and writes it while producers go on filling the next one.
+     *
+     * As with several producers flushing their own batches, a store and a delete of the
+     * same row that end up in batches written at the same time may land in either order.
+     */
+    public void startFlushers(int threads) {
+        final String name = "hbase-flusher-" + Bytes.toString(tableName);
+        flushers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flushersRunning = true;
+        if (lingerFlusher != null) {
+            // the flushers watch the linger time themselves
+            lingerFlusher.shutdownNow();
+            lingerFlusher = null;
+        }
+        for (int i = 0; i < threads; i++) {
+            flushers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runFlusher();
+                }
+            });
+        }
+    }
+
+    private void runFlusher() {
+        while (flushersRunning) {
+            batchLock.lock();
+            try {
+                long wait = batchLingerMillis > 0 ? Math.min(1000, Math.max(10, batchLingerMillis / 4)) : 1000;
+                while (flushersRunning && !isBatchReady(System.currentTimeMillis())) {
+                    RetryRow retry = retryQueue.peek();
+                    long retryWait = retry == null ? wait : retry.getDelay(TimeUnit.MILLISECONDS);
+                    batchReady.await(Math.max(1, Math.min(wait, retryWait)), TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batchLock.unlock();
+            }
+            if (!flushersRunning) {
+                // close() writes whatever is left
+                break;
+            }
+            long pause = breaker.getOpenRemainingMillis();
+            if (pause > 0 || flushBatch() == 0) {
+                // the breaker is open, or another flusher took the batch
+                try {
+                    Thread.sleep(Math.max(10, Math.min(1000, pause)));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
     }
 
     @Override
     public void close() {
+        closing = true;
+        if (lingerFlusher != null) {
+            lingerFlusher.shutdownNow();
+        }
+        if (flushers != null) {
+            flushersRunning = false;
+            batchLock.lock();
+            try {
+                batchReady.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+            flushers.shutdown();
+            try {
+                if (!flushers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOG.warn("Timed out waiting for flushers to finish their batches");
+                    flushers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                flushers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
         if (hbasePool != null) {
             if (!Thread.currentThread().isInterrupted()) {
                 try {
-                    flush();
+                    // background flushers may have left more than one batch, and failed
+                    // rows are tried until they run out of attempts
+                    do {
+                        flush();
+                    } while (rowQueueSize.get() > 0 || !retryQueue.isEmpty());
                 } catch (IOException e) {
                     LOG.error("Error flushing batch in close", e);
                 }
@@ -134,135 +655,626 @@ public class HBaseSink implements KeyValueSink {
                 LOG.error("Closing hbasePool error", e);
             }
         }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        synchronized (this) {
+            if (hbaseConnection != null) {
+                try {
+                    hbaseConnection.close();
+                } catch (IOException e) {
+                    LOG.error("Error closing HBase connection", e);
+                }
+                hbaseConnection = null;
+            }
+        }
     }
 
 
+    /**
+     * Writes one batch: rows whose retry is due first, then queued rows. Rows that fail
+     * are put back with a backoff rather than retried on the spot, and nothing is
+     * written while the circuit breaker is open.
+     */
     public void flush() throws IOException {
-        IOException lastException = null;
-        int i;
-        for (i = 0; i < getRetryCount(); i++) {
-            HTableInterface table = hbasePool.getTable(tableName);
-            try {
-                table.setAutoFlush(false);
-                final TimerContext flushTimerContext = flushTimer.time();
-                try {
-                    List<Row> rows = new ArrayList<Row>(batchSize);
-                    while (!rowQueue.isEmpty() && rows.size() < batchSize) {
-                        Row row = rowQueue.poll();
-                        if (row != null) {
-                            rows.add(row);
-                            rowQueueSize.decrementAndGet();
-                        }
-                    }
-                    try {
-                        FlushResult result = flushTable(table, rows);
-                        stored.mark(result.successfulPutCount);
-                        storeFailed.mark(result.failedPutCount);
-                        deleted.mark(result.successfulDeleteCount);
-                        deleteFailed.mark(result.failedDeleteCount);
-                    } catch (InterruptedException e) {
-                        LOG.error("Error flushing batch of " + batchSize + " messages", e);
-                    }
-                } finally {
-                    flushTimerContext.stop();
-                    if ( table != null) {
-                        table.close();
-                    }
-                }
-                break;
-            } catch (IOException e) {
-                LOG.warn(String.format("Error in flush attempt %d of %d, clearing Region cache", (i+1), getRetryCount()), e);
-                lastException = e;
-                // TODO: Clear the region cache.  Is this the correct way?
-//                HConnection connection = HConnectionManager.getConnection(table.getConfiguration());
-//                connection.clearRegionCache();
-                try {
-                    Thread.sleep(getRetrySleepSeconds() * 1000);
-                } catch (InterruptedException e1) {
-                    // wake up
-                    LOG.info("woke up by interruption", e1);
-                }
+        flushBatch();
+    }
+
+    /**
+     * @return the number of rows written or put back, 0 if there was nothing to do or the breaker is open
+     */
+    private int flushBatch() {
+        if (rowQueue.isEmpty() && !isRetryDue()) {
+            return 0;
+        }
+        if (!closing && !breaker.allowRequest()) {
+            return 0;
+        }
+
+        List<Row> rows = new ArrayList<Row>(batchSize);
+        List<Integer> attempts = new ArrayList<Integer>(batchSize);
+        List<Integer> deferrals = new ArrayList<Integer>(batchSize);
+        long bytes = 0;
+        RetryRow retry;
+        while (rows.size() < batchSize && bytes < batchBytes && (retry = pollRetry()) != null) {
+            rows.add(retry.row);
+            attempts.add(retry.attempt);
+            deferrals.add(retry.deferrals);
+            bytes += rowSize(retry.row);
+        }
+        int retried = rows.size();
+        while (!rowQueue.isEmpty() && rows.size() < batchSize && bytes < batchBytes) {
+            Row row = rowQueue.poll();
+            if (row != null) {
+                long size = rowSize(row);
+                rows.add(row);
+                attempts.add(0);
+                deferrals.add(0);
+                bytes += size;
+                rowQueueSize.decrementAndGet();
+                rowQueueBytes.addAndGet(-size);
             }
         }
-        if (i >= getRetryCount() && lastException != null) {
-            LOG.error("Error in final flush attempt, giving up.");
-            throw lastException;
+        if (rows.isEmpty()) {
+            breaker.release();
+            return 0;
+        }
+        if (rows.size() > retried) {
+            long now = System.currentTimeMillis();
+            batchBytesHistogram.update(bytes);
+            batchAgeHistogram.update(now - batchStartTime);
+            batchStartTime = now;
         }
-        LOG.debug("Flush finished");
-    }
 
-    private FlushResult flushTable(HTableInterface table, List<Row> puts) throws IOException, InterruptedException {
-        List<Row> currentAttempt = puts;
-        Object[] batch = null;
-        FlushResult result = null;
+        Object[] results = dispatcher == null ? writeBatch(rows) : dispatchBatch(rows);
 
         int successfulPuts = 0;
         int successfulDeletes = 0;
+        int failedPuts = 0;
+        int failedDeletes = 0;
+        int rescheduled = 0;
+        int exhausted = 0;
+        int deferred = 0;
+        int untried = 0;
+        int releasedRows = 0;
+        long releasedBytes = 0;
+        int maxAttempts = Math.max(1, retryCount);
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            int attempt = attempts.get(i) + 1;
+            boolean wasExhausted = attempts.get(i) >= maxAttempts;
+            boolean wasDeferred = results != null && results[i] instanceof Deferred;
+            if (wasDeferred) {
+                untried++;
+                if (deferrals.get(i) + 1 < MAX_DEFERRALS) {
+                    // its server was busy or failing, which doesn't count against the row at first
+                    retryQueue.add(new RetryRow(row, attempts.get(i), deferrals.get(i) + 1, ((Deferred)results[i]).delayMillis));
+                    deferred++;
+                    continue;
+                }
+                // a server that stays unavailable uses up the row's attempts like any failure
+            }
+            if (!wasDeferred && results != null && results[i] != null && !(results[i] instanceof Throwable)) {
+                if (row instanceof Delete) {
+                    successfulDeletes++;
+                } else {
+                    successfulPuts++;
+                }
+                recordWrite(row);
+            } else if (attempt < maxAttempts || !closing) {
+                // the row stays in the buffer until it is written or given up on
+                retryQueue.add(new RetryRow(row, attempt, backoffMillis(attempt)));
+                rescheduled++;
+                if (attempt >= maxAttempts && !wasExhausted) {
+                    exhaustedRows.incrementAndGet();
+                    exhausted++;
+                }
+                continue;
+            } else {
+                recordFailure(row);
+                if (row instanceof Delete) {
+                    failedDeletes++;
+                } else {
+                    failedPuts++;
+                }
+            }
+            if (wasExhausted) {
+                exhaustedRows.decrementAndGet();
+            }
+            releasedRows++;
+            releasedBytes += rowSize(row);
+        }
 
-        TimerContext htableTimerContext = htableTimer.time();
+        stored.mark(successfulPuts);
+        storeFailed.mark(failedPuts);
+        deleted.mark(successfulDeletes);
+        deleteFailed.mark(failedDeletes);
+        flushRetries.mark(rescheduled);
+        if (successfulPuts + successfulDeletes > 0) {
+            breaker.recordSuccess();
+        } else if (untried == rows.size()) {
+            // nothing was tried
+            breaker.release();
+        } else if (breaker.recordFailure()) {
+            breakerOpened.mark();
+            LOG.warn(String.format("Stopped writing to %s after %d failed batches", Bytes.toString(tableName), breaker.getConsecutiveFailures()));
+        }
+        if (exhausted > 0) {
+            LOG.error(String.format("%d rows of %s failed %d attempts, holding back stores until they are written",
+                                    exhausted, Bytes.toString(tableName), maxAttempts));
+        }
+        if (failedPuts + failedDeletes > 0) {
+            LOG.error(String.format("Gave up on %d rows after %d attempts", failedPuts + failedDeletes, maxAttempts));
+        }
+        releaseBuffer(releasedRows, releasedBytes);
+        return rows.size();
+    }
+
+    /**
+     * @return the result of each row, or null if the whole batch failed
+     */
+    private Object[] writeBatch(List<Row> rows) {
+        HTableInterface table = hbasePool.getTable(tableName);
+        TimerContext flushTimerContext = flushTimer.time();
         try {
-            for (int attempt = 0; attempt < retryCount; attempt++) {
-                // TODO: wrap each attempt in a try/catch?
-                batch = table.batch(currentAttempt);
+            table.setAutoFlush(false);
+            TimerContext htableTimerContext = htableTimer.time();
+            try {
+                Object[] results = table.batch(rows);
                 table.flushCommits();
-                List<Row> fails = new ArrayList<Row>(currentAttempt.size());
-                if (batch != null) {
-                    for (int i = 0; i < batch.length; i++) {
-                        if (batch[i] == null) {
-                            fails.add(currentAttempt.get(i));
-                        } else {
-                            // figure out what type it was
-                            Row row = currentAttempt.get(i);
-                            if (row instanceof Delete) {
-                                successfulDeletes++;
-                            } else if (row instanceof Put) {
-                                successfulPuts++;
-                            } else {
-                                LOG.warn("We succeeded in flushing something that's neither a Delete nor a Put");
-                            }
-                        }
-                    }
-
-                    currentAttempt = fails;
-                    if (currentAttempt.isEmpty()) {
-                        break;
-                    }
-                } else {
-                    // something badly broke, retry the whole list.
+                if (results == null) {
                     LOG.error("Result of table.batch() was null");
                 }
+                return results;
+            } finally {
+                htableTimerContext.stop();
+            }
+        } catch (IOException e) {
+            LOG.warn(String.format("Error writing batch of %d rows, retrying them later", rows.size()), e);
+            if (writeCache != null) {
+                // we can't tell which of the batch made it
+                writeCache.clear();
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            flushTimerContext.stop();
+            try {
+                table.close();
+            } catch (IOException e) {
+                LOG.warn("Error returning table to the pool", e);
             }
+        }
+    }
 
-            int failedPuts = 0;
-            int failedDeletes = 0;
-            if (!currentAttempt.isEmpty()) {
-                for (Row row : currentAttempt) {
-                    if (row instanceof Delete) {
-                        failedDeletes++;
-                    } else if (row instanceof Put) {
-                        failedPuts++;
-                    } else {
-                        LOG.error("We failed to flush something that's neither a Delete nor a Put");
+    /**
+     * Writes each server's rows of the batch as a separate part on the dispatch threads.
+     *
+     * @return the result of each row, a Deferred for rows whose server wasn't tried
+     */
+    private Object[] dispatchBatch(final List<Row> rows) {
+        final Object[] results = new Object[rows.size()];
+        Map<String, List<Integer>> byServer = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < rows.size(); i++) {
+            String server;
+            try {
+                server = serverLocator.getServer(rows.get(i).getRow());
+            } catch (IOException e) {
+                LOG.warn("Error locating region server, leaving the row to the client", e);
+                server = UNKNOWN_SERVER;
+            }
+            List<Integer> indexes = byServer.get(server);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byServer.put(server, indexes);
+            }
+            indexes.add(i);
+        }
+
+        expireServers(System.currentTimeMillis());
+        List<Future<?>> parts = new ArrayList<Future<?>>(byServer.size());
+        for (Map.Entry<String, List<Integer>> entry : byServer.entrySet()) {
+            final ServerStats stats = serverStats(entry.getKey());
+            final List<Integer> indexes = entry.getValue();
+            if (!closing) {
+                if (!stats.breaker.allowRequest()) {
+                    defer(results, indexes, stats, stats.breaker.getOpenRemainingMillis());
+                    continue;
+                }
+                if (!stats.inFlight.tryAcquire()) {
+                    stats.breaker.release();
+                    // come back in about the time a part to this server takes
+                    defer(results, indexes, stats, (long)stats.timer.mean());
+                    continue;
+                }
+            } else {
+                stats.inFlight.acquireUninterruptibly();
+            }
+            parts.add(dispatcher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeServerBatch(rows, indexes, results, stats);
+                    } finally {
+                        stats.inFlight.release();
                     }
                 }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (Future<?> part : parts) {
+            while (true) {
+                try {
+                    part.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the parts are writing into results, so they have to finish first
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    LOG.error("Error writing batch part", e.getCause());
+                    break;
+                }
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
 
-            result = new FlushResult(failedPuts, failedDeletes, successfulPuts, successfulDeletes);
+    private void writeServerBatch(List<Row> rows, List<Integer> indexes, Object[] results, ServerStats stats) {
+        List<Row> part = new ArrayList<Row>(indexes.size());
+        for (int i : indexes) {
+            part.add(rows.get(i));
+        }
+        Object[] partResults;
+        TimerContext timerContext = stats.timer.time();
+        try {
+            partResults = writeBatch(part);
         } finally {
-            htableTimerContext.stop();
+            timerContext.stop();
+        }
+
+        int successful = 0;
+        for (int j = 0; j < indexes.size(); j++) {
+            Object result = partResults == null ? null : partResults[j];
+            results[indexes.get(j)] = result;
+            if (result != null && !(result instanceof Throwable)) {
+                successful++;
+            }
+        }
+        stats.failed.mark(part.size() - successful);
+        if (successful > 0) {
+            stats.breaker.recordSuccess();
+        } else if (stats.breaker.recordFailure()) {
+            LOG.warn(String.format("Stopped writing to %s on %s after %d failed batches",
+                                   Bytes.toString(tableName), stats.server, stats.breaker.getConsecutiveFailures()));
+        }
+    }
+
+    private void defer(Object[] results, List<Integer> indexes, ServerStats stats, long delayMillis) {
+        Deferred deferred = new Deferred(Math.max(10, Math.min(1000, delayMillis)));
+        for (int i : indexes) {
+            results[i] = deferred;
+        }
+        stats.deferred.mark(indexes.size());
+    }
+
+    ServerStats serverStats(String server) {
+        ServerStats stats = servers.get(server);
+        if (stats == null) {
+            stats = new ServerStats(server);
+            ServerStats existing = servers.putIfAbsent(server, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.lastUsed = System.currentTimeMillis();
+        return stats;
+    }
+
+    /**
+     * Drops the stats and metrics of servers no batch has gone to for SERVER_IDLE_MILLIS,
+     * such as ones whose regions have moved away, checking about once a minute.
+     */
+    void expireServers(long now) {
+        if (now - lastServerSweep < SERVER_IDLE_MILLIS / 10) {
+            return;
+        }
+        lastServerSweep = now;
+        for (ServerStats stats : servers.values()) {
+            if (now - stats.lastUsed >= SERVER_IDLE_MILLIS && stats.inFlight.availablePermits() >= serverInFlight &&
+                servers.remove(stats.server, stats)) {
+                stats.removeMetrics();
+            }
+        }
+    }
+
+    /**
+     * The in-flight limit, breaker and metrics of one region server.
+     */
+    class ServerStats {
+
+        final String server;
+        final Semaphore inFlight;
+        final CircuitBreaker breaker;
+        final Timer timer;
+        final Meter failed;
+        final Meter deferred;
+        volatile long lastUsed = System.currentTimeMillis();
+        private final MetricName[] metricNames;
+
+        ServerStats(String server) {
+            this.server = server;
+            this.inFlight = new Semaphore(serverInFlight);
+            this.breaker = new CircuitBreaker(HBaseSink.this.breaker.getFailureThreshold(), HBaseSink.this.breaker.getOpenMillis());
+            String prefix = Bytes.toString(tableName) + ".server." + server;
+            metricNames = new MetricName[] {
+                new MetricName("bagheera", "sink.hbase", prefix + ".time"),
+                new MetricName("bagheera", "sink.hbase", prefix + ".failed"),
+                new MetricName("bagheera", "sink.hbase", prefix + ".deferred")
+            };
+            timer = Metrics.newTimer(metricNames[0], TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+            failed = Metrics.newMeter(metricNames[1], "messages", TimeUnit.SECONDS);
+            deferred = Metrics.newMeter(metricNames[2], "messages", TimeUnit.SECONDS);
+        }
+
+        void removeMetrics() {
+            for (MetricName name : metricNames) {
+                Metrics.defaultRegistry().removeMetric(name);
+            }
+        }
+    }
+
+    /**
+     * The result of a row that was put back without being tried.
+     */
+    static class Deferred {
+
+        final long delayMillis;
+
+        Deferred(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * @return the base backoff doubled for each attempt and capped at retrySleepSeconds,
+     *         less a random part of up to half so failed rows don't all come back at once
+     */
+    long backoffMillis(int attempt) {
+        long max = Math.min(TimeUnit.SECONDS.toMillis(retrySleepSeconds), retryBaseMillis << Math.min(attempt - 1, 20));
+        return max - (long)(random.nextDouble() * (max / 2));
+    }
+
+    private boolean isRetryDue() {
+        RetryRow head = retryQueue.peek();
+        return head != null && (closing || head.getDelay(TimeUnit.NANOSECONDS) <= 0);
+    }
+
+    private RetryRow pollRetry() {
+        if (!closing) {
+            return retryQueue.poll();
+        }
+        // on close there's no waiting out the backoff
+        Iterator<RetryRow> it = retryQueue.iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        RetryRow retry = it.next();
+        it.remove();
+        return retry;
+    }
+
+    /**
+     * @return the clock retry backoffs are measured on, in nanoseconds
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * A row waiting out its backoff after a failed write.
+     */
+    class RetryRow implements Delayed {
+
+        final Row row;
+        final int attempt;
+        // times in a row it was put back without being tried
+        final int deferrals;
+        final long dueNanos;
+
+        RetryRow(Row row, int attempt, long delayMillis) {
+            this(row, attempt, 0, delayMillis);
+        }
+
+        RetryRow(Row row, int attempt, int deferrals, long delayMillis) {
+            this.row = row;
+            this.attempt = attempt;
+            this.deferrals = deferrals;
+            this.dueNanos = nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
         }
 
-        return result;
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
     }
 
     @Override
     public void store(String key, byte[] data) throws IOException {
-        if (!isOversized(key, data)) {
-            Put p = new Put(Bytes.toBytes(key));
-            p.add(family, qualifier, data);
-            rowQueue.add(p);
-            if (rowQueueSize.incrementAndGet() >= batchSize) {
+        store(key, data, null);
+    }
+
+    /**
+     * Stores the payload along with summary columns, which are written to the summary
+     * family when one is configured and dropped otherwise.
+     */
+    public void store(String key, byte[] data, Map<String, String> summary) throws IOException {
+        byte[] value = encodeValue(data);
+        if (!isOversized(key, value)) {
+            addPut(Bytes.toBytes(key), data, value, System.currentTimeMillis(), summary);
+        }
+    }
+
+    /**
+     * @return data as it will be written to the payload column
+     */
+    private byte[] encodeValue(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        byte[] value = valueCompression == null ? data : valueCompression.encode(data);
+        rawBytes.mark(data.length);
+        storedBytes.mark(value.length);
+        return value;
+    }
+
+    /**
+     * @param data the document, which delta mode works from
+     * @param value the document as written to the payload column
+     */
+    private void addPut(byte[] rowKey, byte[] data, byte[] value, long timestamp, Map<String, String> summary) throws IOException {
+        if (writeCache == null) {
+            addPutRows(rowKey, data, value, timestamp, summary, null);
+            return;
+        }
+
+        long contentHash = WriteSuppressionCache.contentHash(value);
+        if (writeCache.isWritten(rowKey, contentHash, System.currentTimeMillis())) {
+            suppressed.mark();
+            return;
+        }
+        // remembered by flushBatch once the Put is actually stored
+        addPutRows(rowKey, data, value, timestamp, summary, Bytes.toBytes(contentHash));
+    }
+
+    private void addPutRows(byte[] rowKey, byte[] data, byte[] value, long timestamp, Map<String, String> summary,
+                            byte[] contentHash) throws IOException {
+        if (deltaDocuments == null) {
+            Put p = newPut(rowKey, value, System.currentTimeMillis(), summary);
+            p.setAttribute(CONTENT_HASH_ATTRIBUTE, contentHash);
+            addRow(p);
+            return;
+        }
+
+        DeltaDocuments.Split split;
+        try {
+            split = deltaDocuments.toDelta(rowKey, data, timestamp);
+        } catch (IOException e) {
+            LOG.warn("Could not split document into a delta, storing it in full", e);
+            split = null;
+        }
+        byte[] delta = split == null ? null : split.getDelta();
+        // remembered by flushBatch once the Put is actually stored
+        byte[] pingDay = split == null || split.getPingDay() < 0 ? null : Bytes.toBytes(split.getPingDay());
+        long now = System.currentTimeMillis();
+        if (delta == null) {
+            // the new base replaces every delta written before it
+            Put p = newPut(rowKey, value, now, summary);
+            p.setAttribute(CONTENT_HASH_ATTRIBUTE, contentHash);
+            p.setAttribute(PING_DAY_ATTRIBUTE, pingDay);
+            Delete d = new Delete(rowKey);
+            d.deleteFamily(deltaFamily, now - 1);
+            addRow(d);
+            addRow(p);
+            rebased.mark();
+        } else {
+            Put p = newPut(rowKey, null, now, summary);
+            // qualifiers sort in submission order
+            p.add(deltaFamily, Bytes.toBytes(String.format("%013d", timestamp)), now, delta);
+            p.setAttribute(CONTENT_HASH_ATTRIBUTE, contentHash);
+            p.setAttribute(PING_DAY_ATTRIBUTE, pingDay);
+            addRow(p);
+            deltaStored.mark();
+        }
+    }
+
+    /**
+     * Updates the write suppression cache and the days known to be stored for a row
+     * that was written, in batch order so that a later Delete of the same key wins over
+     * an earlier Put.
+     */
+    private void recordWrite(Row row) {
+        if (row instanceof Delete) {
+            if (writeCache != null) {
+                writeCache.invalidate(row.getRow());
+            }
+            if (deltaDocuments != null && !((Delete)row).getFamilyMap().containsKey(deltaFamily)) {
+                deltaDocuments.forget(row.getRow());
+            }
+            return;
+        }
+        Put p = (Put)row;
+        byte[] contentHash = p.getAttribute(CONTENT_HASH_ATTRIBUTE);
+        if (writeCache != null && contentHash != null) {
+            writeCache.put(row.getRow(), Bytes.toLong(contentHash), System.currentTimeMillis());
+        }
+        byte[] pingDay = p.getAttribute(PING_DAY_ATTRIBUTE);
+        if (deltaDocuments != null && pingDay != null) {
+            deltaDocuments.stored(row.getRow(), Bytes.toLong(pingDay));
+        }
+    }
+
+    /**
+     * Forgets what is known to be stored for a row that was given up on, so the next
+     * document for it is written in full.
+     */
+    private void recordFailure(Row row) {
+        if (deltaDocuments != null && row instanceof Put) {
+            deltaDocuments.forget(row.getRow());
+        }
+    }
+
+    /**
+     * Rows are timestamped when they're created rather than by the region server, so a
+     * row retried after a later write of the same key doesn't shadow it.
+     */
+    private Put newPut(byte[] rowKey, byte[] data, long ts, Map<String, String> summary) {
+        Put p = new Put(rowKey, ts);
+        if (data != null) {
+            p.add(family, qualifier, ts, data);
+        }
+        if (summaryFamily != null && summary != null) {
+            for (Map.Entry<String, String> column : summary.entrySet()) {
+                p.add(summaryFamily, Bytes.toBytes(column.getKey()), ts, Bytes.toBytes(column.getValue()));
+            }
+        }
+        return p;
+    }
+
+    private void addRow(Row row) throws IOException {
+        long size = rowSize(row);
+        if (mustWait(size)) {
+            awaitBufferSpace(size);
+        }
+        long now = System.currentTimeMillis();
+        bufferedRows.incrementAndGet();
+        bufferedBytes.addAndGet(size);
+        rowQueue.add(row);
+        rowQueueBytes.addAndGet(size);
+        if (rowQueueSize.incrementAndGet() == 1) {
+            batchStartTime = now;
+        }
+        if (isBatchReady(now)) {
+            if (flushers == null) {
                 flush();
+            } else {
+                batchLock.lock();
+                try {
+                    batchReady.signal();
+                } finally {
+                    batchLock.unlock();
+                }
             }
         }
     }
@@ -271,11 +1283,28 @@ public class HBaseSink implements KeyValueSink {
     // There is a max size for 'data', exceeding it causes
     //   java.lang.IllegalArgumentException: KeyValue size too large
     // Detect, log, and reject it.
-    private boolean isOversized(String key, byte[] data) {
+    private boolean isOversized(String key, byte[] value) {
+        return value != null && isOversized(key, value.length, maxKeyValueSize);
+    }
+
+    /**
+     * Checks a document length against hbase.client.keyvalue.maxsize so callers can reject
+     * oversized documents before doing any work on them. With compression on, only
+     * documents too large to plausibly compress below the limit are rejected here.
+     *
+     * @return true (and marks the oversized meter) if a document of this length can't be stored
+     */
+    public boolean isOversized(String key, int length) {
+        return isOversized(key, length, valueCompression == null ? maxKeyValueSize : maxKeyValueSize * MAX_EXPECTED_COMPRESSION);
+    }
+
+    private boolean isOversized(String key, int length, long maxLength) {
         boolean tooBig = false;
-        if (data != null && data.length > maxKeyValueSize) {
-            LOG.warn(String.format("Storing key '%s': Data exceeds max length (%d > %d)",
-                    key, data.length, maxKeyValueSize));
+        if (length > maxLength) {
+            OVERSIZED_LOG.warn(String.format("Rejected documents exceeding max length %d", maxLength));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Storing key '%s': Data exceeds max length (%d > %d)", key, length, maxLength));
+            }
             oversized.mark();
             tooBig = true;
         }
@@ -284,24 +1313,101 @@ public class HBaseSink implements KeyValueSink {
 
     @Override
     public void store(String key, byte[] data, long timestamp) throws IOException {
-        if (!isOversized(key, data)) {
+        store(key, data, timestamp, null);
+    }
+
+    /**
+     * Stores the payload along with summary columns, which are written to the summary
+     * family when one is configured and dropped otherwise.
+     */
+    public void store(String key, byte[] data, long timestamp, Map<String, String> summary) throws IOException {
+        byte[] value = encodeValue(data);
+        if (!isOversized(key, value)) {
             byte[] k = prefixDate ? IdUtil.bucketizeId(key, timestamp) : Bytes.toBytes(key);
-            Put p = new Put(k);
-            p.add(family, qualifier, data);
-            rowQueue.add(p);
-            if (rowQueueSize.incrementAndGet() >= batchSize) {
-                flush();
-            }
+            addPut(k, data, value, timestamp, summary);
+        }
+    }
+
+    /**
+     * Stores each column as a qualifier of the column family, with the row key date
+     * prefixed from timestamp when prefixDate is set.
+     */
+    public void storeColumns(String key, long timestamp, Map<String, String> columns) throws IOException {
+        byte[] k = prefixDate ? IdUtil.bucketizeId(key, timestamp) : Bytes.toBytes(key);
+        long ts = System.currentTimeMillis();
+        Put p = new Put(k, ts);
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            p.add(family, Bytes.toBytes(column.getKey()), ts, Bytes.toBytes(column.getValue()));
         }
+        addRow(p);
     }
 
     @Override
     public void delete(String key) throws IOException {
-        Delete d = new Delete(Bytes.toBytes(key));
-        rowQueue.add(d);
-        if (rowQueueSize.incrementAndGet() >= batchSize) {
-            flush();
+        byte[] k = Bytes.toBytes(key);
+        if (writeCache != null) {
+            writeCache.invalidate(k);
+        }
+        if (deltaDocuments != null) {
+            deltaDocuments.forget(k);
         }
+        addRow(new Delete(k, System.currentTimeMillis(), null));
+    }
+
+    public boolean isSummaryEnabled() {
+        return summaryFamily != null;
+    }
+
+    public void setSummaryFamily(String summaryFamily) {
+        this.summaryFamily = summaryFamily == null ? null : Bytes.toBytes(summaryFamily);
+    }
+
+    public boolean isDeltaEnabled() {
+        return deltaFamily != null;
+    }
+
+    /**
+     * Stores resubmitted documents as deltas in deltaFamily, rewriting the full
+     * document as a new base about every rebaseDays, or whenever the row isn't among
+     * the last entries known to have been stored. See {@link DeltaDocuments}.
+     */
+    public void setDeltaStorage(String deltaFamily, int rebaseDays, int entries) {
+        this.deltaFamily = Bytes.toBytes(deltaFamily);
+        this.deltaDocuments = new DeltaDocuments(rebaseDays, entries);
+    }
+
+    public boolean isCompressionEnabled() {
+        return valueCompression != null;
+    }
+
+    /**
+     * Compresses payloads of at least minLength bytes at the given deflate level
+     * before they are written. See {@link CompressedValues}.
+     */
+    public void setValueCompression(int level, int minLength) {
+        this.valueCompression = new CompressedValues(level, minLength);
+    }
+
+    /**
+     * Skips Puts of content already written to the same row within maxAgeSeconds,
+     * remembering up to entries recent writes (24 bytes each).
+     */
+    public void setWriteSuppression(int entries, long maxAgeSeconds) {
+        final WriteSuppressionCache cache = new WriteSuppressionCache(entries, TimeUnit.SECONDS.toMillis(maxAgeSeconds));
+        MetricName hitRatioName = new MetricName("bagheera", "sink.hbase", Bytes.toString(tableName) + ".suppress.hitratio");
+        Metrics.defaultRegistry().removeMetric(hitRatioName);
+        Metrics.newGauge(hitRatioName, new RatioGauge() {
+            @Override
+            protected double getNumerator() {
+                return cache.getHits();
+            }
+
+            @Override
+            protected double getDenominator() {
+                return cache.getLookups();
+            }
+        });
+        writeCache = cache;
     }
 
     public int getRetryCount() {
@@ -320,17 +1426,3 @@ public class HBaseSink implements KeyValueSink {
         this.retrySleepSeconds = retrySleepSeconds;
     }
 }
-
-class FlushResult {
-    public final int failedPutCount;
-    public final int failedDeleteCount;
-    public final int successfulPutCount;
-    public final int successfulDeleteCount;
-
-    public FlushResult(int failedPuts, int failedDeletes, int successfulPuts, int successfulDeletes) {
-        this.failedPutCount = failedPuts;
-        this.failedDeleteCount = failedDeletes;
-        this.successfulPutCount = successfulPuts;
-        this.successfulDeleteCount = successfulDeletes;
-    }
-}
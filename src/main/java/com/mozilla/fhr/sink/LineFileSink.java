@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Appends each stored value to a local file as a line of key, tab, value. Meant for
+ * small outputs such as rollups where standing up an HBase table isn't worth it;
+ * values must be UTF-8 text without newlines, such as JSON.
+ *
+ * Lines can't be taken back, so deletes are ignored and only counted.
+ */
+public class LineFileSink implements KeyValueSink, Flushable {
+
+    private static final Logger LOG = Logger.getLogger(LineFileSink.class);
+
+    private final Writer writer;
+
+    protected final Meter deletesIgnored;
+
+    public LineFileSink(File file) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        deletesIgnored = Metrics.newMeter(new MetricName("bagheera", "sink.line", file.getName() + ".delete.ignored"), "messages", TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void store(String key, byte[] data) throws IOException {
+        writer.write(key);
+        writer.write('\t');
+        writer.write(new String(data, "UTF-8"));
+        writer.write('\n');
+    }
+
+    @Override
+    public void store(String key, byte[] data, long timestamp) throws IOException {
+        store(key, data);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        deletesIgnored.mark();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Error closing line file", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers a content hash and write time for recently stored row keys so that a
+ * redelivered or unchanged document can be recognized and its Put skipped. Callers
+ * should only put a key once its write has succeeded.
+ *
+ * The cache is a fixed-size direct-mapped table of three longs per entry (row key
+ * hash, content hash, write time), so its memory use is set up front and nothing is
+ * allocated per lookup. A row key whose slot is taken by another one simply evicts
+ * it, which only costs a redundant write. Keys and contents are compared by 64-bit
+ * hashes, so a changed document whose hashes both collide with the stored one would
+ * be skipped; that is very unlikely but not impossible, and the cache should stay
+ * disabled where no such risk is acceptable. Slots are guarded by a small set of
+ * striped locks.
+ */
+public class WriteSuppressionCache {
+
+    private static final int STRIPES = 64;
+
+    private final long[] entries;
+    private final int mask;
+    private final long maxAgeMillis;
+    private final Object[] locks = new Object[STRIPES];
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param capacity number of entries, rounded up to a power of two; each takes 24 bytes
+     * @param maxAgeMillis how long a write is remembered
+     */
+    public WriteSuppressionCache(int capacity, long maxAgeMillis) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        if (size <= 0) {
+            throw new IllegalArgumentException("Capacity too large: " + capacity);
+        }
+        this.entries = new long[size * 3];
+        this.mask = size - 1;
+        this.maxAgeMillis = maxAgeMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return a hash of the value to be written, with a CRC32 in the high bits and an
+     *         Adler32 in the low bits
+     */
+    public static long contentHash(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    static long keyHash(byte[] rowKey) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : rowKey) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        // 0 marks an empty slot
+        return h == 0 ? 1 : h;
+    }
+
+    private int slot(long keyHash) {
+        return (int)(keyHash & mask);
+    }
+
+    private Object lock(int slot) {
+        return locks[slot & (STRIPES - 1)];
+    }
+
+    /**
+     * @return true if the same content was written to this row key within the max age
+     */
+    public boolean isWritten(byte[] rowKey, long contentHash, long now) {
+        long keyHash = keyHash(rowKey);
+        int slot = slot(keyHash);
+        boolean hit;
+        synchronized (lock(slot)) {
+            int i = slot * 3;
+            hit = entries[i] == keyHash && entries[i + 1] == contentHash && now - entries[i + 2] < maxAgeMillis;
+        }
+        lookups.incrementAndGet();
+        if (hit) {
+            hits.incrementAndGet();
+        }
+        return hit;
+    }
+
+    public void put(byte[] rowKey, long contentHash, long now) {
+        long keyHash = keyHash(rowKey);
+        int slot = slot(keyHash);
+        synchronized (lock(slot)) {
+            int i = slot * 3;
+            entries[i] = keyHash;
+            entries[i + 1] = contentHash;
+            entries[i + 2] = now;
+        }
+    }
+
+    public void invalidate(byte[] rowKey) {
+        long keyHash = keyHash(rowKey);
+        int slot = slot(keyHash);
+        synchronized (lock(slot)) {
+            int i = slot * 3;
+            if (entries[i] == keyHash) {
+                entries[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets every write, for when it is no longer known which of them made it.
+     */
+    public void clear() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                for (int slot = stripe; slot <= mask; slot += STRIPES) {
+                    entries[slot * 3] = 0;
+                }
+            }
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+}
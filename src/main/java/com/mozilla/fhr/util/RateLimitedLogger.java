@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Logs at most one message per distinct message text and interval. Repeats within
+ * the interval are only counted, and the count is reported with the next message
+ * that gets through, so a flood of identical errors costs a map lookup and an
+ * atomic increment each instead of a stack trace on disk.
+ */
+public class RateLimitedLogger {
+
+    private final Logger log;
+    private final long intervalMillis;
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+    private static class Window {
+        final AtomicLong start = new AtomicLong(Long.MIN_VALUE);
+        final AtomicLong suppressed = new AtomicLong();
+        volatile Level level;
+    }
+
+    public RateLimitedLogger(Logger log, long interval, TimeUnit unit) {
+        this.log = log;
+        this.intervalMillis = unit.toMillis(interval);
+    }
+
+    public void error(String message, Throwable t) {
+        log(Level.ERROR, message, t);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    private void log(Level level, String message, Throwable t) {
+        if (!log.isEnabledFor(level)) {
+            return;
+        }
+        Window window = windows.get(message);
+        if (window == null) {
+            window = new Window();
+            Window existing = windows.putIfAbsent(message, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        window.level = level;
+
+        long now = System.currentTimeMillis();
+        long start = window.start.get();
+        if ((start == Long.MIN_VALUE || now - start >= intervalMillis) && window.start.compareAndSet(start, now)) {
+            long suppressed = window.suppressed.getAndSet(0);
+            if (suppressed > 0) {
+                log.log(level, String.format("%s (%d more suppressed in the last %ds)", message, suppressed,
+                                             TimeUnit.MILLISECONDS.toSeconds(now - start)), t);
+            } else {
+                log.log(level, message, t);
+            }
+        } else {
+            window.suppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reports any counts still waiting for their next message.
+     */
+    public void flush() {
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            long suppressed = entry.getValue().suppressed.getAndSet(0);
+            if (suppressed > 0) {
+                log.log(entry.getValue().level, String.format("%s (%d more suppressed)", entry.getKey(), suppressed));
+            }
+        }
+    }
+}
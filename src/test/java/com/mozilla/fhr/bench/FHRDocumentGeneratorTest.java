@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+public class FHRDocumentGeneratorTest {
+
+    private static final long PING_TIME = 1364774400000L; // 2013-04-01
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    @Test
+    public void testSeeded() throws IOException {
+        FHRDocumentGenerator a = new FHRDocumentGenerator(42, PING_TIME, 20);
+        FHRDocumentGenerator b = new FHRDocumentGenerator(42, PING_TIME, 20);
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(a.nextDocument(), b.nextDocument());
+        }
+    }
+
+    @Test
+    public void testVersions() throws IOException {
+        FHRDocumentGenerator generator = new FHRDocumentGenerator(1, PING_TIME, 20);
+        generator.setV1Rate(1.0);
+        JsonNode v1 = jsonMapper.readTree(generator.nextDocument());
+        assertEquals(1, v1.get("version").asInt());
+        assertEquals("2013-04-01", v1.get("thisPingTime").asText());
+        assertTrue(v1.get("dataPoints").has("2013-04-01"));
+
+        generator.setV1Rate(0.0);
+        JsonNode v2 = jsonMapper.readTree(generator.nextDocument());
+        assertEquals(2, v2.get("version").asInt());
+        assertEquals("Firefox", v2.path("data").path("last").path("org.mozilla.appInfo.appinfo").path("name").asText());
+        JsonNode today = v2.path("data").path("days").path("2013-04-01");
+        assertTrue(today.has("org.mozilla.appSessions.previous"));
+    }
+
+    @Test
+    public void testHeavyProfiles() throws IOException {
+        FHRDocumentGenerator generator = new FHRDocumentGenerator(7, PING_TIME, 20);
+        generator.setHeavyProfileRate(1.0);
+        int largest = 0;
+        for (int i = 0; i < 5; i++) {
+            largest = Math.max(largest, generator.nextDocument().length);
+        }
+        assertTrue("largest document was " + largest + " bytes", largest > 1024 * 1024);
+    }
+
+    @Test
+    public void testMessages() throws IOException {
+        BagheeraMessage bmsg = new FHRDocumentGenerator(3, PING_TIME, 20).nextMessage("metrics");
+        assertEquals("metrics", bmsg.getNamespace());
+        assertEquals(4, bmsg.getIpAddr().size());
+        assertTrue(bmsg.getTimestamp() >= PING_TIME);
+        assertTrue(jsonMapper.readTree(bmsg.getPayload().newInput()).has("version"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.fhr.consumer.FHRMessageProcessor;
+import com.mozilla.fhr.geoip.CountryRangeTable;
+
+public class ReplayHarnessTest {
+
+    private File file;
+    private FHRMessageProcessor processor;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("replay", ".bin");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < 3; i++) {
+                BagheeraMessage.newBuilder()
+                    .setNamespace("metrics")
+                    .setId("id-" + i)
+                    .setOperation(Operation.CREATE_UPDATE)
+                    .setTimestamp(System.currentTimeMillis())
+                    .setIpAddr(ByteString.copyFrom(new byte[] { 10, 0, 0, (byte)i }))
+                    .setPayload(ByteString.copyFromUtf8("{\"version\":2,\"n\":" + i + "}"))
+                    .build().writeDelimitedTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        processor = new FHRMessageProcessor("replaytest",
+                                            new CountryRangeTable.Builder().add(0, null).add(0x0A000000L, "US").build(0));
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        List<byte[]> records = ReplayHarness.readRecords(Arrays.asList(file));
+        assertEquals(3, records.size());
+
+        MemorySink sink = new MemorySink();
+        ReplayHarness.Result result = new ReplayHarness(processor, sink, 2).run(records, 10);
+        assertEquals(10, result.messages);
+        assertEquals(0, result.failures);
+        assertEquals(10, result.latency.size());
+        assertTrue(result.bytes > 0);
+
+        assertEquals(3, sink.size());
+        assertEquals("{\"version\":2,\"n\":1,\"geoCountry\":\"US\"}", new String(sink.get("id-1"), "UTF-8"));
+    }
+
+    @Test
+    public void testLatencySink() throws Exception {
+        List<byte[]> records = ReplayHarness.readRecords(Arrays.asList(file));
+        LatencyHBaseSink sink = new LatencyHBaseSink("replaytest", 2, 1);
+        try {
+            ReplayHarness.Result result = new ReplayHarness(processor, sink, 1).run(records, 4);
+            assertEquals(4, result.messages);
+            assertEquals(0, result.failures);
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mozilla.fhr.bench.FHRDocumentGenerator;
+import com.mozilla.fhr.pig.eval.FileUtils;
+
+public class DayFactsTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final StreamingJsonEnricher enricher = new StreamingJsonEnricher(jsonMapper.getJsonFactory());
+
+    private SortedMap<String, Map<String, String>> streamingFacts(byte[] payload, int maxDays) throws IOException {
+        DayFacts facts = new DayFacts(maxDays);
+        enricher.enrich(new ByteArrayInputStream(payload), new ByteArrayOutputStream(), "geoCountry", "US",
+                        new DocumentExtracts(null, facts));
+        return facts.getDays();
+    }
+
+    private SortedMap<String, Map<String, String>> treeFacts(byte[] payload, int maxDays) throws IOException {
+        DayFacts facts = new DayFacts(maxDays);
+        new DocumentExtracts(null, facts).observe(jsonMapper.readTree(payload));
+        return facts.getDays();
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        byte[] payload = FileUtils.readResourceAsString(ClassLoader.getSystemResourceAsStream("sample.js")).getBytes("UTF-8");
+        SortedMap<String, Map<String, String>> days = streamingFacts(payload, 30);
+        Map<String, String> facts = days.get("2013-03-14");
+        assertEquals("5", facts.get(DayFacts.CRASHES_PENDING));
+        assertEquals("14", facts.get(DayFacts.SEARCH_PREFIX + "google.urlbar"));
+        assertEquals(treeFacts(payload, 30), days);
+    }
+
+    @Test
+    public void testGeneratedDocuments() throws IOException {
+        FHRDocumentGenerator generator = new FHRDocumentGenerator(7, 1364774400000L, 20);
+        generator.setV1Rate(0.5);
+        for (int i = 0; i < 20; i++) {
+            byte[] payload = generator.nextDocument();
+            SortedMap<String, Map<String, String>> days = streamingFacts(payload, 30);
+            assertEquals(treeFacts(payload, 30), days);
+            assertTrue(days.size() <= 30);
+        }
+    }
+
+    @Test
+    public void testRecentDays() throws IOException {
+        String payload = "{\"version\":2,\"lastPingDate\":\"2013-03-10\",\"data\":{\"days\":{" +
+            "\"2013-03-09\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}," +
+            "\"2013-03-10\":{\"org.mozilla.crashes.crashes\":{\"pending\":2}}," +
+            "\"2013-03-11\":{\"org.mozilla.appSessions.previous\":{\"main\":[100,200],\"abortedTotalTime\":[5,6,7]}}," +
+            "\"2013-03-12\":{\"org.mozilla.addons.counts\":{\"_v\":1,\"extension\":3}}}}}";
+        SortedMap<String, Map<String, String>> days = streamingFacts(payload.getBytes("UTF-8"), 30);
+        assertEquals(3, days.size());
+        assertEquals("2013-03-10", days.firstKey());
+        assertEquals("2", days.get("2013-03-10").get(DayFacts.CRASHES_PENDING));
+        assertEquals("100,200", days.get("2013-03-11").get(DayFacts.STARTUP_MAIN));
+        assertEquals("3", days.get("2013-03-11").get(DayFacts.SESSIONS_ABORTED));
+        assertEquals("3", days.get("2013-03-12").get(DayFacts.ADDONS_PREFIX + "extension"));
+
+        // only the newest days are kept
+        days = streamingFacts(payload.getBytes("UTF-8"), 2);
+        assertEquals(2, days.size());
+        assertEquals("2013-03-11", days.firstKey());
+    }
+
+    @Test
+    public void testNewDays() throws IOException {
+        String payload = "{\"version\":2,\"lastPingDate\":\"2013-03-10\",\"data\":{\"days\":{" +
+            "\"2013-03-10\":{\"org.mozilla.crashes.crashes\":{\"pending\":2}}," +
+            "\"2013-03-11\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}," +
+            "\"2013-02-30\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}," +
+            "\"9999-99-99x\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}}}}";
+        DayFacts facts = new DayFacts(30);
+        new DocumentExtracts(null, facts).observe(jsonMapper.readTree(payload));
+        // the last ping's day was already reported, and bad days are dropped
+        assertEquals(1, facts.getNewDays().size());
+        assertEquals("2013-03-11", facts.getNewDays().firstKey());
+        assertEquals(2, facts.getDays().size());
+    }
+
+    @Test
+    public void testParseDay() throws Exception {
+        assertEquals(1363046400000L, DayFacts.parseDay("2013-03-12"));
+        assertTrue(DayFacts.isDay("2013-03-12"));
+        assertFalse(DayFacts.isDay("2013-3-12"));
+        assertFalse(DayFacts.isDay("2013-13-01"));
+    }
+}
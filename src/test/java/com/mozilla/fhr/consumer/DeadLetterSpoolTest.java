@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mozilla.fhr.consumer.DeadLetterSpool.Reason;
+import com.mozilla.fhr.consumer.DeadLetterSpool.Record;
+
+public class DeadLetterSpoolTest {
+
+    private File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("deadletter", "");
+        directory.delete();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private List<Record> readAll() throws IOException {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        List<Record> records = new ArrayList<Record>();
+        for (File file : files) {
+            assertTrue(file.getName(), file.getName().endsWith(DeadLetterSpool.FILE_SUFFIX));
+            records.addAll(DeadLetterSpool.read(file));
+        }
+        return records;
+    }
+
+    @Test
+    public void testSpool() throws IOException {
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test", 1024 * 1024, 60000, 1024 * 1024, 64 * 1024 * 1024);
+        assertTrue(spool.offer(Reason.INVALID_JSON, new byte[] { 1, 2, 3 }));
+        assertTrue(spool.offer(Reason.OVERSIZED, new byte[0]));
+        spool.close();
+        assertFalse(spool.offer(Reason.INVALID_PROTOBUF, new byte[] { 4 }));
+
+        List<Record> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals(Reason.INVALID_JSON, records.get(0).reason);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, records.get(0).data);
+        assertEquals(Reason.OVERSIZED, records.get(1).reason);
+        assertEquals(0, records.get(1).data.length);
+    }
+
+    @Test
+    public void testRolling() throws IOException {
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test", 100, 60000, 1024 * 1024, 64 * 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            spool.offer(Reason.INVALID_PROTOBUF, new byte[60]);
+        }
+        spool.close();
+
+        assertEquals(5, directory.listFiles().length);
+        assertEquals(10, readAll().size());
+    }
+
+    @Test
+    public void testOldestFilesExpire() throws IOException {
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test", 100, 60000, 1024 * 1024, 500);
+        long expired = spool.expired.count();
+        Random random = new Random(42);
+        for (int i = 0; i < 10; i++) {
+            // random bytes so the files don't compress away
+            byte[] data = new byte[60];
+            random.nextBytes(data);
+            data[0] = (byte)i;
+            spool.offer(Reason.INVALID_PROTOBUF, data);
+        }
+        spool.close();
+
+        File[] files = directory.listFiles();
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        assertTrue(totalBytes <= 500);
+        assertEquals(5 - files.length, spool.expired.count() - expired);
+        // the newest records are the ones kept
+        List<Record> records = readAll();
+        assertEquals(2 * files.length, records.size());
+        assertEquals(9, records.get(records.size() - 1).data[0]);
+    }
+
+    @Test
+    public void testQueueBoundedByBytes() throws IOException {
+        DeadLetterSpool spool = new DeadLetterSpool(directory, "test", 1024 * 1024, 60000, 100, 64 * 1024 * 1024);
+        // a payload bigger than the queue can hold is dropped however idle the writer is
+        assertFalse(spool.offer(Reason.OVERSIZED, new byte[200]));
+        assertTrue(spool.offer(Reason.OVERSIZED, new byte[50]));
+        spool.close();
+        assertEquals(0, spool.getQueuedBytes());
+        assertEquals(1, readAll().size());
+    }
+}
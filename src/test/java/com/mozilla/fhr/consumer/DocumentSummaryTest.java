@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mozilla.fhr.bench.FHRDocumentGenerator;
+import com.mozilla.fhr.pig.eval.FileUtils;
+
+public class DocumentSummaryTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final StreamingJsonEnricher enricher = new StreamingJsonEnricher(jsonMapper.getJsonFactory());
+
+    private Map<String, String> streamingSummary(byte[] payload) throws IOException {
+        DocumentSummary summary = new DocumentSummary();
+        enricher.enrich(new ByteArrayInputStream(payload), new ByteArrayOutputStream(), "geoCountry", "US", summary);
+        return summary.toColumns();
+    }
+
+    private Map<String, String> treeSummary(byte[] payload) throws IOException {
+        DocumentSummary summary = new DocumentSummary();
+        new DocumentExtracts(summary, null).observe(jsonMapper.readTree(payload));
+        return summary.toColumns();
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        byte[] payload = FileUtils.readResourceAsString(ClassLoader.getSystemResourceAsStream("sample.js")).getBytes("UTF-8");
+        Map<String, String> columns = streamingSummary(payload);
+        assertEquals("1", columns.get(DocumentSummary.SCHEMA_VERSION));
+        assertEquals("2013-03-04", columns.get(DocumentSummary.FIRST_PING));
+        assertEquals("2013-03-25", columns.get(DocumentSummary.LATEST_PING));
+        assertEquals("0", columns.get(DocumentSummary.ERRORS));
+        assertEquals(treeSummary(payload), columns);
+    }
+
+    @Test
+    public void testGeneratedDocuments() throws IOException {
+        FHRDocumentGenerator generator = new FHRDocumentGenerator(11, 1364774400000L, 20);
+        generator.setV1Rate(0.5);
+        for (int i = 0; i < 20; i++) {
+            byte[] payload = generator.nextDocument();
+            Map<String, String> columns = streamingSummary(payload);
+            assertEquals(treeSummary(payload), columns);
+            assertEquals("Firefox", columns.get(DocumentSummary.PRODUCT));
+            assertEquals("2013-04-01", columns.get(DocumentSummary.LATEST_PING));
+        }
+    }
+
+    @Test
+    public void testV2Dimensions() throws IOException {
+        String payload = "{\"version\":2,\"errors\":[\"oops\"],\"data\":{\"last\":{" +
+            "\"org.mozilla.appInfo.appinfo\":{\"name\":\"Firefox\",\"version\":\"21.0\",\"updateChannel\":\"beta\",\"os\":\"WINNT\"}," +
+            "\"org.mozilla.sysinfo.sysinfo\":{\"version\":\"6.1\"}," +
+            "\"org.mozilla.profile.age\":{\"profileCreation\":15000}}," +
+            "\"days\":{\"2013-03-01\":{\"org.mozilla.appInfo.appinfo\":{\"name\":\"Other\"}}}}}";
+        DocumentSummary summary = new DocumentSummary();
+        enricher.enrich(new ByteArrayInputStream(payload.getBytes("UTF-8")), new ByteArrayOutputStream(), "geoCountry", "CA", summary);
+        summary.setGeoCountry("CA");
+        summary.setPayloadSize(payload.length());
+        Map<String, String> columns = summary.toColumns();
+        assertEquals("Firefox", columns.get(DocumentSummary.PRODUCT));
+        assertEquals("21.0", columns.get(DocumentSummary.VERSION));
+        assertEquals("beta", columns.get(DocumentSummary.CHANNEL));
+        assertEquals("WINNT", columns.get(DocumentSummary.OS));
+        assertEquals("6.1", columns.get(DocumentSummary.OS_VERSION));
+        assertEquals("CA", columns.get(DocumentSummary.GEO_COUNTRY));
+        assertEquals("15000", columns.get(DocumentSummary.PROFILE_CREATION));
+        assertEquals("2013-03-01", columns.get(DocumentSummary.FIRST_PING));
+        assertEquals(String.valueOf(payload.length()), columns.get(DocumentSummary.PAYLOAD_SIZE));
+        assertEquals("2", columns.get(DocumentSummary.SCHEMA_VERSION));
+        assertEquals("1", columns.get(DocumentSummary.ERRORS));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.fhr.geoip.CountryRangeTable;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+public class FHRConsumerPipelineTest {
+
+    private FHRMessageProcessor processor;
+    private KeyValueSinkFactory sinkFactory;
+    private Meter consumed;
+
+    /**
+     * Records every operation on a key in the order the sink saw it.
+     */
+    private static class RecordingSink implements KeyValueSink {
+
+        final Map<String, List<String>> operations = new ConcurrentHashMap<String, List<String>>();
+
+        private void record(String key, String operation) {
+            List<String> ops = operations.get(key);
+            if (ops == null) {
+                ops = new ArrayList<String>();
+                operations.put(key, ops);
+            }
+            ops.add(operation);
+        }
+
+        @Override
+        public void store(String key, byte[] data) throws IOException {
+            record(key, new String(data, "UTF-8"));
+        }
+
+        @Override
+        public void store(String key, byte[] data, long timestamp) throws IOException {
+            store(key, data);
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+            record(key, "delete");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setup() {
+        processor = new FHRMessageProcessor("pipelinetest", new CountryRangeTable.Builder().add(0, null).build(0));
+        sinkFactory = Mockito.mock(KeyValueSinkFactory.class);
+        consumed = Metrics.newMeter(new MetricName("bagheera", "consumer", "pipelinetest.consumed"), "messages", TimeUnit.SECONDS);
+    }
+
+    private static Message message(String id, Operation operation, int n) {
+        BagheeraMessage.Builder builder = BagheeraMessage.newBuilder()
+            .setNamespace("metrics")
+            .setId(id)
+            .setOperation(operation)
+            .setTimestamp(System.currentTimeMillis());
+        if (operation == Operation.CREATE_UPDATE) {
+            builder.setPayload(ByteString.copyFromUtf8("{\"version\":2,\"n\":" + n + "}"));
+        }
+        return new Message(builder.build().toByteArray());
+    }
+
+    @Test
+    public void testOrderPerId() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        Mockito.when(sinkFactory.getSink("metrics")).thenReturn(sink);
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, 2, 4, 4, 5);
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < 10; i++) {
+                pipeline.submit(message("id-" + i, n % 5 == 4 ? Operation.DELETE : Operation.CREATE_UPDATE, n));
+            }
+        }
+        // close drains every stage into the sink
+        pipeline.close();
+
+        assertEquals(10, sink.operations.size());
+        for (List<String> ops : sink.operations.values()) {
+            assertEquals(20, ops.size());
+            for (int n = 0; n < 20; n++) {
+                String expected = n % 5 == 4 ? "delete" : "{\"version\":2,\"n\":" + n + ",\"geoCountry\":\"--\"}";
+                assertEquals(expected, ops.get(n));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidMessagesAreSkipped() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        Mockito.when(sinkFactory.getSink("metrics")).thenReturn(sink);
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, 1, 1, 1, 5);
+        pipeline.submit(message("id-1", Operation.CREATE_UPDATE, 1));
+        pipeline.submit(new Message(new byte[] { (byte)0xff, 1, 2, 3 }));
+        pipeline.submit(message("id-2", Operation.CREATE_UPDATE, 2));
+        pipeline.close();
+        assertEquals(2, sink.operations.size());
+    }
+
+    @Test
+    public void testSinkFailureIsRetried() throws Exception {
+        KeyValueSink sink = Mockito.mock(KeyValueSink.class);
+        Mockito.doThrow(new IOException("table offline")).doThrow(new IOException("table offline")).doNothing()
+            .when(sink).store(Mockito.eq("id-1"), Mockito.any(byte[].class), Mockito.anyLong());
+        Mockito.when(sinkFactory.getSink("metrics")).thenReturn(sink);
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, 1, 1, 1, 5,
+                                                               new MessageRetrier(1, 1, 3));
+        pipeline.submit(message("id-1", Operation.CREATE_UPDATE, 1));
+        pipeline.submit(message("id-2", Operation.CREATE_UPDATE, 2));
+        pipeline.close();
+
+        // the failed document is stored before the sink thread moves on
+        InOrder inOrder = Mockito.inOrder(sink);
+        inOrder.verify(sink, Mockito.times(3)).store(Mockito.eq("id-1"), Mockito.any(byte[].class), Mockito.anyLong());
+        inOrder.verify(sink).store(Mockito.eq("id-2"), Mockito.any(byte[].class), Mockito.anyLong());
+    }
+
+    @Test
+    public void testPoisonIsQuarantined() throws Exception {
+        KeyValueSink sink = Mockito.mock(KeyValueSink.class);
+        Mockito.doThrow(new IllegalStateException("bad document"))
+            .when(sink).store(Mockito.eq("id-1"), Mockito.any(byte[].class), Mockito.anyLong());
+        Mockito.when(sinkFactory.getSink("metrics")).thenReturn(sink);
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, 1, 1, 1, 5,
+                                                               new MessageRetrier(1, 1, 3));
+        long quarantined = processor.poisonMeter.count();
+        pipeline.submit(message("id-1", Operation.CREATE_UPDATE, 1));
+        pipeline.submit(message("id-2", Operation.CREATE_UPDATE, 2));
+        pipeline.close();
+
+        Mockito.verify(sink, Mockito.times(3)).store(Mockito.eq("id-1"), Mockito.any(byte[].class), Mockito.anyLong());
+        Mockito.verify(sink).store(Mockito.eq("id-2"), Mockito.any(byte[].class), Mockito.anyLong());
+        assertEquals(quarantined + 1, processor.poisonMeter.count());
+    }
+
+    @Test
+    public void testParseFailureIsRetried() throws Exception {
+        KeyValueSink sink = Mockito.mock(KeyValueSink.class);
+        Mockito.when(sinkFactory.getSink("metrics")).thenThrow(new IllegalStateException("sink not ready")).thenReturn(sink);
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(processor, sinkFactory, consumed, 1, 1, 1, 5,
+                                                               new MessageRetrier(1, 1, 3));
+        pipeline.submit(message("id-1", Operation.CREATE_UPDATE, 1));
+        pipeline.close();
+
+        Mockito.verify(sink).store(Mockito.eq("id-1"), Mockito.any(byte[].class), Mockito.anyLong());
+    }
+
+    @Test
+    public void testParsePoisonIsQuarantined() throws Exception {
+        KeyValueSink sink = Mockito.mock(KeyValueSink.class);
+        Mockito.when(sinkFactory.getSink("metrics")).thenReturn(sink);
+        FHRMessageProcessor failingProcessor = Mockito.spy(processor);
+        Mockito.doThrow(new IllegalStateException("bad document"))
+            .when(failingProcessor).isOversized(Mockito.any(KeyValueSink.class), Mockito.any(BagheeraMessage.class));
+        FHRConsumerPipeline pipeline = new FHRConsumerPipeline(failingProcessor, sinkFactory, consumed, 1, 1, 1, 5,
+                                                               new MessageRetrier(1, 1, 3));
+        long quarantined = processor.poisonMeter.count();
+        pipeline.submit(message("id-1", Operation.CREATE_UPDATE, 1));
+        pipeline.close();
+
+        // the message is quarantined rather than dropped by the parse stage
+        Mockito.verify(failingProcessor, Mockito.times(3)).isOversized(Mockito.any(KeyValueSink.class), Mockito.any(BagheeraMessage.class));
+        Mockito.verify(failingProcessor).quarantine(Mockito.any(BagheeraMessage.class), Mockito.any(IllegalStateException.class));
+        Mockito.verifyZeroInteractions(sink);
+        assertEquals(quarantined + 1, processor.poisonMeter.count());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IdSamplerTest {
+
+    @Test
+    public void testBucket() {
+        // the same as zlib.crc32("abc") % 10000
+        assertEquals(8578, IdSampler.bucket("abc"));
+    }
+
+    @Test
+    public void testRate() {
+        IdSampler sampler = new IdSampler(0.01);
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            String id = "profile-" + i;
+            if (sampler.isSampled(id)) {
+                sampled++;
+                // everything in a smaller sample is in a larger one too
+                assertTrue(new IdSampler(0.05).isSampled(id));
+            }
+        }
+        assertTrue("sampled " + sampled, sampled > 900 && sampled < 1100);
+
+        assertFalse(new IdSampler(0).isSampled("abc"));
+        assertTrue(new IdSampler(1).isSampled("abc"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new IdSampler(1.5);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageRetrierTest {
+
+    /**
+     * Records its backoffs instead of sleeping through them.
+     */
+    private static class RecordingRetrier extends MessageRetrier {
+        final List<Long> backoffs = new ArrayList<Long>();
+
+        RecordingRetrier(long minBackoffMillis, long maxBackoffMillis, int poisonAttempts) {
+            super(minBackoffMillis, maxBackoffMillis, poisonAttempts);
+        }
+
+        @Override
+        void sleep(long millis) {
+            backoffs.add(millis);
+        }
+    }
+
+    /**
+     * Fails with each of the given exceptions in turn, then succeeds.
+     */
+    private static class FailingAttempt extends MessageRetrier.Attempt {
+        final List<Exception> failures;
+        int runs;
+        int failed;
+        Exception quarantined;
+
+        FailingAttempt(Exception... failures) {
+            this.failures = new ArrayList<Exception>(Arrays.asList(failures));
+        }
+
+        @Override
+        void run() throws Exception {
+            runs++;
+            if (!failures.isEmpty()) {
+                throw failures.remove(0);
+            }
+        }
+
+        @Override
+        void quarantine(Exception e) {
+            quarantined = e;
+        }
+
+        @Override
+        void failed(Exception e, long backoffMillis) {
+            failed++;
+        }
+    }
+
+    private static Exception[] repeat(Exception e, int times) {
+        Exception[] failures = new Exception[times];
+        Arrays.fill(failures, e);
+        return failures;
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        RecordingRetrier retrier = new RecordingRetrier(100, 1000, 3);
+        FailingAttempt attempt = new FailingAttempt(repeat(new SinkException(new IOException("table offline")), 6));
+        retrier.run(attempt);
+
+        // sink errors double the backoff up to the maximum, and never quarantine
+        assertEquals(7, attempt.runs);
+        assertEquals(6, attempt.failed);
+        assertNull(attempt.quarantined);
+        assertEquals(Arrays.asList(100L, 200L, 400L, 800L, 1000L, 1000L), retrier.backoffs);
+    }
+
+    @Test
+    public void testBackoffResets() throws Exception {
+        RecordingRetrier retrier = new RecordingRetrier(100, 1000, 3);
+        retrier.run(new FailingAttempt(repeat(new SinkException(new IOException("table offline")), 3)));
+        retrier.backoffs.clear();
+
+        // the next message starts over from the minimum
+        retrier.run(new FailingAttempt(new SinkException(new IOException("table offline"))));
+        assertEquals(Arrays.asList(100L), retrier.backoffs);
+    }
+
+    @Test
+    public void testPoisonIsQuarantined() throws Exception {
+        RecordingRetrier retrier = new RecordingRetrier(100, 1000, 3);
+        IllegalStateException poison = new IllegalStateException("bad document");
+        FailingAttempt attempt = new FailingAttempt(new SinkException(new IOException("table offline")), poison, poison, poison, poison);
+        retrier.run(attempt);
+
+        // sink errors don't count against the message
+        assertEquals(4, attempt.runs);
+        assertEquals(poison, attempt.quarantined);
+        assertEquals(Arrays.asList(100L, 200L, 400L), retrier.backoffs);
+    }
+
+    @Test
+    public void testOtherIOExceptionIsQuarantined() throws Exception {
+        RecordingRetrier retrier = new RecordingRetrier(100, 1000, 3);
+        IOException truncated = new IOException("unexpected end of input");
+        FailingAttempt attempt = new FailingAttempt(repeat(truncated, 4));
+        retrier.run(attempt);
+
+        // an IOException that didn't come from the sink is the message's own fault
+        assertEquals(3, attempt.runs);
+        assertEquals(truncated, attempt.quarantined);
+    }
+
+    @Test
+    public void testInterruptLeavesMessage() throws Exception {
+        MessageRetrier retrier = new MessageRetrier(60000, 60000, 3);
+        FailingAttempt attempt = new FailingAttempt(new SinkException(new IOException("table offline")));
+        Thread.currentThread().interrupt();
+        try {
+            retrier.run(attempt);
+            fail();
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertEquals(1, attempt.runs);
+        assertNull(attempt.quarantined);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.fhr.bench.MemorySink;
+import com.mozilla.fhr.geoip.CountryRangeTable;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+public class NamespaceDispatcherTest {
+
+    private FHRMessageProcessor processor;
+    private KeyValueSinkFactory sinkFactory;
+    private CountingSink fastSink;
+    private final CountDownLatch slowEntered = new CountDownLatch(1);
+    private final CountDownLatch slowRelease = new CountDownLatch(1);
+    private File spoolDir;
+
+    /**
+     * Counts down a latch for every store.
+     */
+    private static class CountingSink extends MemorySink {
+        private final CountDownLatch stores;
+
+        CountingSink(int expected) {
+            stores = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void store(String key, byte[] data, long timestamp) throws IOException {
+            super.store(key, data, timestamp);
+            stores.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return stores.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Holds every store until released, like a table stuck retrying.
+     */
+    private class StuckSink extends MemorySink {
+        @Override
+        public void store(String key, byte[] data, long timestamp) throws IOException {
+            slowEntered.countDown();
+            try {
+                slowRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.store(key, data, timestamp);
+        }
+    }
+
+    /**
+     * Fails the given number of stores with the given exception before storing.
+     */
+    private static class FailingSink extends MemorySink {
+        private final AtomicInteger failures;
+        private final Exception failure;
+
+        FailingSink(int failures, Exception failure) {
+            this.failures = new AtomicInteger(failures);
+            this.failure = failure;
+        }
+
+        @Override
+        public void store(String key, byte[] data, long timestamp) throws IOException {
+            if (failures.getAndDecrement() > 0) {
+                if (failure instanceof IOException) {
+                    throw (IOException)failure;
+                }
+                throw (RuntimeException)failure;
+            }
+            super.store(key, data, timestamp);
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        processor = new FHRMessageProcessor("nstest", new CountryRangeTable.Builder().add(0, null).build(0));
+        fastSink = new CountingSink(100);
+        sinkFactory = Mockito.mock(KeyValueSinkFactory.class);
+        Mockito.when(sinkFactory.getSink("fast")).thenReturn(fastSink);
+        Mockito.when(sinkFactory.getSink("slow")).thenReturn(new StuckSink());
+        spoolDir = File.createTempFile("nstest", "");
+        spoolDir.delete();
+        spoolDir.mkdir();
+    }
+
+    @After
+    public void cleanup() {
+        slowRelease.countDown();
+        for (File f : spoolDir.listFiles()) {
+            f.delete();
+        }
+        spoolDir.delete();
+    }
+
+    private static BagheeraMessage message(String namespace, String id) {
+        return BagheeraMessage.newBuilder()
+            .setNamespace(namespace)
+            .setId(id)
+            .setOperation(Operation.CREATE_UPDATE)
+            .setTimestamp(System.currentTimeMillis())
+            .setPayload(ByteString.copyFromUtf8("{\"version\":2}"))
+            .build();
+    }
+
+    private NamespaceDispatcher newDispatcher(Properties props) {
+        return new NamespaceDispatcher(processor, sinkFactory,
+                                       Metrics.newMeter(new MetricName("bagheera", "consumer", "nstest.consumed"), "messages", TimeUnit.SECONDS),
+                                       props);
+    }
+
+    private static Properties retryProps() {
+        Properties props = new Properties();
+        props.setProperty("consumer.namespace.threads", "1");
+        props.setProperty("consumer.worker.backoff.min.ms", "1");
+        props.setProperty("consumer.worker.backoff.max.ms", "1");
+        return props;
+    }
+
+    @Test
+    public void testStuckNamespaceIsIsolated() throws Exception {
+        DeadLetterSpool spool = new DeadLetterSpool(spoolDir, "nstest", 1024 * 1024, 60000, 1024 * 1024, 64 * 1024 * 1024);
+        processor.setDeadLetterSpool(spool);
+        Properties props = new Properties();
+        props.setProperty("consumer.namespace.threads", "1");
+        props.setProperty("consumer.namespace.slow.queue.size", "2");
+        props.setProperty("consumer.namespace.overflow", "drop");
+        NamespaceDispatcher dispatcher = newDispatcher(props);
+
+        // one message held by the worker, two queued and the rest dropped
+        dispatcher.submit(message("slow", "slow-0"));
+        assertTrue(slowEntered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; i++) {
+            dispatcher.submit(message("slow", "slow-" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            dispatcher.submit(message("fast", "fast-" + i));
+        }
+        assertTrue(fastSink.await());
+        assertEquals(100, fastSink.size());
+
+        List<NamespaceDispatcher.Lane> lanes = dispatcher.getLanes();
+        assertEquals("fast", lanes.get(0).namespace);
+        assertEquals("slow", lanes.get(1).namespace);
+        assertEquals(2, lanes.get(1).getQueueSize());
+        assertEquals(7, lanes.get(1).overflowed.count());
+
+        slowRelease.countDown();
+        dispatcher.close();
+        spool.close();
+        // the dropped messages are kept for inspection
+        int spooled = 0;
+        for (File f : spoolDir.listFiles()) {
+            for (DeadLetterSpool.Record record : DeadLetterSpool.read(f)) {
+                assertEquals(DeadLetterSpool.Reason.OVERFLOW, record.reason);
+                assertNotNull(BagheeraMessage.parseFrom(record.data).getId());
+                spooled++;
+            }
+        }
+        assertEquals(7, spooled);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        NamespaceDispatcher dispatcher = newDispatcher(new Properties());
+        for (int i = 0; i < 5; i++) {
+            dispatcher.submit(message("fast", "fast-" + i));
+        }
+        dispatcher.close();
+        assertEquals(5, fastSink.size());
+        assertEquals(0, dispatcher.getLanes().get(0).overflowed.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOverflow() {
+        Properties props = new Properties();
+        props.setProperty("consumer.namespace.overflow", "spool");
+        newDispatcher(props);
+    }
+
+    @Test
+    public void testFailedStoreIsRetried() throws Exception {
+        FailingSink sink = new FailingSink(3, new IOException("table unavailable"));
+        Mockito.when(sinkFactory.getSink("flaky")).thenReturn(sink);
+        NamespaceDispatcher dispatcher = newDispatcher(retryProps());
+        long failed = dispatcher.getLane("flaky").failed.count();
+
+        dispatcher.submit(message("flaky", "flaky-0"));
+        dispatcher.submit(message("flaky", "flaky-1"));
+        dispatcher.close();
+        // sink errors are retried for as long as it takes, in order
+        assertEquals(2, sink.size());
+        assertEquals(failed + 3, dispatcher.getLanes().get(0).failed.count());
+    }
+
+    @Test
+    public void testPoisonIsQuarantined() throws Exception {
+        DeadLetterSpool spool = new DeadLetterSpool(spoolDir, "nstest", 1024 * 1024, 60000, 1024 * 1024, 64 * 1024 * 1024);
+        processor.setDeadLetterSpool(spool);
+        FailingSink sink = new FailingSink(3, new IllegalStateException("bad document"));
+        Mockito.when(sinkFactory.getSink("poison")).thenReturn(sink);
+        NamespaceDispatcher dispatcher = newDispatcher(retryProps());
+        long quarantined = processor.poisonMeter.count();
+
+        dispatcher.submit(message("poison", "poison-0"));
+        dispatcher.submit(message("poison", "poison-1"));
+        dispatcher.close();
+        spool.close();
+        // the first message failed three times and was set aside, the second went through
+        assertEquals(quarantined + 1, processor.poisonMeter.count());
+        assertNull(sink.get("poison-0"));
+        assertNotNull(sink.get("poison-1"));
+        int spooled = 0;
+        for (File f : spoolDir.listFiles()) {
+            for (DeadLetterSpool.Record record : DeadLetterSpool.read(f)) {
+                assertEquals(DeadLetterSpool.Reason.POISON, record.reason);
+                assertEquals("poison-0", BagheeraMessage.parseFrom(record.data).getId());
+                spooled++;
+            }
+        }
+        assertEquals(1, spooled);
+    }
+}
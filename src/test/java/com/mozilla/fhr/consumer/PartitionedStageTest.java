@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PartitionedStageTest {
+
+    private static class Item {
+        final String key;
+        final int seq;
+
+        Item(String key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        final Map<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+        PartitionedStage<Item> stage = new PartitionedStage<Item>("test-order", 4, 10, new PartitionedStage.Handler<Item>() {
+            @Override
+            public void handle(Item item) {
+                // each key is only ever handled by one thread
+                handled.get(item.key).add(item.seq);
+            }
+        });
+        for (int k = 0; k < 20; k++) {
+            handled.put("key-" + k, new ArrayList<Integer>());
+        }
+        stage.start();
+        for (int seq = 0; seq < 100; seq++) {
+            for (int k = 0; k < 20; k++) {
+                stage.submit("key-" + k, new Item("key-" + k, seq));
+            }
+        }
+        stage.close(10, TimeUnit.SECONDS);
+
+        for (List<Integer> seqs : handled.values()) {
+            assertEquals(100, seqs.size());
+            for (int seq = 0; seq < 100; seq++) {
+                assertEquals(seq, seqs.get(seq).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseDrainsQueues() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        PartitionedStage<Item> stage = new PartitionedStage<Item>("test-drain", 1, 10, new PartitionedStage.Handler<Item>() {
+            @Override
+            public void handle(Item item) throws Exception {
+                started.countDown();
+                release.await();
+                count.incrementAndGet();
+            }
+        });
+        stage.start();
+        for (int i = 0; i < 10; i++) {
+            stage.submit("key", new Item("key", i));
+        }
+        started.await();
+        // the first item is held by the worker, so the rest are still queued at close
+        assertEquals(9, stage.size());
+        release.countDown();
+        stage.close(10, TimeUnit.SECONDS);
+        assertEquals(10, count.get());
+        assertEquals(0, stage.size());
+    }
+
+    @Test
+    public void testHandlerErrorsAreContained() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        PartitionedStage<Item> stage = new PartitionedStage<Item>("test-errors", 2, 10, new PartitionedStage.Handler<Item>() {
+            @Override
+            public void handle(Item item) throws Exception {
+                if (item.seq % 3 == 0) {
+                    throw new IllegalStateException("bad item " + item.seq);
+                }
+                count.incrementAndGet();
+            }
+        });
+        stage.start();
+        for (int i = 0; i < 30; i++) {
+            stage.submit("key-" + (i % 2), new Item("key-" + (i % 2), i));
+        }
+        stage.close(10, TimeUnit.SECONDS);
+        assertEquals(20, count.get());
+    }
+}
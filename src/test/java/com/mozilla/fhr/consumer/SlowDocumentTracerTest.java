@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+
+public class SlowDocumentTracerTest {
+
+    private static BagheeraMessage message(String id) {
+        return BagheeraMessage.newBuilder()
+            .setNamespace("metrics")
+            .setId(id)
+            .setOperation(Operation.CREATE_UPDATE)
+            .setPayload(ByteString.copyFromUtf8("{\"version\":2}"))
+            .build();
+    }
+
+    @Test
+    public void testKeepsSlowest() {
+        SlowDocumentTracer tracer = new SlowDocumentTracer(3, 1, TimeUnit.HOURS);
+        long[] totals = new long[] { 5, 1, 9, 3, 7, 2, 8 };
+        for (int i = 0; i < totals.length; i++) {
+            tracer.trace(message("id" + totals[i]), totals[i] * 1000, totals[i] * 10);
+        }
+
+        List<SlowDocumentTracer.Entry> slowest = tracer.getSlowest();
+        assertEquals(3, slowest.size());
+        assertEquals("id9", slowest.get(0).id);
+        assertEquals("id8", slowest.get(1).id);
+        assertEquals("id7", slowest.get(2).id);
+        assertEquals(9000, slowest.get(0).enrichNanos);
+        assertEquals(90, slowest.get(0).storeNanos);
+        assertEquals("metrics", slowest.get(0).namespace);
+        assertEquals(13, slowest.get(0).payloadSize);
+    }
+
+    @Test
+    public void testWindowRollsOver() {
+        SlowDocumentTracer tracer = new SlowDocumentTracer(2, 200, TimeUnit.MILLISECONDS, 0);
+        tracer.trace(message("old"), 1000000, 0, 100);
+        assertEquals(1, tracer.getSlowest(199).size());
+
+        // the previous window is still reported alongside the current one
+        tracer.trace(message("new"), 10, 0, 250);
+        List<SlowDocumentTracer.Entry> slowest = tracer.getSlowest(250);
+        assertEquals(2, slowest.size());
+        assertEquals("old", slowest.get(0).id);
+        assertEquals("new", slowest.get(1).id);
+
+        // until the window after that
+        slowest = tracer.getSlowest(400);
+        assertEquals(1, slowest.size());
+        assertEquals("new", slowest.get(0).id);
+
+        // once a whole window goes by without anything, everything is dropped
+        assertTrue(tracer.getSlowest(800).isEmpty());
+    }
+}
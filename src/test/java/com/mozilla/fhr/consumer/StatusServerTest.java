@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class StatusServerTest {
+
+    private MetricsRegistry registry;
+    private StatusServer server;
+
+    @Before
+    public void setup() throws IOException {
+        registry = new MetricsRegistry();
+        registry.newMeter(new MetricName("bagheera", "consumer", "test.consumed"), "messages", TimeUnit.SECONDS).mark(3);
+        registry.newTimer(new MetricName("bagheera", "sink.hbase", "test.flush.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+            .update(5, TimeUnit.MILLISECONDS);
+        registry.newGauge(new MetricName("bagheera", "sink.hbase", "test.rowqueue.size"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return 42;
+            }
+        });
+        registry.newMeter(new MetricName("bagheera", "other", "test.ignored"), "messages", TimeUnit.SECONDS);
+
+        server = new StatusServer(new InetSocketAddress("127.0.0.1", 0), registry, new StatusServer.StatusSource() {
+            @Override
+            public void writeStatus(JsonGenerator g) throws IOException {
+                g.writeArrayFieldStart("workers");
+                g.writeStartObject();
+                g.writeStringField("state", "consuming");
+                g.writeEndObject();
+                g.writeEndArray();
+            }
+        });
+    }
+
+    @After
+    public void cleanup() {
+        server.close();
+        registry.shutdown();
+    }
+
+    private JsonNode get(String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("application/json", conn.getContentType());
+        InputStream in = conn.getInputStream();
+        try {
+            return new ObjectMapper().readTree(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testStatus() throws IOException {
+        JsonNode status = get("/status");
+
+        assertTrue(status.get("time").asLong() > 0);
+        JsonNode metrics = status.get("metrics");
+        assertEquals("meter", metrics.get("bagheera.consumer.test.consumed").get("type").asText());
+        assertEquals(3, metrics.get("bagheera.consumer.test.consumed").get("count").asLong());
+        assertEquals(1, metrics.get("bagheera.sink.hbase.test.flush.time").get("count").asLong());
+        assertEquals(5.0, metrics.get("bagheera.sink.hbase.test.flush.time").get("max").asDouble(), 0.01);
+        assertEquals(42, metrics.get("bagheera.sink.hbase.test.rowqueue.size").get("value").asInt());
+        assertFalse(metrics.has("bagheera.other.test.ignored"));
+        assertEquals("consuming", status.get("workers").get(0).get("state").asText());
+    }
+
+    @Test
+    public void testAddSource() throws IOException {
+        server.addSource("/extra", new StatusServer.StatusSource() {
+            @Override
+            public void writeStatus(JsonGenerator g) throws IOException {
+                g.writeStringField("extra", "value");
+            }
+        });
+        JsonNode status = get("/extra");
+        assertEquals("value", status.get("extra").asText());
+        assertFalse(status.has("metrics"));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mozilla.fhr.pig.eval.FileUtils;
+
+public class StreamingJsonEnricherTest {
+
+    private ObjectMapper jsonMapper = new ObjectMapper();
+    private StreamingJsonEnricher enricher = new StreamingJsonEnricher(jsonMapper.getJsonFactory());
+
+    private String treeEnrich(String json, String value) throws IOException {
+        ObjectNode document = jsonMapper.readValue(json, ObjectNode.class);
+        document.put("geoCountry", value);
+        return new String(jsonMapper.writeValueAsBytes(document), "UTF-8");
+    }
+
+    private String streamEnrich(String json, String value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        enricher.enrich(new ByteArrayInputStream(json.getBytes("UTF-8")), out, "geoCountry", value);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void testAppendsField() throws IOException {
+        String json = FileUtils.readResourceAsString(ClassLoader.getSystemResourceAsStream("sample.js"));
+        assertEquals(treeEnrich(json, "US"), streamEnrich(json, "US"));
+    }
+
+    @Test
+    public void testReplacesFieldInPlace() throws IOException {
+        String json = "{\"version\":2,\"geoCountry\":\"FR\",\"data\":{\"geoCountry\":\"DE\",\"n\":[1,2.5,-3e10,null,true]}}";
+        assertEquals(treeEnrich(json, "--"), streamEnrich(json, "--"));
+        assertEquals("{\"version\":2,\"geoCountry\":\"--\",\"data\":{\"geoCountry\":\"DE\",\"n\":[1,2.5,-3.0E10,null,true]}}",
+                     streamEnrich(json, "--"));
+    }
+
+    @Test
+    public void testEmptyObject() throws IOException {
+        assertEquals("{\"geoCountry\":\"CA\"}", streamEnrich("{}", "CA"));
+    }
+
+    @Test(expected=JsonParseException.class)
+    public void testTruncatedDocument() throws IOException {
+        streamEnrich("{\"version\":2,\"data\":{\"days\":{}", "US");
+    }
+
+    @Test(expected=JsonMappingException.class)
+    public void testNotAnObject() throws IOException {
+        streamEnrich("[1,2,3]", "US");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CountryRangeTableTest {
+
+    private static byte[] ip(int a, int b, int c, int d) {
+        return new byte[] { (byte)a, (byte)b, (byte)c, (byte)d };
+    }
+
+    private static long ipnum(int a, int b, int c, int d) {
+        return ((long)a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    private CountryRangeTable newTable(int prefixCacheSize) {
+        return new CountryRangeTable.Builder()
+            .add(0, null)
+            .add(ipnum(10, 0, 0, 0), "US")
+            .add(ipnum(10, 0, 1, 0), "US")
+            .add(ipnum(10, 0, 2, 128), "CA")
+            .add(ipnum(11, 0, 0, 0), null)
+            .add(ipnum(200, 0, 0, 0), "BR")
+            .build(prefixCacheSize);
+    }
+
+    @Test
+    public void testLookup() {
+        for (int cacheSize : new int[] { 0, 16 }) {
+            CountryRangeTable table = newTable(cacheSize);
+            assertEquals(5, table.size());
+            // repeat so that cached answers are checked too
+            for (int i = 0; i < 2; i++) {
+                assertNull(table.getCountryCode(ip(9, 255, 255, 255)));
+                assertEquals("US", table.getCountryCode(ip(10, 0, 0, 0)));
+                assertEquals("US", table.getCountryCode(ip(10, 0, 1, 200)));
+                assertEquals("US", table.getCountryCode(ip(10, 0, 2, 127)));
+                assertEquals("CA", table.getCountryCode(ip(10, 0, 2, 128)));
+                assertEquals("CA", table.getCountryCode(ip(10, 255, 255, 255)));
+                assertNull(table.getCountryCode(ip(11, 0, 0, 1)));
+                assertEquals("BR", table.getCountryCode(ip(200, 1, 2, 3)));
+                assertEquals("BR", table.getCountryCode(ip(255, 255, 255, 255)));
+            }
+        }
+    }
+
+    @Test
+    public void testMappedAddresses() {
+        CountryRangeTable table = newTable(16);
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte)0xff;
+        mapped[11] = (byte)0xff;
+        mapped[12] = (byte)200;
+        assertEquals("BR", table.getCountryCode(mapped));
+
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = (byte)0x20;
+        ipv6[1] = (byte)0x01;
+        assertNull(table.getCountryCode(ipv6));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnorderedRanges() {
+        new CountryRangeTable.Builder().add(0, null).add(ipnum(10, 0, 0, 0), "US").add(ipnum(9, 0, 0, 0), "CA");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.geoip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CountryTableFileTest {
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("country", ".table");
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    private CountryRangeTable newTable(String lastCountry) {
+        return new CountryRangeTable.Builder()
+            .add(0, null)
+            .add(0x0A000000L, "US")
+            .add(0x0A000280L, "CA")
+            .add(0x0B000000L, null)
+            .add(0xC8000000L, lastCountry)
+            .build(0);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CountryTableFile.write(newTable("BR"), file);
+        CountryRangeTable table = CountryTableFile.map(file, 16);
+        assertEquals(5, table.size());
+        assertNull(table.getCountryCode(new byte[] { 9, 0, 0, 1 }));
+        assertEquals("US", table.getCountryCode(new byte[] { 10, 0, 1, 1 }));
+        assertEquals("CA", table.getCountryCode(new byte[] { 10, 0, 2, (byte)128 }));
+        assertNull(table.getCountryCode(new byte[] { 11, 0, 0, 0 }));
+        assertEquals("BR", table.getCountryCode(new byte[] { (byte)255, 0, 0, 1 }));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        CountryTableFile.write(newTable("BR"), file);
+        ReloadingCountryLookup lookup = new ReloadingCountryLookup(file, 16, 3600);
+        try {
+            byte[] address = new byte[] { (byte)200, 1, 2, 3 };
+            assertEquals("BR", lookup.getCountryCode(address));
+
+            CountryTableFile.write(newTable("AR"), file);
+            file.setLastModified(file.lastModified() + 2000);
+            lookup.reloadIfChanged();
+            assertEquals("AR", lookup.getCountryCode(address));
+
+            // a corrupt replacement leaves the current table in place
+            File corrupt = new File(file.getParentFile(), file.getName() + ".corrupt");
+            FileOutputStream fos = new FileOutputStream(corrupt);
+            fos.write(new byte[] { 1, 2, 3 });
+            fos.close();
+            assertTrue(corrupt.renameTo(file));
+            file.setLastModified(file.lastModified() + 4000);
+            lookup.reloadIfChanged();
+            assertEquals("AR", lookup.getCountryCode(address));
+        } finally {
+            lookup.close();
+        }
+    }
+
+    @Test
+    public void testRenamedInstall() throws IOException {
+        CountryTableFile.write(newTable("BR"), file);
+        CountryRangeTable table = CountryTableFile.map(file, 0);
+        // a table renamed into place leaves the live mapping on the file it replaced
+        CountryTableFile.write(newTable("AR"), file);
+        assertEquals("BR", table.getCountryCode(new byte[] { (byte)200, 1, 2, 3 }));
+        assertEquals("US", table.getCountryCode(new byte[] { 10, 0, 1, 1 }));
+        assertEquals("AR", CountryTableFile.map(file, 0).getCountryCode(new byte[] { (byte)200, 1, 2, 3 }));
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncatedFile() throws IOException {
+        CountryTableFile.write(newTable("BR"), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        CountryTableFile.map(file, 0);
+    }
+}
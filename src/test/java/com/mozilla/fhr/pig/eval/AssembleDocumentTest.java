@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.pig.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AssembleDocumentTest {
+
+    private TupleFactory tupleFactory = TupleFactory.getInstance();
+    private ObjectMapper jsonMapper = new ObjectMapper();
+
+    @Test
+    public void testExec() throws IOException {
+        String base = "{\"thisPingDate\":\"2013-03-02\",\"data\":{\"days\":{\"2013-03-01\":{\"a\":1},\"2013-03-02\":{\"a\":1}}}}";
+        Map<String, Object> deltas = new HashMap<String, Object>();
+        // out of order on purpose
+        deltas.put("0000000003000", new DataByteArray("{\"thisPingDate\":\"2013-03-04\",\"data\":{\"days\":{\"2013-03-03\":{\"a\":3},\"2013-03-04\":{\"a\":4}}}}"));
+        deltas.put("0000000002000", new DataByteArray("{\"thisPingDate\":\"2013-03-03\",\"data\":{\"days\":{\"2013-03-02\":{\"a\":2},\"2013-03-03\":{\"a\":2}}}}"));
+
+        Tuple input = tupleFactory.newTuple();
+        input.append(base);
+        input.append(deltas);
+        AssembleDocument assemble = new AssembleDocument();
+        String output = assemble.exec(input);
+        assertEquals(jsonMapper.readTree("{\"thisPingDate\":\"2013-03-04\",\"data\":{\"days\":" +
+                                         "{\"2013-03-01\":{\"a\":1},\"2013-03-02\":{\"a\":2},\"2013-03-03\":{\"a\":3},\"2013-03-04\":{\"a\":4}}}}"),
+                     jsonMapper.readTree(output));
+
+        // rows without deltas are passed through
+        input = tupleFactory.newTuple();
+        input.append(base);
+        input.append(null);
+        assertEquals(base, assemble.exec(input));
+        assertNull(assemble.exec(null));
+    }
+}
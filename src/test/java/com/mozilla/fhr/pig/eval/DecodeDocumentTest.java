@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.pig.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import com.mozilla.fhr.sink.CompressedValues;
+
+public class DecodeDocumentTest {
+
+    private TupleFactory tupleFactory = TupleFactory.getInstance();
+
+    @Test
+    public void testExec() throws IOException {
+        StringBuilder json = new StringBuilder("{\"data\":[");
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"a\":1},");
+        }
+        String document = json.append("{}]}").toString();
+        DecodeDocument decode = new DecodeDocument();
+
+        Tuple input = tupleFactory.newTuple();
+        input.append(new DataByteArray(new CompressedValues(1, 0).encode(document.getBytes("UTF-8"))));
+        assertEquals(document, decode.exec(input));
+
+        // plain values are passed through
+        input = tupleFactory.newTuple();
+        input.append(new DataByteArray(document));
+        assertEquals(document, decode.exec(input));
+
+        assertNull(decode.exec(null));
+    }
+}
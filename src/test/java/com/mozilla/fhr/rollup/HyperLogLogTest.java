@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    private static void assertWithin(long expected, long actual, double error) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * error);
+    }
+
+    @Test
+    public void testCardinality() {
+        HyperLogLog hll = new HyperLogLog(12);
+        assertEquals(0, hll.cardinality());
+        for (int i = 0; i < 100000; i++) {
+            hll.add("profile-" + i);
+            // repeats don't count
+            hll.add("profile-" + (i / 2));
+        }
+        // standard error is about 1.6% at this precision
+        assertWithin(100000, hll.cardinality(), 0.05);
+
+        HyperLogLog small = new HyperLogLog(12);
+        for (int i = 0; i < 100; i++) {
+            small.add("profile-" + i);
+        }
+        assertWithin(100, small.cardinality(), 0.02);
+    }
+
+    @Test
+    public void testMerge() {
+        HyperLogLog a = new HyperLogLog(10);
+        HyperLogLog b = new HyperLogLog(10);
+        for (int i = 0; i < 20000; i++) {
+            a.add("profile-" + i);
+            b.add("profile-" + (i + 10000));
+        }
+        a.merge(b);
+        assertWithin(30000, a.cardinality(), 0.1);
+    }
+
+    @Test
+    public void testSerialization() {
+        HyperLogLog hll = new HyperLogLog(8);
+        for (int i = 0; i < 1000; i++) {
+            hll.add("profile-" + i);
+        }
+        byte[] bytes = hll.toBytes();
+        assertEquals(257, bytes.length);
+        HyperLogLog copy = HyperLogLog.fromBytes(bytes);
+        assertEquals(8, copy.getPrecision());
+        assertEquals(hll.cardinality(), copy.cardinality());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMergePrecisionMismatch() {
+        new HyperLogLog(10).merge(new HyperLogLog(11));
+    }
+}
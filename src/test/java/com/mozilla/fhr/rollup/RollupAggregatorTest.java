@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.rollup;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mozilla.fhr.consumer.DayFacts;
+import com.mozilla.fhr.consumer.DocumentExtracts;
+import com.mozilla.fhr.consumer.DocumentSummary;
+import com.mozilla.fhr.sink.LineFileSink;
+
+public class RollupAggregatorTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("rollups", ".tsv");
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    private void add(RollupAggregator rollups, String id, String channel, String geo, String days) throws IOException {
+        add(rollups, id, channel, geo, null, days);
+    }
+
+    private void add(RollupAggregator rollups, String id, String channel, String geo, String lastPingDate, String days) throws IOException {
+        String ping = lastPingDate == null ? "" : ",\"lastPingDate\":\"" + lastPingDate + "\"";
+        String payload = "{\"version\":2" + ping + ",\"data\":{\"last\":{\"org.mozilla.appInfo.appinfo\":" +
+            "{\"name\":\"Firefox\",\"updateChannel\":\"" + channel + "\",\"os\":\"WINNT\"}},\"days\":{" + days + "}}}";
+        DocumentSummary summary = new DocumentSummary();
+        DayFacts facts = new DayFacts(30);
+        new DocumentExtracts(summary, facts).observe(jsonMapper.readTree(payload));
+        summary.setGeoCountry(geo);
+        rollups.add(id, summary, facts);
+    }
+
+    private Map<String, JsonNode> readRollups() throws IOException {
+        Map<String, JsonNode> rollups = new HashMap<String, JsonNode>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                // drop the flush time and consumer from the key
+                String[] key = fields[0].split(":");
+                rollups.put(key[0] + ":" + key[1] + ":" + key[2] + ":" + key[3] + ":" + key[4], jsonMapper.readTree(fields[1]));
+            }
+        } finally {
+            reader.close();
+        }
+        return rollups;
+    }
+
+    @Test
+    public void testRollups() throws IOException {
+        RollupAggregator rollups = new RollupAggregator("test", new LineFileSink(file), 10, 0);
+        String searches = "\"2013-03-01\":{\"org.mozilla.searches.counts\":{\"google.urlbar\":3}," +
+            "\"org.mozilla.crashes.crashes\":{\"pending\":1,\"submitted\":2}}";
+        String sessions = "\"2013-03-02\":{\"org.mozilla.appSessions.previous\":{\"main\":[100],\"abortedTotalTime\":[5,6]}}";
+        add(rollups, "a", "release", "US", searches + "," + sessions);
+        add(rollups, "b", "release", "US", searches);
+        add(rollups, "a", "release", "US", searches);
+        add(rollups, "c", "beta", null, sessions);
+        rollups.close();
+
+        Map<String, JsonNode> output = readRollups();
+        assertEquals(3, output.size());
+
+        JsonNode day1 = output.get("2013-03-01:Firefox:release:WINNT:US");
+        assertEquals(2, day1.get(Rollup.PROFILES).asLong());
+        assertEquals(3, day1.get(Rollup.PROFILE_DAYS).asLong());
+        assertEquals(9, day1.get(Rollup.SEARCHES).asLong());
+        assertEquals(9, day1.get(Rollup.CRASHES).asLong());
+        assertEquals(2, HyperLogLog.fromBytes(day1.get(Rollup.SKETCH).binaryValue()).cardinality());
+
+        JsonNode day2 = output.get("2013-03-02:Firefox:release:WINNT:US");
+        assertEquals(1, day2.get(Rollup.PROFILES).asLong());
+        assertEquals(2, day2.get(Rollup.SESSIONS_ABORTED).asLong());
+
+        JsonNode unknownGeo = output.get("2013-03-02:Firefox:beta:WINNT:" + RollupAggregator.UNKNOWN);
+        assertEquals(1, unknownGeo.get(Rollup.PROFILES).asLong());
+    }
+
+    @Test
+    public void testFlushResets() throws IOException {
+        RollupAggregator rollups = new RollupAggregator("test", new LineFileSink(file), 10, 0);
+        add(rollups, "a", "release", "US", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        rollups.flush();
+        add(rollups, "b", "release", "US", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        rollups.close();
+
+        // one row per flush, each covering only its own interval
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        int lines = 0;
+        while (reader.readLine() != null) {
+            lines++;
+        }
+        reader.close();
+        assertEquals(2, lines);
+    }
+
+    @Test
+    public void testLastPingDayNotCountedTwice() throws IOException {
+        RollupAggregator rollups = new RollupAggregator("test", new LineFileSink(file), 10, 0);
+        String day1 = "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}";
+        String day1Full = "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":3}}";
+        String day2 = "\"2013-03-02\":{\"org.mozilla.crashes.crashes\":{\"pending\":2}}";
+        add(rollups, "a", "release", "US", null, day1);
+        // the next daily submission repeats the last ping's day in full
+        add(rollups, "a", "release", "US", "2013-03-01", day1Full + "," + day2);
+        rollups.close();
+
+        Map<String, JsonNode> output = readRollups();
+        assertEquals(1, output.get("2013-03-01:Firefox:release:WINNT:US").get(Rollup.PROFILE_DAYS).asLong());
+        assertEquals(1, output.get("2013-03-01:Firefox:release:WINNT:US").get(Rollup.CRASHES).asLong());
+        assertEquals(2, output.get("2013-03-02:Firefox:release:WINNT:US").get(Rollup.CRASHES).asLong());
+    }
+
+    @Test
+    public void testMaxKeys() throws IOException {
+        RollupAggregator rollups = new RollupAggregator("test", new LineFileSink(file), 10, 0);
+        rollups.setMaxKeys(2);
+        long dropped = rollups.dropped.count();
+        add(rollups, "a", "release", "US", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        add(rollups, "b", "release", "CA", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        add(rollups, "c", "release", "US", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        add(rollups, "d", "release", "BR", "\"2013-03-01\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        // days that aren't days never make a key
+        add(rollups, "e", "release", "US", "\"not-a-day\":{\"org.mozilla.crashes.crashes\":{\"pending\":1}}");
+        rollups.close();
+
+        Map<String, JsonNode> output = readRollups();
+        assertEquals(2, output.size());
+        assertEquals(2, output.get("2013-03-01:Firefox:release:WINNT:US").get(Rollup.PROFILES).asLong());
+        assertEquals(dropped + 1, rollups.dropped.count());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressedValuesTest {
+
+    private static byte[] document(int entries) {
+        StringBuilder json = new StringBuilder("{\"days\":{");
+        for (int i = 0; i < entries; i++) {
+            json.append(String.format("\"2013-03-%02d\":{\"sessions\":{\"main\":%d}},", i % 28 + 1, i));
+        }
+        return json.append("\"x\":{}}}").toString().getBytes();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CompressedValues compression = new CompressedValues(1, 64);
+        byte[] data = document(200);
+        byte[] value = compression.encode(data);
+        assertTrue(CompressedValues.isCompressed(value));
+        assertTrue(value.length < data.length / 3);
+        assertArrayEquals(data, CompressedValues.decode(value));
+        // the same document always encodes the same way
+        assertArrayEquals(value, compression.encode(data));
+    }
+
+    @Test
+    public void testPassThrough() throws IOException {
+        CompressedValues compression = new CompressedValues(1, 64);
+        byte[] small = "{\"a\":1}".getBytes();
+        assertSame(small, compression.encode(small));
+        assertFalse(CompressedValues.isCompressed(small));
+        assertSame(small, CompressedValues.decode(small));
+
+        byte[] random = new byte[1024];
+        new Random(1).nextBytes(random);
+        random[0] = '{';
+        assertSame(random, compression.encode(random));
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] value = new CompressedValues(1, 0).encode(document(200));
+        CompressedValues.decode(Arrays.copyOf(value, value.length / 2));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class DeltaDocumentsTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private static String day(int day) {
+        return String.format("2013-03-%02d", day);
+    }
+
+    /**
+     * @return a v2 document sent on thisDay with one entry for each day up to it
+     */
+    private byte[] document(int lastDay, int thisDay) throws IOException {
+        ObjectNode root = jsonMapper.createObjectNode();
+        root.put("version", 2);
+        root.put("thisPingDate", day(thisDay));
+        if (lastDay > 0) {
+            root.put("lastPingDate", day(lastDay));
+        }
+        ObjectNode data = root.putObject("data");
+        data.putObject("last").putObject("org.mozilla.appInfo.appinfo").put("version", "2" + thisDay + ".0");
+        ObjectNode days = data.putObject("days");
+        for (int day = 1; day <= thisDay; day++) {
+            // the last day sent before is updated by the next submission
+            days.putObject(day(day)).putObject("org.mozilla.crashes.crashes").put("pending", day == thisDay ? 1 : 2);
+        }
+        return jsonMapper.writeValueAsBytes(root);
+    }
+
+    private ObjectNode parse(byte[] document) throws IOException {
+        return jsonMapper.readValue(document, ObjectNode.class);
+    }
+
+    /**
+     * @return the delta of the document, after recording it as written
+     */
+    private byte[] store(DeltaDocuments deltas, byte[] rowKey, byte[] document) throws IOException {
+        DeltaDocuments.Split split = deltas.toDelta(rowKey, document, 0);
+        deltas.stored(rowKey, split.getPingDay());
+        return split.getDelta();
+    }
+
+    /**
+     * @return a row key that isn't rebased between the 5th and the 9th
+     */
+    private byte[] steadyRowKey(DeltaDocuments deltas) throws IOException {
+        for (int i = 0; ; i++) {
+            byte[] rowKey = Bytes.toBytes("id" + i);
+            store(deltas, rowKey, document(0, 5));
+            boolean steady = deltas.toDelta(rowKey, document(5, 9), 0).getDelta() != null;
+            deltas.forget(rowKey);
+            if (steady) {
+                return rowKey;
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        DeltaDocuments deltas = new DeltaDocuments(30);
+        byte[] base = document(0, 5);
+        List<ObjectNode> written = new ArrayList<ObjectNode>();
+        byte[] rowKey = steadyRowKey(deltas);
+        assertNull(store(deltas, rowKey, base));
+
+        for (int thisDay = 6; thisDay <= 9; thisDay++) {
+            byte[] delta = store(deltas, rowKey, document(thisDay - 1, thisDay));
+            assertNotNull(delta);
+            JsonNode days = parse(delta).get("data").get("days");
+            assertEquals(2, days.size());
+            assertFalse(days.has(day(thisDay - 2)));
+            written.add(parse(delta));
+        }
+        assertEquals(parse(document(8, 9)), DeltaDocuments.assemble(parse(base), written));
+        assertEquals(parse(base), DeltaDocuments.assemble(parse(base), Collections.<ObjectNode>emptyList()));
+    }
+
+    @Test
+    public void testMissingBase() throws IOException {
+        DeltaDocuments deltas = new DeltaDocuments(30, 16);
+        byte[] rowKey = steadyRowKey(deltas);
+
+        // a new row key is stored in full even within its delta period
+        DeltaDocuments.Split split = deltas.toDelta(rowKey, document(5, 6), 0);
+        assertNull(split.getDelta());
+        assertEquals(-1, deltas.getStoredDay(rowKey));
+        // and so it is until that base is written
+        assertNull(deltas.toDelta(rowKey, document(6, 7), 0).getDelta());
+        deltas.stored(rowKey, split.getPingDay());
+        assertEquals(split.getPingDay(), deltas.getStoredDay(rowKey));
+        assertNotNull(store(deltas, rowKey, document(6, 7)));
+
+        // a submission that never made it leaves a gap, which takes a new base
+        assertNull(deltas.toDelta(rowKey, document(8, 9), 0).getDelta());
+
+        // as does a row that was deleted or given up on
+        deltas.forget(rowKey);
+        assertNull(deltas.toDelta(rowKey, document(7, 8), 0).getDelta());
+    }
+
+    @Test
+    public void testV1DataPoints() throws IOException {
+        String base = "{\"version\":1,\"thisPingDate\":\"2013-03-02\",\"dataPoints\":{\"2013-03-01\":{\"a\":1},\"2013-03-02\":{\"a\":2}}}";
+        String delta = "{\"version\":1,\"thisPingDate\":\"2013-03-03\",\"lastPingDate\":\"2013-03-02\",\"dataPoints\":{\"2013-03-02\":{\"a\":3},\"2013-03-03\":{\"a\":4}}}";
+        ObjectNode assembled = DeltaDocuments.assemble(parse(base.getBytes()), Collections.singletonList(parse(delta.getBytes())));
+        assertEquals("2013-03-03", assembled.get("thisPingDate").textValue());
+        JsonNode dataPoints = assembled.get("dataPoints");
+        assertEquals(3, dataPoints.size());
+        assertEquals(1, dataPoints.get("2013-03-01").get("a").intValue());
+        assertEquals(3, dataPoints.get("2013-03-02").get("a").intValue());
+    }
+
+    @Test
+    public void testRebase() throws IOException {
+        DeltaDocuments deltas = new DeltaDocuments(7);
+        byte[] rowKey = Bytes.toBytes("id");
+        // first submissions, clock changes and unparseable dates are stored in full
+        assertNull(store(deltas, rowKey, document(0, 5)));
+        assertNull(store(deltas, rowKey, "{\"lastPingDate\":\"2013-03-10\",\"thisPingDate\":\"2013-03-05\"}".getBytes()));
+        assertNull(store(deltas, rowKey, "{\"lastPingDate\":\"yesterday\"}".getBytes()));
+
+        // every profile rebases exactly once a period
+        long rebases = 0;
+        for (long day = 15000; day < 15070; day++) {
+            if (deltas.isRebase(rowKey, day, day + 1)) {
+                rebases++;
+            }
+        }
+        assertEquals(10, rebases);
+        assertTrue(deltas.isRebase(rowKey, 15000, 15007));
+    }
+}
@@ -21,22 +21,43 @@ package com.mozilla.fhr.sink;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.mozilla.bagheera.sink.KeyValueSinkFactory;
 import com.mozilla.bagheera.sink.SinkConfiguration;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
 
 public class HBaseSinkTest {
     SinkConfiguration sinkConfig;
@@ -81,6 +102,20 @@ public class HBaseSinkTest {
         }
     }
 
+    /**
+     * @return a sink whose retry backoffs run on the given clock rather than the wall clock
+     */
+    private HBaseSink newSink(final AtomicLong nanos) {
+        HBaseSink sink = new HBaseSink(sinkConfig) {
+            @Override
+            long nanoTime() {
+                return nanos.get();
+            }
+        };
+        sink.hbasePool = hbasePool;
+        return sink;
+    }
+
     @Test
     public void testBatchSize() throws ParseException, IOException {
         HBaseSink sink = (HBaseSink)sinkFactory.getSink("test");
@@ -118,4 +153,549 @@ public class HBaseSinkTest {
         assertEquals(1, sink.rowQueueSize.get());
     }
 
+    @Test
+    public void testBatchLimits() throws Exception {
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        byte[] value = new byte[1000];
+        sink.setBatchLimits(4000, 0);
+        long batches = sink.batchBytesHistogram.count();
+
+        sink.store("req1", value);
+        sink.store("req2", value);
+        assertEquals(2, sink.rowQueueSize.get());
+        assertTrue(sink.rowQueueBytes.get() > 2000);
+        // the third value takes the batch over the byte limit
+        sink.store("req3", value);
+        assertEquals(0, sink.rowQueueSize.get());
+        assertEquals(0, sink.rowQueueBytes.get());
+        assertEquals(batches + 1, sink.batchBytesHistogram.count());
+
+        // a lingering row is written by the timer thread
+        sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        sink.setBatchLimits(0, 50);
+        sink.store("req4", value);
+        assertEquals(1, sink.rowQueueSize.get());
+        Mockito.verify(htable, Mockito.timeout(5000).times(2)).batch(Mockito.anyListOf(Row.class));
+        assertEquals(0, sink.rowQueueSize.get());
+        sink.close();
+    }
+
+    @Test
+    public void testBufferLimit() throws Exception {
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        byte[] value = new byte[1000];
+        sink.setBufferLimit(4000, 0);
+
+        // without flushers a full buffer is written by the storing thread
+        for (int i = 0; i < 5; i++) {
+            sink.store("req" + i, value);
+            assertTrue(sink.bufferedBytes.get() <= 4000);
+        }
+        assertEquals(sink.rowQueueSize.get(), sink.bufferedRows.get());
+
+        // with flushers that can't keep up, storing waits and then gives up
+        final CountDownLatch written = new CountDownLatch(1);
+        HTableInterface slowTable = Mockito.mock(HTableInterface.class);
+        Mockito.when(slowTable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                written.await();
+                return new Object[((List<?>)invocation.getArguments()[0]).size()];
+            }
+        });
+        HTablePool slowPool = Mockito.mock(HTablePool.class);
+        Mockito.when(slowPool.getTable("test".getBytes())).thenReturn(slowTable);
+        sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = slowPool;
+        sink.setRetryCount(1);
+        sink.setBufferLimit(4000, 100);
+        sink.startFlushers(1);
+        sink.store("req1", value);
+        sink.store("req2", value);
+        try {
+            sink.store("req3", value);
+            fail("Expected the full buffer to time out");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        assertTrue(sink.backpressureTimer.max() >= 100);
+        written.countDown();
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 5);
+        sinkConfig.setInt("hbasesink.hbase.flush.threads", 2);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+
+        for (int i = 0; i < 5; i++) {
+            sink.store("req" + i, "val".getBytes());
+        }
+        // a full batch is written by a flusher
+        Mockito.verify(htable, Mockito.timeout(5000)).batch(Mockito.anyListOf(Row.class));
+        assertEquals(0, sink.rowQueueSize.get());
+
+        // a partial batch isn't ready, so it waits for close
+        for (int i = 0; i < 3; i++) {
+            sink.store("req" + i, "val".getBytes());
+        }
+        assertEquals(3, sink.rowQueueSize.get());
+        sink.close();
+        assertEquals(0, sink.rowQueueSize.get());
+        Mockito.verify(htable, Mockito.times(2)).batch(Mockito.anyListOf(Row.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBackgroundFlushRetries() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 2);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        sink.setRetryBackoff(1);
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            int calls = 0;
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (calls++ == 0) {
+                    throw new IOException("region server down");
+                }
+                return new Object[] { 0, 1 };
+            }
+        });
+        sink.startFlushers(1);
+
+        sink.store("req1", "val1".getBytes());
+        sink.store("req2", "val2".getBytes());
+        // the failed batch goes back to the flusher rather than being lost or
+        // surfacing in an unrelated store()
+        ArgumentCaptor<List> batches = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(htable, Mockito.timeout(5000).times(2)).batch(batches.capture());
+        Set<String> retried = new HashSet<String>();
+        for (Row row : (List<Row>)batches.getAllValues().get(1)) {
+            retried.add(Bytes.toString(row.getRow()));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("req1", "req2")), retried);
+        sink.store("req3", "val3".getBytes());
+
+        sink.close();
+        assertEquals(0, sink.retryQueue.size());
+        assertEquals(0, sink.bufferedRows.get());
+    }
+
+    @Test
+    public void testRetryBackoff() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 2);
+        AtomicLong nanos = new AtomicLong();
+        HBaseSink sink = newSink(nanos);
+        sink.setRetryBackoff(50);
+        final byte[] badKey = Bytes.toBytes("bad");
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            int calls = 0;
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                List<?> rows = (List<?>)invocation.getArguments()[0];
+                Object[] result = new Object[rows.size()];
+                for (int i = 0; i < result.length; i++) {
+                    // the bad row fails the first time only
+                    if (calls > 0 || !Bytes.equals(badKey, ((Row)rows.get(i)).getRow())) {
+                        result[i] = Integer.valueOf(i);
+                    }
+                }
+                calls++;
+                return result;
+            }
+        });
+
+        sink.store("req1", "val1".getBytes());
+        sink.store("bad", "val2".getBytes());
+        // the good row is written and the bad one waits out its backoff
+        assertEquals(1, sink.retryQueue.size());
+        assertEquals(1, sink.bufferedRows.get());
+        sink.flush();
+        assertEquals(1, sink.retryQueue.size());
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        sink.flush();
+        assertEquals(0, sink.retryQueue.size());
+        assertEquals(0, sink.bufferedRows.get());
+        Mockito.verify(htable, Mockito.times(2)).batch(Mockito.anyListOf(Row.class));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 1);
+        AtomicLong nanos = new AtomicLong();
+        HBaseSink sink = newSink(nanos);
+        sink.setRetryBackoff(1);
+        sink.setCircuitBreaker(2, 60000);
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenThrow(new IOException("region server down"));
+
+        sink.store("req1", "val1".getBytes());
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        sink.flush();
+        assertEquals(CircuitBreaker.State.OPEN, sink.breaker.getState());
+
+        // while the breaker is open rows queue up without touching the table
+        sink.store("req2", "val2".getBytes());
+        sink.store("req3", "val3".getBytes());
+        assertEquals(2, sink.rowQueueSize.get());
+        assertEquals(1, sink.retryQueue.size());
+        Mockito.verify(htable, Mockito.times(2)).batch(Mockito.anyListOf(Row.class));
+
+        // close tries every row until it runs out of attempts
+        sink.close();
+        assertEquals(0, sink.rowQueueSize.get());
+        assertEquals(0, sink.retryQueue.size());
+        assertEquals(0, sink.bufferedRows.get());
+    }
+
+    @Test
+    public void testExhaustedRowsHoldBackStores() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 1);
+        AtomicLong nanos = new AtomicLong();
+        HBaseSink sink = newSink(nanos);
+        sink.setRetryCount(2);
+        sink.setRetryBackoff(1);
+        sink.setCircuitBreaker(1000, 1);
+        sink.setBufferLimit(HBaseSink.DEFAULT_BUFFER_BYTES, 200);
+        final AtomicBoolean down = new AtomicBoolean(true);
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (down.get()) {
+                    throw new IOException("region server down");
+                }
+                return new Object[] { 0 };
+            }
+        });
+
+        sink.store("req1", "val1".getBytes());
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        sink.flush();
+        assertEquals(1, sink.exhaustedRows.get());
+        assertEquals(1, sink.retryQueue.size());
+
+        // the stream can't move on while a row is out of attempts
+        try {
+            sink.store("req2", "val2".getBytes());
+            fail("Expected the store to wait for the failed row");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        assertEquals(0, sink.rowQueueSize.get());
+
+        // once the row is written the store goes through
+        down.set(false);
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        sink.store("req2", "val2".getBytes());
+        assertEquals(0, sink.exhaustedRows.get());
+        assertEquals(0, sink.retryQueue.size());
+        assertEquals(0, sink.bufferedRows.get());
+        sink.close();
+    }
+
+    @Test
+    public void testOpenBreakerBoundsBuffer() throws Exception {
+        assertEquals(HBaseSink.DEFAULT_BUFFER_BYTES, new HBaseSink(sinkConfig).maxBufferBytes);
+
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 1);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        sink.setCircuitBreaker(1, 60000);
+        sink.setBufferLimit(4000, 100);
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenThrow(new IOException("region server down"));
+        byte[] value = new byte[1000];
+
+        sink.store("req0", value);
+        assertEquals(CircuitBreaker.State.OPEN, sink.breaker.getState());
+        // rows pile up behind the open breaker only until the buffer is full
+        try {
+            for (int i = 1; i < 10; i++) {
+                sink.store("req" + i, value);
+            }
+            fail("Expected the full buffer to time out");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        assertTrue(sink.bufferedBytes.get() <= 4000);
+        Mockito.verify(htable, Mockito.times(1)).batch(Mockito.anyListOf(Row.class));
+    }
+
+    @Test
+    public void testRegionDispatch() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 4);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        // rows starting with a live on one server, the rest on another
+        sink.serverLocator = new HBaseSink.ServerLocator() {
+            @Override
+            public String getServer(byte[] row) {
+                return row[0] == 'a' ? "rs-a:60020" : "rs-b:60020";
+            }
+        };
+        sink.setRegionDispatch(2, 1);
+        final List<List<Row>> calls = Collections.synchronizedList(new ArrayList<List<Row>>());
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                List<Row> rows = new ArrayList<Row>((List<Row>)invocation.getArguments()[0]);
+                calls.add(rows);
+                Object[] result = new Object[rows.size()];
+                for (int i = 0; i < result.length; i++) {
+                    // the b server fails everything
+                    if (rows.get(i).getRow()[0] == 'a') {
+                        result[i] = Integer.valueOf(i);
+                    }
+                }
+                return result;
+            }
+        });
+
+        long failedA = sink.serverStats("rs-a:60020").failed.count();
+        long failedB = sink.serverStats("rs-b:60020").failed.count();
+        sink.store("a1", "val".getBytes());
+        sink.store("b1", "val".getBytes());
+        sink.store("a2", "val".getBytes());
+        sink.store("b2", "val".getBytes());
+        assertEquals(2, calls.size());
+        for (List<Row> call : calls) {
+            assertEquals(2, call.size());
+            assertEquals(call.get(0).getRow()[0], call.get(1).getRow()[0]);
+        }
+        assertEquals(failedA, sink.serverStats("rs-a:60020").failed.count());
+        assertEquals(failedB + 2, sink.serverStats("rs-b:60020").failed.count());
+        assertEquals(2, sink.retryQueue.size());
+
+        // a server at its in-flight limit has its rows put back without using an attempt
+        calls.clear();
+        sink.serverStats("rs-a:60020").inFlight.acquire();
+        sink.store("a3", "val".getBytes());
+        sink.store("a4", "val".getBytes());
+        sink.store("a5", "val".getBytes());
+        sink.store("a6", "val".getBytes());
+        assertEquals(0, calls.size());
+        assertEquals(6, sink.retryQueue.size());
+        for (HBaseSink.RetryRow retry : sink.retryQueue) {
+            assertEquals(retry.row.getRow()[0] == 'a' ? 0 : 1, retry.attempt);
+        }
+        sink.serverStats("rs-a:60020").inFlight.release();
+        sink.close();
+    }
+
+    @Test
+    public void testDeferralsUseAttempts() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 1);
+        AtomicLong nanos = new AtomicLong();
+        HBaseSink sink = newSink(nanos);
+        sink.serverLocator = new HBaseSink.ServerLocator() {
+            @Override
+            public String getServer(byte[] row) {
+                return "rs-a:60020";
+            }
+        };
+        sink.setRegionDispatch(1, 1);
+        HBaseSink.ServerStats stats = sink.serverStats("rs-a:60020");
+        stats.inFlight.acquire();
+
+        // a server that never frees up doesn't keep the row around for free
+        sink.store("a1", "val".getBytes());
+        for (int i = 1; i < HBaseSink.MAX_DEFERRALS; i++) {
+            assertEquals(0, sink.retryQueue.peek().attempt);
+            assertEquals(i, sink.retryQueue.peek().deferrals);
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            sink.flush();
+        }
+        assertEquals(1, sink.retryQueue.size());
+        assertEquals(1, sink.retryQueue.peek().attempt);
+        assertEquals(0, sink.retryQueue.peek().deferrals);
+        Mockito.verify(htable, Mockito.never()).batch(Mockito.anyListOf(Row.class));
+
+        stats.inFlight.release();
+        sink.close();
+        assertEquals(0, sink.bufferedRows.get());
+    }
+
+    @Test
+    public void testIdleServersExpire() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.batchsize", 1);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        sink.serverLocator = new HBaseSink.ServerLocator() {
+            @Override
+            public String getServer(byte[] row) {
+                return "rs-gone:60020";
+            }
+        };
+        sink.setRegionDispatch(1, 1);
+        sink.store("a1", "val".getBytes());
+        HBaseSink.ServerStats stats = sink.serverStats("rs-gone:60020");
+        MetricName timeName = new MetricName("bagheera", "sink.hbase", "test.server.rs-gone:60020.time");
+        assertTrue(Metrics.defaultRegistry().allMetrics().containsKey(timeName));
+
+        // a server still in use is kept
+        sink.expireServers(System.currentTimeMillis() + HBaseSink.SERVER_IDLE_MILLIS / 2);
+        assertTrue(stats == sink.serverStats("rs-gone:60020"));
+
+        sink.expireServers(System.currentTimeMillis() + HBaseSink.SERVER_IDLE_MILLIS * 2);
+        assertFalse(Metrics.defaultRegistry().allMetrics().containsKey(timeName));
+        assertFalse(stats == sink.serverStats("rs-gone:60020"));
+        sink.close();
+    }
+
+    @Test
+    public void testSummaryColumns() throws IOException {
+        Map<String, String> summary = new HashMap<String, String>();
+        summary.put("product", "Firefox");
+
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        assertFalse(sink.isSummaryEnabled());
+        sink.store("req1", "val1".getBytes(), summary);
+        Put put = (Put)sink.rowQueue.poll();
+        assertEquals(1, put.size());
+
+        sinkConfig.setString("hbasesink.hbase.summary.family", "summary");
+        sink = new HBaseSink(sinkConfig);
+        assertTrue(sink.isSummaryEnabled());
+        sink.store("req1", "val1".getBytes(), summary);
+        put = (Put)sink.rowQueue.poll();
+        assertEquals(2, put.size());
+        assertEquals("Firefox", Bytes.toString(put.get(Bytes.toBytes("summary"), Bytes.toBytes("product")).get(0).getValue()));
+    }
+
+    @Test
+    public void testDeltaStorage() throws IOException {
+        sinkConfig.setString("hbasesink.hbase.delta.family", "delta");
+        sinkConfig.setInt("hbasesink.hbase.delta.rebase.days", 1000000);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        assertTrue(sink.isDeltaEnabled());
+
+        // a first submission is a new base, clearing older deltas
+        sink.store("req1", "{\"thisPingDate\":\"2013-03-02\",\"data\":{\"days\":{\"2013-03-01\":{},\"2013-03-02\":{}}}}".getBytes(), 1000L);
+        assertEquals(2, sink.rowQueueSize.get());
+        Row[] rows = sink.rowQueue.toArray(new Row[0]);
+        assertTrue(rows[0] instanceof Delete);
+        assertTrue(((Put)rows[1]).has(Bytes.toBytes("data"), Bytes.toBytes("json")));
+        sink.flush();
+
+        // later ones only carry the days since the last one
+        sink.store("req1", ("{\"thisPingDate\":\"2013-03-03\",\"lastPingDate\":\"2013-03-02\"," +
+                            "\"data\":{\"days\":{\"2013-03-01\":{},\"2013-03-02\":{},\"2013-03-03\":{}}}}").getBytes(), 2000L);
+        assertEquals(1, sink.rowQueueSize.get());
+        Put put = (Put)sink.rowQueue.peek();
+        assertFalse(put.has(Bytes.toBytes("data"), Bytes.toBytes("json")));
+        List<KeyValue> deltas = put.get(Bytes.toBytes("delta"), Bytes.toBytes("0000000002000"));
+        assertEquals(1, deltas.size());
+        assertEquals("{\"thisPingDate\":\"2013-03-03\",\"lastPingDate\":\"2013-03-02\",\"data\":{\"days\":{\"2013-03-02\":{},\"2013-03-03\":{}}}}",
+                     Bytes.toString(deltas.get(0).getValue()));
+    }
+
+    @Test
+    public void testDeltaWithoutBase() throws IOException {
+        sinkConfig.setString("hbasesink.hbase.delta.family", "delta");
+        sinkConfig.setInt("hbasesink.hbase.delta.rebase.days", 1000000);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+
+        // a new document id whose first submission falls within its delta period
+        byte[] document = ("{\"thisPingDate\":\"2013-03-03\",\"lastPingDate\":\"2013-03-02\"," +
+                           "\"data\":{\"days\":{\"2013-03-01\":{},\"2013-03-02\":{},\"2013-03-03\":{}}}}").getBytes();
+        sink.store("req1", document, 2000L);
+        assertEquals(2, sink.rowQueueSize.get());
+        Row[] rows = sink.rowQueue.toArray(new Row[0]);
+        assertTrue(rows[0] instanceof Delete);
+        Put put = (Put)rows[1];
+        assertEquals(Bytes.toString(document), Bytes.toString(put.get(Bytes.toBytes("data"), Bytes.toBytes("json")).get(0).getValue()));
+        assertTrue(put.get(Bytes.toBytes("delta"), Bytes.toBytes("0000000002000")).isEmpty());
+    }
+
+    @Test
+    public void testWriteSuppression() throws IOException {
+        sinkConfig.setInt("hbasesink.hbase.suppress.entries", 1024);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+
+        sink.store("req1", "val1".getBytes());
+        assertEquals(1, sink.rowQueueSize.get());
+        // not stored yet, so a redelivery is queued as well
+        sink.store("req1", "val1".getBytes());
+        assertEquals(2, sink.rowQueueSize.get());
+        sink.flush();
+
+        // redelivered after it was stored
+        sink.store("req1", "val1".getBytes());
+        assertEquals(0, sink.rowQueueSize.get());
+        // changed
+        sink.store("req1", "val2".getBytes());
+        sink.store("req2", "val2".getBytes());
+        assertEquals(2, sink.rowQueueSize.get());
+        sink.flush();
+
+        // a delete means the next store has to be written
+        sink.delete("req1");
+        sink.flush();
+        sink.store("req1", "val2".getBytes());
+        assertEquals(1, sink.rowQueueSize.get());
+        sink.store("req2", "val2".getBytes());
+        assertEquals(1, sink.rowQueueSize.get());
+
+        assertEquals(7, sink.writeCache.getLookups());
+        assertEquals(2, sink.writeCache.getHits());
+    }
+
+    @Test
+    public void testFailedWriteNotSuppressed() throws Exception {
+        sinkConfig.setInt("hbasesink.hbase.suppress.entries", 1024);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        sink.hbasePool = hbasePool;
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return new Object[] { new IOException("region moved") };
+            }
+        });
+
+        sink.store("req1", "val1".getBytes());
+        sink.flush();
+        assertEquals(0, sink.rowQueueSize.get());
+        assertEquals(1, sink.retryQueue.size());
+
+        // the resend has to be written since the first one never was
+        sink.store("req1", "val1".getBytes());
+        assertEquals(1, sink.rowQueueSize.get());
+        assertEquals(0, sink.writeCache.getHits());
+    }
+
+    @Test
+    public void testValueCompression() throws IOException {
+        sinkConfig.setBoolean("hbasesink.hbase.compress", true);
+        sinkConfig.setInt("hbasesink.hbase.compress.min.bytes", 16);
+        HBaseSink sink = new HBaseSink(sinkConfig);
+        assertTrue(sink.isCompressionEnabled());
+        StringBuilder json = new StringBuilder("{\"data\":[");
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"a\":1},");
+        }
+        byte[] document = json.append("{}]}").toString().getBytes();
+
+        // compressing lets documents over the limit through
+        sink.maxKeyValueSize = document.length / 2;
+        assertFalse(sink.isOversized("req1", document.length));
+        sink.store("req1", document);
+        Put put = (Put)sink.rowQueue.poll();
+        byte[] value = put.get(Bytes.toBytes("data"), Bytes.toBytes("json")).get(0).getValue();
+        assertTrue(CompressedValues.isCompressed(value));
+        assertTrue(value.length < document.length / 2);
+        assertTrue(Bytes.equals(document, CompressedValues.decode(value)));
+
+        // short values are stored as they are
+        sink.store("req2", "{}".getBytes());
+        put = (Put)sink.rowQueue.poll();
+        assertEquals("{}", Bytes.toString(put.get(Bytes.toBytes("data"), Bytes.toBytes("json")).get(0).getValue()));
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+public class WriteSuppressionCacheTest {
+
+    @Test
+    public void testSuppression() {
+        WriteSuppressionCache cache = new WriteSuppressionCache(1000, 60000);
+        assertEquals(1024, cache.capacity());
+
+        byte[] key = Bytes.toBytes("id1");
+        long hash = WriteSuppressionCache.contentHash(Bytes.toBytes("{\"a\":1}"));
+        assertFalse(cache.isWritten(key, hash, 1000));
+        cache.put(key, hash, 1000);
+        assertTrue(cache.isWritten(key, hash, 2000));
+
+        // changed content, expired entries and other keys are written
+        assertFalse(cache.isWritten(key, WriteSuppressionCache.contentHash(Bytes.toBytes("{\"a\":2}")), 2000));
+        assertFalse(cache.isWritten(key, hash, 61000));
+        assertFalse(cache.isWritten(Bytes.toBytes("id2"), hash, 2000));
+
+        cache.invalidate(key);
+        assertFalse(cache.isWritten(key, hash, 2000));
+        cache.put(key, hash, 1000);
+        cache.clear();
+        assertFalse(cache.isWritten(key, hash, 2000));
+
+        assertEquals(7, cache.getLookups());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testEviction() {
+        WriteSuppressionCache cache = new WriteSuppressionCache(16, 60000);
+        long hash = WriteSuppressionCache.contentHash(new byte[] { 1 });
+        for (int i = 0; i < 1000; i++) {
+            cache.put(Bytes.toBytes("id" + i), hash, 0);
+        }
+        int remembered = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.isWritten(Bytes.toBytes("id" + i), hash, 0)) {
+                remembered++;
+            }
+        }
+        assertTrue(remembered <= 16);
+        assertTrue(remembered > 0);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.fhr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RateLimitedLoggerTest {
+
+    private final List<String> messages = new ArrayList<String>();
+    private Logger log;
+
+    @Before
+    public void setup() {
+        log = Logger.getLogger(RateLimitedLoggerTest.class);
+        log.removeAllAppenders();
+        log.setAdditivity(false);
+        log.setLevel(Level.WARN);
+        log.addAppender(new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                messages.add(event.getRenderedMessage());
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void testSuppression() throws InterruptedException {
+        RateLimitedLogger limited = new RateLimitedLogger(log, 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            limited.error("bad payload", new RuntimeException());
+            limited.warn("big payload");
+        }
+        assertEquals(2, messages.size());
+
+        Thread.sleep(60);
+        limited.error("bad payload", null);
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(2).startsWith("bad payload (4 more suppressed"));
+
+        limited.flush();
+        assertEquals(4, messages.size());
+        assertEquals("big payload (4 more suppressed)", messages.get(3));
+    }
+}